@@ -0,0 +1,352 @@
+package com.adaptershack.jeffdb;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * JMH benchmarks of the main operations of DatabaseService, each over
+ * collections of 1,000, 100,000 and 1,000,000 objects, of about 256 and
+ * 4096 bytes each, scanned with 1 and 8 threads.
+ *
+ * Run with ./gradlew jmh, which writes the results as Json to
+ * build/reports/jmh/results.json. Every combination of everything takes
+ * hours, so usually some of it is picked with JMH options, for example:
+ *
+ *   ./gradlew jmh --args='-p size=100000 -p docBytes=256 DatabaseBenchmark.get'
+ *
+ * Concurrent callers are JMH's threads, -t; gets, inserts and lists can
+ * have several, but deleteMatching and archive only run one at a time.
+ *
+ * The collections are made in the temporary directory the first time
+ * they're needed, and kept for the next run, since a big one takes
+ * minutes to write. Whatever a benchmark changes is put back afterwards.
+ *
+ * @author Jeff
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+public class DatabaseBenchmark {
+
+	static final String COLLECTION = "bench";
+
+	/*
+	 * Objects are put in this many groups, so each group is 1% of them.
+	 */
+	static final int GROUPS = 100;
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Param({"1000", "100000", "1000000"})
+	int size;
+
+	@Param({"256", "4096"})
+	int docBytes;
+
+	@Param({"1", "8"})
+	int scanThreads;
+
+	DatabaseService db;
+
+	Path root;
+
+	@Setup(Level.Trial)
+	public void open() throws IOException {
+
+		root = dataset(size, docBytes);
+
+		db = new DatabaseService();
+		db.setRootDirectory(root.toString());
+		db.setObjectMapper(objectMapper);
+		db.setScanThreads(scanThreads);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		db.close();
+	}
+
+	/*
+	 * Where each thread's inserts go, so they can be taken out again.
+	 */
+	@State(Scope.Thread)
+	public static class Inserted {
+
+		final List<String> ids = new ArrayList<>();
+
+		@TearDown(Level.Iteration)
+		public void delete(DatabaseBenchmark benchmark) {
+			ids.forEach(id -> benchmark.db.delete(COLLECTION, id));
+			ids.clear();
+		}
+	}
+
+	/*
+	 * The group a destructive benchmark works on, a different one each time,
+	 * and how to put it back. The dataset is marked incomplete in between,
+	 * so that if the run is killed then, it's made again next time.
+	 */
+	@State(Scope.Benchmark)
+	public static class Group {
+
+		int group;
+
+		private int next;
+
+		@Setup(Level.Invocation)
+		public void pick(DatabaseBenchmark benchmark) throws IOException {
+			group = next++ % GROUPS;
+			Files.deleteIfExists(complete(benchmark.root));
+		}
+
+		@TearDown(Level.Invocation)
+		public void restore(DatabaseBenchmark benchmark) throws IOException {
+			benchmark.db.purge(COLLECTION);
+			benchmark.db.insertAll(COLLECTION, () -> rows(benchmark.size, benchmark.docBytes, group, GROUPS));
+			Files.createFile(complete(benchmark.root));
+		}
+	}
+
+	@Benchmark
+	public ObjectNode insert(Inserted inserted) {
+
+		ObjectNode row = row(size + ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE - size), docBytes);
+
+		inserted.ids.add(row.get(DatabaseService.ID).asText());
+
+		return db.insert(COLLECTION, row);
+	}
+
+	@Benchmark
+	public Customer insertPojo(Inserted inserted) {
+
+		Customer customer = new Customer(size + ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE - size), docBytes);
+
+		inserted.ids.add(customer.getId());
+
+		return db.insert(COLLECTION, customer);
+	}
+
+	@Benchmark
+	public ObjectNode get() {
+		return db.get(COLLECTION, id(ThreadLocalRandom.current().nextInt(size)));
+	}
+
+	@Benchmark
+	public ArrayNode listAll() {
+		return db.listAll(COLLECTION);
+	}
+
+	@Benchmark
+	public ArrayNode listMatching() {
+
+		ObjectNode query = objectMapper.createObjectNode();
+		query.put("group", ThreadLocalRandom.current().nextInt(GROUPS));
+
+		return db.listMatching(COLLECTION, query);
+	}
+
+	@Benchmark
+	public ArrayNode listPredicate() {
+
+		int group = ThreadLocalRandom.current().nextInt(GROUPS);
+
+		return db.list(COLLECTION, row -> row.path("group").asInt() == group);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean deleteMatching(Group group) {
+
+		ObjectNode query = objectMapper.createObjectNode();
+		query.put("group", group.group);
+
+		return db.deleteMatching(COLLECTION, query);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void archive(Group group) {
+		db.archive(COLLECTION, row -> row.path("group").asInt() == group.group);
+	}
+
+	/*
+	 * Makes the collection, unless a previous run already did.
+	 */
+	static Path dataset(int size, int docBytes) throws IOException {
+
+		Path root = Path.of(System.getProperty("java.io.tmpdir"), "jeffdb-jmh", size + "x" + docBytes);
+
+		if(Files.exists(complete(root))) {
+			return root;
+		}
+
+		FileSystemUtils.deleteRecursively(root);
+
+		DatabaseService db = new DatabaseService();
+		db.setRootDirectory(root.toString());
+		db.setObjectMapper(objectMapper);
+
+		try {
+			db.insertAll(COLLECTION, () -> rows(size, docBytes, 0, 1));
+		} finally {
+			db.close();
+		}
+
+		Files.createFile(complete(root));
+
+		return root;
+	}
+
+	static Path complete(Path root) {
+		return root.resolve(".complete");
+	}
+
+	/*
+	 * Every step'th object from first, made as they're asked for.
+	 */
+	static Iterator<ObjectNode> rows(int size, int docBytes, int first, int step) {
+		return new Iterator<>() {
+
+			int next = first;
+
+			@Override
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			@Override
+			public ObjectNode next() {
+				ObjectNode row = row(next, docBytes);
+				next += step;
+				return row;
+			}
+		};
+	}
+
+	static ObjectNode row(int i, int docBytes) {
+
+		ObjectNode row = objectMapper.createObjectNode();
+
+		row.put(DatabaseService.ID, id(i));
+		row.put("name", "customer " + i);
+		row.put("group", i % GROUPS);
+		row.put("balance", i * 1.25);
+		row.put("active", i % 3 != 0);
+		row.put("notes", notes(docBytes));
+
+		return row;
+	}
+
+	static String id(int i) {
+		return String.format("c%010d", i);
+	}
+
+	/*
+	 * Padding to bring an object up to about docBytes as Json.
+	 */
+	static String notes(int docBytes) {
+		return "x".repeat(Math.max(0, docBytes - 120));
+	}
+
+	public static class Customer {
+
+		private String id;
+		private String name;
+		private int group;
+		private double balance;
+		private boolean active;
+		private String notes;
+
+		public Customer() {
+		}
+
+		Customer(int i, int docBytes) {
+			id = id(i);
+			name = "customer " + i;
+			group = i % GROUPS;
+			balance = i * 1.25;
+			active = i % 3 != 0;
+			notes = notes(docBytes);
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public void setId(String id) {
+			this.id = id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public int getGroup() {
+			return group;
+		}
+
+		public void setGroup(int group) {
+			this.group = group;
+		}
+
+		public double getBalance() {
+			return balance;
+		}
+
+		public void setBalance(double balance) {
+			this.balance = balance;
+		}
+
+		public boolean isActive() {
+			return active;
+		}
+
+		public void setActive(boolean active) {
+			this.active = active;
+		}
+
+		public String getNotes() {
+			return notes;
+		}
+
+		public void setNotes(String notes) {
+			this.notes = notes;
+		}
+	}
+
+}
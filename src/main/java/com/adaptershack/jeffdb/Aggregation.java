@@ -0,0 +1,354 @@
+package com.adaptershack.jeffdb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Works out counts, sums, averages, minimums, maximums and numbers of
+ * distinct values of top level fields, over a stream of objects, optionally
+ * grouped by the value of another field. It is specified by an object like:
+ *
+ *   {"query": {"age": {"$gte": 18}}, "groupBy": "status",
+ *    "sum": ["price"], "avg": "price", "min": "age", "max": "age",
+ *    "distinct": "tag"}
+ *
+ * Everything is optional, and each kind of aggregate takes one field or an
+ * array of them. Objects are always counted. The result looks like:
+ *
+ *   {"count": 10, "sum": {"price": 99.5}, "avg": {"price": 9.95}, ...}
+ *
+ * or, when grouped, has the total count and a "groups" array of the above,
+ * each also having the value of the groupBy field (null for objects
+ * without one).
+ *
+ * Nothing is kept of the objects themselves. Each group has a count and,
+ * per field, a count, sum, minimum and maximum, so memory only grows with
+ * the number of groups; except for distinct, which has to remember every
+ * distinct value it has seen.
+ *
+ * Sums and averages only look at numbers, which are added up exactly as
+ * long as they are all integers that fit in a long. Minimums and maximums
+ * look at numbers and strings, with all numbers ranked below all strings.
+ *
+ * @author Jeff
+ *
+ */
+class Aggregation implements Consumer<JsonNode> {
+
+	static final String QUERY = "query";
+	static final String GROUP_BY = "groupBy";
+	static final String COUNT = "count";
+	static final String SUM = "sum";
+	static final String AVG = "avg";
+	static final String MIN = "min";
+	static final String MAX = "max";
+	static final String DISTINCT = "distinct";
+	static final String GROUPS = "groups";
+
+	private final JsonNode query;
+
+	private final String groupBy;
+
+	private final List<String> sum;
+	private final List<String> avg;
+	private final List<String> min;
+	private final List<String> max;
+	private final List<String> distinct;
+
+	/*
+	 * Every field with a sum, average, minimum or maximum.
+	 */
+	private final List<String> measured = new ArrayList<>();
+
+	private final Map<JsonNode,Group> groups = new LinkedHashMap<>();
+
+	private long count;
+
+	Aggregation(JsonNode spec) {
+
+		if(!spec.isObject()) {
+			throw new IllegalArgumentException("An aggregation must be an object");
+		}
+
+		spec.fieldNames().forEachRemaining(name -> {
+			switch(name) {
+			case QUERY: case GROUP_BY: case SUM: case AVG: case MIN: case MAX: case DISTINCT:
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown aggregation " + name);
+			}
+		});
+
+		query = spec.get(QUERY);
+
+		if(query != null) {
+			// checks it
+			new QueryMatcher(query);
+		}
+
+		JsonNode group = spec.get(GROUP_BY);
+
+		if(group != null && !group.isTextual()) {
+			throw new IllegalArgumentException(GROUP_BY + " needs a field name");
+		}
+
+		groupBy = group == null ? null : group.textValue();
+
+		sum = fields(spec, SUM);
+		avg = fields(spec, AVG);
+		min = fields(spec, MIN);
+		max = fields(spec, MAX);
+		distinct = fields(spec, DISTINCT);
+
+		Set<String> all = new LinkedHashSet<>();
+		all.addAll(sum);
+		all.addAll(avg);
+		all.addAll(min);
+		all.addAll(max);
+		measured.addAll(all);
+	}
+
+	/**
+	 * The query objects have to match to be counted, or null for all of them.
+	 *
+	 * @return
+	 */
+	JsonNode getQuery() {
+		return query;
+	}
+
+	/**
+	 * The only fields that need to be read from each object.
+	 *
+	 * @return
+	 */
+	Collection<String> getFields() {
+		Set<String> fields = new LinkedHashSet<>(measured);
+		fields.addAll(distinct);
+
+		if(groupBy != null) {
+			fields.add(groupBy);
+		}
+
+		return fields;
+	}
+
+	@Override
+	public void accept(JsonNode row) {
+
+		count++;
+
+		JsonNode key = groupBy == null ? NullNode.instance : row.get(groupBy);
+
+		Group group = groups.computeIfAbsent(key == null ? NullNode.instance : key, k -> new Group());
+
+		group.count++;
+
+		for(int i = 0; i < measured.size(); i++) {
+			JsonNode value = row.get(measured.get(i));
+
+			if(value != null) {
+				group.stats[i].add(value);
+			}
+		}
+
+		for(int i = 0; i < distinct.size(); i++) {
+			JsonNode value = row.get(distinct.get(i));
+
+			if(value != null) {
+				group.distinct.get(i).add(value);
+			}
+		}
+	}
+
+	ObjectNode result() {
+
+		if(groupBy == null) {
+			Group all = groups.get(NullNode.instance);
+			return (all == null ? new Group() : all).result(JsonNodeFactory.instance.objectNode());
+		}
+
+		ObjectNode result = JsonNodeFactory.instance.objectNode();
+
+		result.put(COUNT, count);
+
+		ArrayNode array = result.putArray(GROUPS);
+
+		groups.forEach( (key, group) -> {
+			ObjectNode node = JsonNodeFactory.instance.objectNode();
+			node.set(groupBy, key);
+			array.add(group.result(node));
+		});
+
+		return result;
+	}
+
+	private class Group {
+
+		long count;
+
+		final FieldStats[] stats = new FieldStats[measured.size()];
+
+		final List<Set<JsonNode>> distinct = new ArrayList<>();
+
+		Group() {
+			for(int i = 0; i < stats.length; i++) {
+				stats[i] = new FieldStats();
+			}
+
+			for(int i = 0; i < Aggregation.this.distinct.size(); i++) {
+				distinct.add(new HashSet<>());
+			}
+		}
+
+		ObjectNode result(ObjectNode node) {
+
+			node.put(COUNT, count);
+
+			if(!sum.isEmpty()) {
+				ObjectNode sums = node.putObject(SUM);
+				sum.forEach(field -> stats(field).putSum(sums, field));
+			}
+
+			if(!avg.isEmpty()) {
+				ObjectNode avgs = node.putObject(AVG);
+				avg.forEach(field -> stats(field).putAvg(avgs, field));
+			}
+
+			if(!min.isEmpty()) {
+				ObjectNode mins = node.putObject(MIN);
+				min.forEach(field -> mins.set(field, stats(field).min));
+			}
+
+			if(!max.isEmpty()) {
+				ObjectNode maxes = node.putObject(MAX);
+				max.forEach(field -> maxes.set(field, stats(field).max));
+			}
+
+			if(!Aggregation.this.distinct.isEmpty()) {
+				ObjectNode counts = node.putObject(DISTINCT);
+				for(int i = 0; i < distinct.size(); i++) {
+					counts.put(Aggregation.this.distinct.get(i), distinct.get(i).size());
+				}
+			}
+
+			return node;
+		}
+
+		FieldStats stats(String field) {
+			return stats[measured.indexOf(field)];
+		}
+	}
+
+	/*
+	 * Running totals for one field in one group.
+	 */
+	private static class FieldStats {
+
+		long numbers;
+
+		long longSum;
+
+		double doubleSum;
+
+		// whether everything so far has fitted in longSum
+		boolean exact = true;
+
+		JsonNode min;
+
+		JsonNode max;
+
+		void add(JsonNode value) {
+
+			if(value.isNumber()) {
+				numbers++;
+
+				if(exact && value.isIntegralNumber() && value.canConvertToLong()) {
+					try {
+						longSum = Math.addExact(longSum, value.longValue());
+					} catch (ArithmeticException e) {
+						exact = false;
+						doubleSum = (double) longSum + value.doubleValue();
+					}
+				} else {
+					if(exact) {
+						exact = false;
+						doubleSum = longSum;
+					}
+					doubleSum += value.doubleValue();
+				}
+			} else if(!value.isTextual()) {
+				return;
+			}
+
+			if(min == null || rank(value, min) < 0) {
+				min = value;
+			}
+
+			if(max == null || rank(value, max) > 0) {
+				max = value;
+			}
+		}
+
+		void putSum(ObjectNode node, String field) {
+			if(exact) {
+				node.put(field, longSum);
+			} else {
+				node.put(field, doubleSum);
+			}
+		}
+
+		void putAvg(ObjectNode node, String field) {
+			if(numbers == 0) {
+				node.putNull(field);
+			} else {
+				node.put(field, (exact ? longSum : doubleSum) / (double) numbers);
+			}
+		}
+
+		private static int rank(JsonNode a, JsonNode b) {
+			Integer c = QueryMatcher.compare(a, b);
+			return c != null ? c : a.isNumber() ? -1 : 1;
+		}
+	}
+
+	private static List<String> fields(JsonNode spec, String name) {
+
+		JsonNode value = spec.get(name);
+
+		List<String> fields = new ArrayList<>();
+
+		if(value == null) {
+			return fields;
+		}
+
+		if(value.isTextual()) {
+			fields.add(value.textValue());
+		} else if(value.isArray()) {
+			for(JsonNode field : value) {
+				if(!field.isTextual()) {
+					throw new IllegalArgumentException(name + " needs field names");
+				}
+				fields.add(field.textValue());
+			}
+		} else {
+			throw new IllegalArgumentException(name + " needs a field name or an array of them");
+		}
+
+		return fields;
+	}
+
+}
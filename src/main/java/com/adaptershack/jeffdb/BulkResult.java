@@ -0,0 +1,58 @@
+package com.adaptershack.jeffdb;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * What happened to one object in a bulk insert: either the id it was
+ * stored under, or why it wasn't stored.
+ *
+ * @author Jeff
+ *
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BulkResult {
+
+	private final int index;
+
+	private final String id;
+
+	private final String error;
+
+	BulkResult(int index, String id, String error) {
+		this.index = index;
+		this.id = id;
+		this.error = error;
+	}
+
+	/**
+	 * Position of the object in the input, counting from zero.
+	 *
+	 * @return
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Null if the object was stored.
+	 *
+	 * @return
+	 */
+	public String getError() {
+		return error;
+	}
+
+	public boolean isOk() {
+		return error == null;
+	}
+
+	@Override
+	public String toString() {
+		return index + ": " + (error == null ? id : error);
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.adaptershack.jeffdb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit and miss counts for the document cache, for one collection.
+ * 
+ * @author Jeff
+ *
+ */
+public class CacheStatistics {
+
+	final LongAdder hits = new LongAdder();
+	
+	final LongAdder misses = new LongAdder();
+	
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	public double getHitRatio() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + getHits() + ", misses=" + getMisses();
+	}
+	
+}
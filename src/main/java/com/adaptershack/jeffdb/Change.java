@@ -0,0 +1,98 @@
+package com.adaptershack.jeffdb;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * Something that happened to a collection, as passed to change listeners
+ * and sent by the _changes feed. Only says what happened to which object;
+ * anyone who wants the object itself can get it.
+ *
+ * @author Jeff
+ *
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class Change {
+
+	public enum Type {
+		INSERT("insert"),
+		UPDATE("update"),
+		DELETE("delete"),
+		ARCHIVE("archive"),
+		/**
+		 * The whole collection was deleted, or with no collection, the
+		 * whole database.
+		 */
+		DROP("drop"),
+		/**
+		 * Changes up to this one were missed, because the listener fell too
+		 * far behind, or asked to start from a sequence number that's too
+		 * old or from before a restart; what it knows about the collection
+		 * should be read again.
+		 */
+		RESET("reset");
+
+		private final String tag;
+
+		Type(String tag) {
+			this.tag = tag;
+		}
+
+		@JsonValue
+		public String getTag() {
+			return tag;
+		}
+	}
+
+	private final long sequence;
+
+	private final Type type;
+
+	private final String collection;
+
+	private final String id;
+
+	Change(long sequence, Type type, String collection, String id) {
+		this.sequence = sequence;
+		this.type = type;
+		this.collection = collection;
+		this.id = id;
+	}
+
+	/**
+	 * Goes up by one with every change to any collection.
+	 *
+	 * @return
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Null for a reset, and for dropping the whole database.
+	 *
+	 * @return
+	 */
+	public String getCollection() {
+		return collection;
+	}
+
+	/**
+	 * The object's id, or null for a drop or a reset.
+	 *
+	 * @return
+	 */
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return sequence + " " + type.tag + (collection == null ? "" : " " + collection) + (id == null ? "" : "/" + id);
+	}
+
+}
@@ -0,0 +1,238 @@
+package com.adaptershack.jeffdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The most recent changes to the database, numbered in order, for change
+ * listeners to catch up from.
+ *
+ * Changes go into a ring buffer of fixed size, overwriting the oldest, so
+ * recording one costs the same however many listeners there are or however
+ * far behind they are; writers never wait for them. Each listener reads
+ * from the buffer at its own pace, on its own thread, and if it falls so
+ * far behind that what it hasn't seen yet has been overwritten, it's told
+ * so with a reset, and carries on from the oldest change still there.
+ *
+ * Nothing is kept across restarts. So that a listener resuming from before
+ * one can tell, sequence numbers start from the time, in microseconds,
+ * which will always be ahead of where the last run got to unless it made
+ * more than a million changes a second.
+ *
+ * A size of zero turns it off.
+ *
+ * @author Jeff
+ *
+ */
+class ChangeFeed {
+
+	/*
+	 * Most changes handed over to a listener at a time.
+	 */
+	private static final int BATCH = 256;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition changed = lock.newCondition();
+
+	private Change[] ring;
+
+	// sequence number of the newest change, and the oldest one still in the ring
+	private long last;
+	private long oldest;
+
+	private volatile boolean enabled;
+
+	private final Set<ChangeSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+	ChangeFeed(int size) {
+		last = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+		oldest = last + 1;
+		setSize(size);
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	int getSize() {
+		lock.lock();
+		try {
+			return ring == null ? 0 : ring.length;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets how many changes are kept. Any already kept are forgotten, so
+	 * listeners still reading them are reset.
+	 *
+	 * @param size
+	 */
+	void setSize(int size) {
+
+		if(size < 0) {
+			throw new IllegalArgumentException("Change feed size can't be negative");
+		}
+
+		lock.lock();
+		try {
+			ring = size == 0 ? null : new Change[size];
+			oldest = last + 1;
+			enabled = size > 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The sequence number of the latest change.
+	 *
+	 * @return
+	 */
+	long getSequence() {
+		lock.lock();
+		try {
+			return last;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void publish(Change.Type type, String collection, String id) {
+
+		if(!enabled) {
+			return;
+		}
+
+		lock.lock();
+		try {
+			add(type, collection, id);
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Same, for a batch of objects.
+	 *
+	 * @param collection
+	 * @param types the type of change by id
+	 */
+	void publishAll(String collection, Map<String,Change.Type> types) {
+
+		if(!enabled || types.isEmpty()) {
+			return;
+		}
+
+		lock.lock();
+		try {
+			types.forEach((id, type) -> add(type, collection, id));
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void add(Change.Type type, String collection, String id) {
+
+		if(ring == null) {
+			return;
+		}
+
+		long sequence = ++last;
+
+		ring[(int) (sequence % ring.length)] = new Change(sequence, type, collection, id);
+
+		oldest = Math.max(oldest, sequence - ring.length + 1);
+	}
+
+	/**
+	 * Waits up to the timeout for changes after the sequence number, and
+	 * returns them, in order, or nothing if there weren't any or it was
+	 * stopped. If any of them are no longer kept, the first is a reset,
+	 * numbered as the last of those.
+	 *
+	 * @param sequence
+	 * @param timeout milliseconds
+	 * @param stopped
+	 * @return
+	 * @throws InterruptedException
+	 */
+	List<Change> after(long sequence, long timeout, BooleanSupplier stopped) throws InterruptedException {
+
+		lock.lock();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+
+			while(sequence == last && nanos > 0 && !stopped.getAsBoolean()) {
+				nanos = changed.awaitNanos(nanos);
+			}
+
+			if(sequence == last || stopped.getAsBoolean()) {
+				return Collections.emptyList();
+			}
+
+			List<Change> changes = new ArrayList<>();
+
+			long next = sequence + 1;
+
+			if(sequence > last) {
+				changes.add(new Change(last, Change.Type.RESET, null, null));
+				return changes;
+			}
+
+			if(next < oldest) {
+				changes.add(new Change(oldest - 1, Change.Type.RESET, null, null));
+				next = oldest;
+			}
+
+			for(; next <= last && changes.size() < BATCH; next++) {
+				changes.add(ring[(int) (next % ring.length)]);
+			}
+
+			return changes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Wakes up every listener that's waiting, so that any that have been
+	 * closed notice.
+	 */
+	void wake() {
+		lock.lock();
+		try {
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void added(ChangeSubscription subscription) {
+		subscriptions.add(subscription);
+	}
+
+	void removed(ChangeSubscription subscription) {
+		subscriptions.remove(subscription);
+	}
+
+	/**
+	 * Closes every subscription.
+	 */
+	void close() {
+		subscriptions.forEach(ChangeSubscription::close);
+	}
+
+}
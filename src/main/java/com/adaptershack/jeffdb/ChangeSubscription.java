@@ -0,0 +1,115 @@
+package com.adaptershack.jeffdb;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A change listener, as added to DatabaseService, which is passed changes
+ * on a thread of its own until it's closed, or until it throws an exception.
+ *
+ * The thread is a virtual one, so that a listener that's mostly waiting,
+ * like one sending changes to a client over the network, doesn't tie up
+ * a thread of the operating system's.
+ *
+ * @author Jeff
+ *
+ */
+public class ChangeSubscription implements AutoCloseable {
+
+	private final ChangeFeed feed;
+
+	private final String collection;
+
+	private final Consumer<Change> listener;
+
+	private final Runnable idle;
+
+	private final long idleInterval;
+
+	private volatile long sequence;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param feed
+	 * @param collection only changes to this collection, or null for all of them
+	 * @param sequence the last change already seen
+	 * @param listener
+	 * @param idle called when nothing has been passed to the listener for a while, or null
+	 * @param idleInterval milliseconds
+	 */
+	ChangeSubscription(ChangeFeed feed, String collection, long sequence, Consumer<Change> listener, Runnable idle, long idleInterval) {
+		this.feed = feed;
+		this.collection = collection;
+		this.sequence = sequence;
+		this.listener = listener;
+		this.idle = idle;
+		this.idleInterval = idleInterval;
+	}
+
+	void start() {
+		feed.added(this);
+		Thread.ofVirtual().name("jeffdb-changes").start(this::run);
+	}
+
+	/**
+	 * The sequence number of the last change the listener has seen, or
+	 * skipped over as being for another collection.
+	 *
+	 * @return
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Stops passing changes to the listener; it may still be passed the
+	 * one it's being passed now.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		feed.removed(this);
+		feed.wake();
+	}
+
+	private void run() {
+
+		long lastPassed = System.nanoTime();
+
+		try {
+			while(!closed) {
+
+				List<Change> changes = feed.after(sequence, idleInterval, this::isClosed);
+
+				for(Change change : changes) {
+
+					if(closed) {
+						return;
+					}
+
+					if(collection == null || change.getCollection() == null || collection.equals(change.getCollection())) {
+						listener.accept(change);
+						lastPassed = System.nanoTime();
+					}
+
+					sequence = change.getSequence();
+				}
+
+				if(idle != null && !closed && System.nanoTime() - lastPassed >= idleInterval * 1_000_000) {
+					idle.run();
+					lastPassed = System.nanoTime();
+				}
+			}
+		} catch (InterruptedException | RuntimeException e) {
+			// the listener has had enough
+		} finally {
+			close();
+		}
+	}
+
+}
@@ -0,0 +1,433 @@
+package com.adaptershack.jeffdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * All of the secondary indexes belonging to one collection.
+ *
+ * Indexes are kept in memory and saved under a ".indexes" subdirectory
+ * of the collection, one file per indexed field, named for whether the
+ * index is sorted, full-text or neither. Saving after every write
+ * would cost more than the index saves, so instead the first change after
+ * a save drops a "dirty" marker file there. If the marker is still present
+ * when the indexes are next loaded, the process must have died without
+ * saving, and the indexes are rebuilt from a scan of the collection.
+ *
+ * @author Jeff
+ *
+ */
+class CollectionIndexes {
+
+	private final static String INDEX_DIR = ".indexes";
+	private final static String DOT_IDX = ".idx";
+	private final static String DOT_SORTED = ".sorted";
+	private final static String DOT_TEXT = ".text";
+	private final static String DIRTY = "dirty";
+
+	private final File indexDirectory;
+
+	private final ObjectMapper objectMapper;
+
+	private final Map<String,HashIndex> hashIndexes = new ConcurrentHashMap<>();
+
+	private boolean dirty;
+
+	/* how many objects the collection has, kept up to date while it has indexes, or -1 if not known */
+	private final AtomicInteger size = new AtomicInteger(-1);
+
+	CollectionIndexes(File collectionDir, ObjectMapper objectMapper) {
+		this.indexDirectory = new File(collectionDir, INDEX_DIR);
+		this.objectMapper = objectMapper;
+	}
+
+	boolean isEmpty() {
+		return hashIndexes.isEmpty();
+	}
+
+	Set<String> getFields() {
+		return new TreeSet<>(hashIndexes.keySet());
+	}
+
+	boolean has(String field) {
+		return hashIndexes.containsKey(field);
+	}
+
+	/**
+	 * Roughly how many objects the collection has, counted once, and then
+	 * kept up to date by the adds and removes that keep the indexes so.
+	 *
+	 * @param count counts them the slow way
+	 * @return
+	 */
+	int size(IntSupplier count) {
+
+		int n = size.get();
+
+		if(n < 0) {
+			n = count.getAsInt();
+			size.compareAndSet(-1, n);
+		}
+
+		return n;
+	}
+
+	/**
+	 * Loads whatever indexes were saved for the collection.
+	 *
+	 * @return false if the indexes are defined but can't be trusted,
+	 * in which case they are left empty and must be rebuilt.
+	 */
+	boolean load() {
+
+		File[] files = indexDirectory.listFiles( (dir,name) -> name.endsWith(DOT_IDX) || name.endsWith(DOT_SORTED) || name.endsWith(DOT_TEXT) );
+
+		if(files == null) {
+			return true;
+		}
+
+		boolean trusted = !new File(indexDirectory, DIRTY).exists();
+
+		for(File f : files) {
+
+			String suffix = f.getName().substring(f.getName().lastIndexOf('.'));
+
+			String field = f.getName().substring(0, f.getName().length() - suffix.length());
+
+			HashIndex index = newIndex(field, suffix);
+
+			if(trusted) {
+				try {
+					if(index instanceof TextIndex) {
+						try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+							((TextIndex) index).read(in);
+						}
+						((TextIndex) index).setFilled(true);
+					} else {
+						index.setEntries( objectMapper.readValue(f, new TypeReference<Map<String,TreeSet<String>>>() {}) );
+					}
+				} catch (IOException e) {
+					// half written, most likely
+					trusted = false;
+				}
+			}
+
+			hashIndexes.put(field, index);
+		}
+
+		return trusted;
+	}
+
+	/**
+	 * Refills every index from scratch, by feeding it each object in
+	 * the collection.
+	 *
+	 * @param scan something that passes every object in the collection to a consumer
+	 */
+	void rebuild(Consumer<Consumer<JsonNode>> scan) {
+
+		hashIndexes.values().forEach(HashIndex::clear);
+
+		size.set(-1);
+
+		int[] count = { 0 };
+
+		scan.accept( row -> {
+			add(row);
+			count[0]++;
+		});
+
+		size.set(count[0]);
+
+		hashIndexes.values().forEach(index -> {
+			if(index instanceof TextIndex) {
+				((TextIndex) index).setFilled(true);
+			}
+		});
+
+		save();
+	}
+
+	/**
+	 * Creates a new index and fills it from the collection.
+	 *
+	 * @param field
+	 * @param sorted whether to keep values in order, for range queries
+	 * @param scan something that passes every object in the collection to a consumer
+	 */
+	void define(String field, boolean sorted, Consumer<Consumer<JsonNode>> scan) {
+
+		HashIndex index = sorted ? new SortedIndex(field) : new HashIndex(field);
+
+		int[] count = { 0 };
+
+		scan.accept( row -> {
+			if(row.has(DatabaseService.ID)) {
+				index.add(row.get(DatabaseService.ID).asText(), row);
+			}
+			count[0]++;
+		});
+
+		size.set(count[0]);
+
+		hashIndexes.put(field, index);
+
+		deleteFiles(field);
+		save(index);
+	}
+
+	/**
+	 * Creates a new full-text index, empty, to be filled by fill(). It's
+	 * kept up to date with changes meanwhile, but until it's filled, the
+	 * indexes count as changed, so that if the process dies first, they're
+	 * rebuilt next time.
+	 *
+	 * @param field
+	 * @return
+	 */
+	TextIndex defineText(String field) {
+
+		TextIndex index = new TextIndex(field);
+
+		index.trackChanges();
+
+		hashIndexes.put(field, index);
+
+		deleteFiles(field);
+		changing();
+
+		return index;
+	}
+
+	/**
+	 * Fills a new full-text index from the collection, unless it's stopped,
+	 * or the index is dropped or replaced first.
+	 *
+	 * @param index
+	 * @param scan something that passes every object in the collection to a consumer
+	 * @param stopped
+	 * @return how many objects were indexed
+	 */
+	int fill(TextIndex index, Consumer<Consumer<JsonNode>> scan, BooleanSupplier stopped) {
+
+		int[] count = { 0 };
+
+		scan.accept( row -> {
+			if(stopped.getAsBoolean() || hashIndexes.get(index.getField()) != index) {
+				throw new CancellationException();
+			}
+			if(row.has(DatabaseService.ID)) {
+				index.fill(row.get(DatabaseService.ID).asText(), row);
+				count[0]++;
+			}
+		});
+
+		index.setFilled(true);
+
+		synchronized(this) {
+			save(index);
+		}
+
+		return count[0];
+	}
+
+	boolean drop(String field) {
+		HashIndex removed = hashIndexes.remove(field);
+		if(hashIndexes.isEmpty()) {
+			// nothing will keep it up to date now
+			size.set(-1);
+		}
+		deleteFiles(field);
+		return removed != null;
+	}
+
+	private void deleteFiles(String field) {
+		new File(indexDirectory, field + DOT_IDX).delete();
+		new File(indexDirectory, field + DOT_SORTED).delete();
+		new File(indexDirectory, field + DOT_TEXT).delete();
+	}
+
+	boolean isSorted(String field) {
+		return hashIndexes.get(field) instanceof SortedIndex;
+	}
+
+	boolean isText(String field) {
+		return hashIndexes.get(field) instanceof TextIndex;
+	}
+
+	TextIndex getTextIndex(String field) {
+		HashIndex index = hashIndexes.get(field);
+		return index instanceof TextIndex ? (TextIndex) index : null;
+	}
+
+	/**
+	 * Finds the ids of every object that could possibly match the query,
+	 * by intersecting what the indexes say about each of its fields and 
+	 * each of its $ands, and taking the union of what they say about every
+	 * part of an $or.
+	 *
+	 * @param params
+	 * @return null if the indexes can't narrow it down, meaning the caller has to scan
+	 */
+	NavigableSet<String> candidates(JsonNode params) {
+
+		NavigableSet<String> result = null;
+
+		Iterator<Entry<String, JsonNode>> i = params.fields();
+
+		while(i.hasNext()) {
+			Entry<String, JsonNode> e = i.next();
+
+			NavigableSet<String> ids = null;
+
+			switch(e.getKey()) {
+			case QueryMatcher.AND:
+				for(JsonNode query : e.getValue()) {
+					ids = HashIndex.intersect(ids, candidates(query));
+				}
+				break;
+			case QueryMatcher.OR:
+				ids = new TreeSet<>();
+				for(JsonNode query : e.getValue()) {
+					NavigableSet<String> some = candidates(query);
+					
+					// anything could match this part, so anything could match the $or
+					if(some == null) {
+						ids = null;
+						break;
+					}
+					ids.addAll(some);
+				}
+				break;
+			default:
+				HashIndex index = hashIndexes.get(e.getKey());
+
+				if(index != null) {
+					ids = index.candidates(e.getValue());
+				}
+			}
+
+			result = HashIndex.intersect(result, ids);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Must be called before the collection's files are changed, so that a
+	 * crash part way through leaves the indexes marked as untrustworthy.
+	 */
+	synchronized void changing() {
+		if(!dirty && !isEmpty()) {
+			try {
+				indexDirectory.mkdirs();
+				new File(indexDirectory, DIRTY).createNewFile();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			dirty = true;
+		}
+	}
+
+	void add(JsonNode row) {
+		if(row != null && row.has(DatabaseService.ID)) {
+			String id = row.get(DatabaseService.ID).asText();
+			hashIndexes.values().forEach(index -> index.add(id, row));
+			size.getAndUpdate(n -> n < 0 ? n : n + 1);
+		}
+	}
+
+	void remove(String id, JsonNode row) {
+		if(row != null) {
+			hashIndexes.values().forEach(index -> index.remove(id, row));
+			size.getAndUpdate(n -> n <= 0 ? n : n - 1);
+		}
+	}
+
+	void clear() {
+		hashIndexes.values().forEach(HashIndex::clear);
+	}
+
+	/**
+	 * Writes every index to disk and clears the dirty marker, unless a
+	 * full-text index is still being filled, which isn't written, and
+	 * leaves the marker until it is.
+	 *
+	 * Changes made while this is running may or may not be included,
+	 * so it is best called when nothing else is writing to the collection.
+	 */
+	synchronized void save() {
+
+		boolean filling = false;
+
+		for(HashIndex index : hashIndexes.values()) {
+			if(index instanceof TextIndex && !((TextIndex) index).isFilled()) {
+				filling = true;
+			} else {
+				save(index);
+			}
+		}
+
+		if(!filling) {
+			new File(indexDirectory, DIRTY).delete();
+
+			dirty = false;
+		}
+	}
+
+	private void save(HashIndex index) {
+		indexDirectory.mkdirs();
+
+		try {
+			if(index instanceof TextIndex) {
+				try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(indexDirectory, index.getField() + DOT_TEXT))))) {
+					((TextIndex) index).write(out);
+				}
+			} else {
+				objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT)
+					.writeValue(new File(indexDirectory, index.getField() + (index instanceof SortedIndex ? DOT_SORTED : DOT_IDX)), index.getEntries());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static HashIndex newIndex(String field, String suffix) {
+		switch(suffix) {
+		case DOT_SORTED:
+			return new SortedIndex(field);
+		case DOT_TEXT:
+			return new TextIndex(field);
+		default:
+			return new HashIndex(field);
+		}
+	}
+
+	synchronized boolean isDirty() {
+		return dirty;
+	}
+
+}
@@ -0,0 +1,236 @@
+package com.adaptershack.jeffdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Reads every item of a collection, either one at a time on the calling
+ * thread, or in batches split across a pool of worker threads.
+ * 
+ * Either way, whatever passes the filter is handed to the consumer on
+ * the calling thread, in the same order as the items were given. Only the
+ * reader and the filter run on the workers, so they must be thread safe
+ * when scanning in parallel; the consumer need not be.
+ * 
+ * @author Jeff
+ *
+ */
+class CollectionScanner {
+
+	private ExecutorService executor;
+	
+	private boolean ownExecutor;
+	
+	private int threads = 1;
+	
+	private int batchSize = 1024;
+	
+	private boolean virtual;
+
+	int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * Sets how many threads to scan with, creating a fork-join pool
+	 * of that size, or if virtual, splitting each batch into that many 
+	 * virtual threads. One means scan sequentially on the calling thread.
+	 * 
+	 * @param threads
+	 */
+	synchronized void setThreads(int threads) {
+		close();
+		
+		this.threads = Math.max(1, threads);
+
+		if(this.threads > 1) {
+			executor = virtual ? Executors.newVirtualThreadPerTaskExecutor() : new ForkJoinPool(this.threads);
+			ownExecutor = true;
+		}
+	}
+	
+	boolean isVirtual() {
+		return virtual;
+	}
+	
+	/**
+	 * Sets whether to scan on virtual threads rather than a pool of 
+	 * platform ones. Reading is mostly waiting on the disk, so this lets
+	 * many more reads be in flight without tying up a thread each.
+	 * 
+	 * @param virtual
+	 */
+	synchronized void setVirtual(boolean virtual) {
+		this.virtual = virtual;
+		
+		if(ownExecutor) {
+			setThreads(threads);
+		}
+	}
+	
+	/**
+	 * Scans using someone else's executor, splitting each batch into
+	 * the specified number of tasks.
+	 * 
+	 * @param executor
+	 * @param threads
+	 */
+	synchronized void setExecutor(ExecutorService executor, int threads) {
+		close();
+
+		this.executor = executor;
+		this.threads = Math.max(1, threads);
+	}
+
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+	
+	/**
+	 * Reads each item, and passes the results for which the filter returns true 
+	 * (or all of them, if there is no filter) to the consumer. Items for which
+	 * the reader returns null are skipped.
+	 * 
+	 * @param <T>
+	 * @param <R>
+	 * @param items
+	 * @param reader
+	 * @param filter
+	 * @param consumer
+	 */
+	<T,R> void scan(T[] items, Function<T,R> reader, Predicate<? super R> filter, Consumer<? super R> consumer) {
+		scan(items, reader, filter, consumer, 0);
+	}
+	
+	/**
+	 * Like scan, but stops as soon as the consumer has been given limit results.
+	 * A parallel scan starts with small batches and works up, so as not
+	 * to read much more than it has to.
+	 * 
+	 * @param <T>
+	 * @param <R>
+	 * @param items
+	 * @param reader
+	 * @param filter
+	 * @param consumer
+	 * @param limit maximum number of results, or zero for no limit
+	 * @return the item whose result was the last one consumed, if the limit was
+	 * reached, or null if the scan ran out of items first
+	 */
+	<T,R> T scan(T[] items, Function<T,R> reader, Predicate<? super R> filter, Consumer<? super R> consumer, int limit) {
+		
+		ExecutorService executor;
+		int threads;
+		
+		synchronized(this) {
+			executor = this.executor;
+			threads = this.threads;
+		}
+		
+		int count = 0;
+		
+		if(executor == null || items.length < 2) {
+			
+			for(T item : items) {
+				R row = read(item, reader, filter);
+				
+				if(row != null) {
+					consumer.accept(row);
+					
+					if(++count == limit) {
+						return item;
+					}
+				}
+			}
+			
+			return null;
+		}
+		
+		int batch = limit > 0 ? Math.min(batchSize, Math.max(threads, limit)) : batchSize;
+		
+		for(int start = 0; start < items.length; start += batch, batch = Math.min(batchSize, batch * 2)) {
+			
+			int end = Math.min(items.length, start + batch);
+			
+			Object[] results = new Object[end - start];
+			
+			int chunk = (results.length + threads - 1) / threads;
+			
+			List<Callable<Void>> tasks = new ArrayList<>();
+			
+			for(int from = start; from < end; from += chunk) {
+				
+				int first = from, last = Math.min(end, from + chunk), offset = start;
+				
+				tasks.add( () -> {
+					for(int i = first; i < last; i++) {
+						results[i - offset] = read(items[i], reader, filter);
+					}
+					return null;
+				});
+			}
+			
+			invokeAll(executor, tasks);
+			
+			for(int i = 0; i < results.length; i++) {
+				if(results[i] != null) {
+					@SuppressWarnings("unchecked")
+					R r = (R) results[i];
+					consumer.accept(r);
+					
+					if(++count == limit) {
+						return items[start + i];
+					}
+				}
+			}
+		}
+		
+		return null;
+	}
+	
+	synchronized void close() {
+		if(ownExecutor) {
+			executor.shutdown();
+		}
+		executor = null;
+		ownExecutor = false;
+		threads = 1;
+	}
+	
+	private static <T,R> R read(T item, Function<T,R> reader, Predicate<? super R> filter) {
+		R row = reader.apply(item);
+		return row != null && (filter == null || filter.test(row)) ? row : null;
+	}
+	
+	private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) {
+		try {
+			for(Future<Void> f : executor.invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if(e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+}
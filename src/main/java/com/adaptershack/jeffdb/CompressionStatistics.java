@@ -0,0 +1,85 @@
+package com.adaptershack.jeffdb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How well objects in one collection compress, and what it costs to
+ * read them back.
+ * 
+ * @author Jeff
+ *
+ */
+public class CompressionStatistics {
+
+	final LongAdder compressed = new LongAdder();
+	
+	final LongAdder bytesIn = new LongAdder();
+	
+	final LongAdder bytesOut = new LongAdder();
+	
+	final LongAdder decompressed = new LongAdder();
+	
+	final LongAdder decompressionNanos = new LongAdder();
+	
+	/**
+	 * Number of objects compressed when written.
+	 * 
+	 * @return
+	 */
+	public long getCompressed() {
+		return compressed.sum();
+	}
+
+	/**
+	 * Their total size before compression.
+	 * 
+	 * @return
+	 */
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	/**
+	 * Their total size after.
+	 * 
+	 * @return
+	 */
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+	
+	/**
+	 * Compressed size as a fraction of uncompressed size; smaller is better.
+	 * 
+	 * @return
+	 */
+	public double getRatio() {
+		long in = getBytesIn();
+		return in == 0 ? 0 : (double) getBytesOut() / in;
+	}
+
+	/**
+	 * Number of compressed objects read.
+	 * 
+	 * @return
+	 */
+	public long getDecompressed() {
+		return decompressed.sum();
+	}
+
+	public long getDecompressionNanos() {
+		return decompressionNanos.sum();
+	}
+	
+	public double getAverageDecompressionNanos() {
+		long decompressed = getDecompressed();
+		return decompressed == 0 ? 0 : (double) getDecompressionNanos() / decompressed;
+	}
+
+	@Override
+	public String toString() {
+		return "compressed=" + getCompressed() + ", ratio=" + getRatio() 
+			+ ", decompressed=" + getDecompressed() + ", averageDecompressionNanos=" + getAverageDecompressionNanos();
+	}
+	
+}
@@ -1,29 +1,103 @@
 package com.adaptershack.jeffdb;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 @RestController
 public class Controller {
 	
+	/*
+	 * Value of the "stream" parameter asking for one object per line,
+	 * rather than a Json array.
+	 */
+	static final String NDJSON = "ndjson";
+	
+	/*
+	 * Response header carrying the cursor for the next page.
+	 */
+	static final String NEXT_CURSOR = "Next-Cursor";
+	
+	/*
+	 * Header a Server-Sent Events client sends when it reconnects, and
+	 * how many milliseconds between comments when there are no changes.
+	 */
+	static final String LAST_EVENT_ID = "Last-Event-ID";
+	
+	static final long CHANGES_HEARTBEAT = 30_000;
+	
 	@Autowired
 	DatabaseService db;
 
+	ResponseEntity<JsonNode> get(String collection, String id) {
+		return get(collection, id, null, null);
+	}
+	
+	ResponseEntity<JsonNode> get(String collection, String id, String ifNoneMatch) {
+		return get(collection, id, ifNoneMatch, null);
+	}
+	
+	/*
+	 * Objects come with an ETag, from the version the storage engine keeps,
+	 * so a client that already has the current version can be told so
+	 * without it being read at all.
+	 * 
+	 * Here and in listings and searches, ?fields=a,b returns only those 
+	 * fields, and the id.
+	 */
 	@RequestMapping(value="/{collection}/{id}",method=RequestMethod.GET,produces="application/json")	
-	ResponseEntity<JsonNode> get(@PathVariable String collection, @PathVariable String id) {
+	ResponseEntity<JsonNode> get(@PathVariable String collection, @PathVariable String id,
+			@RequestHeader(value=HttpHeaders.IF_NONE_MATCH,required=false) String ifNoneMatch,
+			@RequestParam(required=false) List<String> fields) {
+		
+		String version = db.version(collection, id);
+		
+		if(version == null) {
+			return ResponseEntity.notFound().build();
+		}
+		
+		if(ifNoneMatch != null) {
+			List<String> versions = versions(ifNoneMatch, true);
+			
+			if(versions.contains(version) || versions.contains(DatabaseService.ANY_VERSION)) {
+				return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag(version)).build();
+			}
+		}
 		
-		JsonNode row = db.get(collection, id);
+		JsonNode row = db.get(collection, id, fields);
 		
 		if(row != null ) {
-			return ResponseEntity.ok(row);
+			return ResponseEntity.ok().eTag(etag(version)).body(row);
 		} else {
 			return ResponseEntity.notFound().build();
 		}
@@ -35,14 +109,143 @@ public class Controller {
 		return db.insert(collection, row);
 	}
 	
+	/*
+	 * Inserts a Json array of objects, or newline delimited Json, as it's 
+	 * read, answering with what became of each one, written out as each 
+	 * batch is stored. Should the input stop making sense partway, whatever
+	 * came before has been stored, and the last result says what was wrong,
+	 * since by then it's too late for a 400.
+	 */
+	@RequestMapping(value="/{collection}/_bulk",method=RequestMethod.POST,consumes={"application/json","application/x-ndjson"},produces="application/json")	
+	public ResponseEntity<StreamingResponseBody> bulk(@PathVariable String collection, InputStream body) throws IOException {
+		
+		db.checkRegex(collection);
+		
+		MappingIterator<JsonNode> rows;
+		
+		try {
+			rows = db.getObjectMapper().readerFor(JsonNode.class).readValues(body);
+		} catch (IOException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+		}
+		
+		return stream(null, (Consumer<BulkResult> results) -> {
+			
+			// as opposed to the response not being writable
+			IOException[] unreadable = { null };
+			
+			Iterator<ObjectNode> objects = new Iterator<ObjectNode>() {
+
+				@Override
+				public boolean hasNext() {
+					try {
+						return rows.hasNextValue();
+					} catch (IOException e) {
+						unreadable[0] = e;
+						throw new UncheckedIOException(e);
+					}
+				}
+
+				@Override
+				public ObjectNode next() {
+					try {
+						JsonNode row = rows.nextValue();
+						return row.isObject() ? (ObjectNode) row : null;
+					} catch (IOException e) {
+						unreadable[0] = e;
+						throw new UncheckedIOException(e);
+					}
+				}
+			};
+			
+			int[] count = { 0 };
+			
+			try {
+				db.insertAll(collection, () -> objects, result -> {
+					results.accept(result);
+					count[0]++;
+				});
+			} catch (UncheckedIOException e) {
+				if(e.getCause() != unreadable[0]) {
+					throw e;
+				}
+				results.accept(new BulkResult(count[0], null, "Unreadable: " + e.getCause().getMessage()));
+			} finally {
+				try {
+					rows.close();
+				} catch (IOException e) {
+					// nothing to be done
+				}
+			}
+		});
+	}
+	
+	public JsonNode listAll(String collection) {
+		return listAll(collection, null);
+	}
+	
 	@RequestMapping(value="/{collection}",method=RequestMethod.GET,produces="application/json")	
-	public JsonNode listAll(@PathVariable String collection) {
-		return db.listAll(collection);
+	public JsonNode listAll(@PathVariable String collection, @RequestParam(required=false) List<String> fields) {
+		return db.listAll(collection, fields);
+	}
+	
+	/*
+	 * Adding ?limit to a listing or search returns at most that many objects,
+	 * with a Next-Cursor header to pass back as ?cursor for the next page.
+	 */
+	
+	public ResponseEntity<List<JsonNode>> listPage(String collection, int limit, String cursor) {
+		return listPage(collection, limit, cursor, null);
+	}
+	
+	@RequestMapping(value="/{collection}",method=RequestMethod.GET,produces="application/json",params={"limit","!stream"})	
+	public ResponseEntity<List<JsonNode>> listPage(@PathVariable String collection, 
+			@RequestParam int limit, @RequestParam(required=false) String cursor, @RequestParam(required=false) List<String> fields) {
+		return page(db.listAll(collection, fields, limit, cursor));
+	}
+	
+	/*
+	 * Adding ?stream to a listing or search writes each object as it's read, 
+	 * instead of building the whole result first; ?stream=ndjson writes 
+	 * them one per line rather than as an array. Limit and cursor work 
+	 * here too, but no Next-Cursor comes back, since the headers are 
+	 * sent before the end of the page is known.
+	 */
+	
+	public ResponseEntity<StreamingResponseBody> streamAll(String collection, String stream, int limit, String cursor) {
+		return streamAll(collection, stream, limit, cursor, null);
+	}
+	
+	@RequestMapping(value="/{collection}",method=RequestMethod.GET,produces={"application/json","application/x-ndjson"},params="stream")	
+	public ResponseEntity<StreamingResponseBody> streamAll(@PathVariable String collection, @RequestParam String stream,
+			@RequestParam(defaultValue="0") int limit, @RequestParam(required=false) String cursor,
+			@RequestParam(required=false) List<String> fields) {
+		
+		db.checkRegex(collection);
+		
+		return stream(stream, (Consumer<JsonNode> c) -> db.readAll(collection, fields, limit, cursor, c));
 	}
 	
+	public ResponseEntity<JsonNode> delete(String collection, String id) {
+		return delete(collection, id, null);
+	}
+	
+	/*
+	 * With If-Match, only deletes if the object is still that version.
+	 */
 	@RequestMapping(value="/{collection}/{id}",method=RequestMethod.DELETE,produces="application/json")	
-	public ResponseEntity<JsonNode> delete(@PathVariable String collection, @PathVariable String id) {
+	public ResponseEntity<JsonNode> delete(@PathVariable String collection, @PathVariable String id,
+			@RequestHeader(value=HttpHeaders.IF_MATCH,required=false) String ifMatch) {
 	
+		if(ifMatch != null) {
+			for(String version : versions(ifMatch, false)) {
+				if(db.deleteIfMatch(collection, id, version)) {
+					return ResponseEntity.ok().build();
+				}
+			}
+			return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
+		}
+		
 		if( db.delete(collection, id)) {
 			return ResponseEntity.ok().build();
 		} else {
@@ -50,19 +253,75 @@ public class Controller {
 		}
 	}
 
+	public JsonNode put(String collection, String id, ObjectNode row) {
+		return put(collection, id, row, null).getBody();
+	}
 	
+	/*
+	 * With If-Match, only updates if the object is still that version.
+	 * No ETag comes back, since by the time it could be looked up someone
+	 * else might have changed the object again.
+	 */
 	@RequestMapping(value="/{collection}/{id}",method=RequestMethod.PUT,produces="application/json",consumes="application/json")	
-	public JsonNode put(@PathVariable String collection, @PathVariable String id, @RequestBody ObjectNode row) {
-		return db.update(collection, id, row);
+	public ResponseEntity<JsonNode> put(@PathVariable String collection, @PathVariable String id, @RequestBody ObjectNode row,
+			@RequestHeader(value=HttpHeaders.IF_MATCH,required=false) String ifMatch) {
+		
+		if(ifMatch != null) {
+			for(String version : versions(ifMatch, false)) {
+				JsonNode updated = db.updateIfMatch(collection, id, version, row);
+				if(updated != null) {
+					return ResponseEntity.ok(updated);
+				}
+			}
+			return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
+		}
+		
+		return ResponseEntity.ok(db.update(collection, id, row));
 	}
 		
+	public JsonNode postSearch(String collection, ObjectNode params) {
+		return postSearch(collection, params, null);
+	}
+	
 	@RequestMapping(value="/{collection}/search",method=RequestMethod.POST,consumes="application/json",produces="application/json")	
-	public JsonNode postSearch(@PathVariable String collection, @RequestBody ObjectNode params) {
+	public JsonNode postSearch(@PathVariable String collection, @RequestBody ObjectNode params, @RequestParam(required=false) List<String> fields) {
+
+		return db.listMatching(collection,params,fields);
+		
+	}
+
+	public ResponseEntity<List<JsonNode>> searchPage(String collection, ObjectNode params, int limit, String cursor) {
+		return searchPage(collection, params, limit, cursor, null);
+	}
+	
+	@RequestMapping(value="/{collection}/search",method=RequestMethod.POST,consumes="application/json",produces="application/json",params={"limit","!stream"})	
+	public ResponseEntity<List<JsonNode>> searchPage(@PathVariable String collection, @RequestBody ObjectNode params,
+			@RequestParam int limit, @RequestParam(required=false) String cursor, @RequestParam(required=false) List<String> fields) {
+
+		return page(db.listMatching(collection, params, fields, limit, cursor));
+		
+	}
+
+	public ResponseEntity<StreamingResponseBody> streamSearch(String collection, ObjectNode params, String stream, int limit, String cursor) {
+		return streamSearch(collection, params, stream, limit, cursor, null);
+	}
+	
+	@RequestMapping(value="/{collection}/search",method=RequestMethod.POST,consumes="application/json",produces={"application/json","application/x-ndjson"},params="stream")	
+	public ResponseEntity<StreamingResponseBody> streamSearch(@PathVariable String collection, @RequestBody ObjectNode params, @RequestParam String stream,
+			@RequestParam(defaultValue="0") int limit, @RequestParam(required=false) String cursor,
+			@RequestParam(required=false) List<String> fields) {
 
-		return db.listMatching(collection,params);
+		db.checkRegex(collection);
+		
+		return stream(stream, (Consumer<JsonNode> c) -> db.readMatching(collection, params, fields, limit, cursor, c));
 		
 	}
 
+	@RequestMapping(value="/{collection}/aggregate",method=RequestMethod.POST,consumes="application/json",produces="application/json")	
+	public ObjectNode aggregate(@PathVariable String collection, @RequestBody ObjectNode spec) {
+		return db.aggregate(collection, spec);
+	}
+	
 	@RequestMapping(value="/{collection}/search",method=RequestMethod.DELETE,produces="application/json")	
 	public ResponseEntity<JsonNode> deleteSearch(@PathVariable String collection, @RequestBody ObjectNode params) {
 
@@ -74,6 +333,117 @@ public class Controller {
 		
 	}
 	
+	@RequestMapping(value="/{collection}/_indexes",method=RequestMethod.GET,produces="application/json")	
+	public Set<String> getIndexes(@PathVariable String collection) {
+		return db.getIndexes(collection);
+	}
+
+	public ResponseEntity<JsonNode> createIndex(String collection, String field) {
+		return createIndex(collection, field, null);
+	}
+
+	@RequestMapping(value="/{collection}/_indexes/{field}",method=RequestMethod.PUT,produces="application/json")	
+	public ResponseEntity<JsonNode> createIndex(@PathVariable String collection, @PathVariable String field, @RequestParam(required=false) String type) {
+		
+		if(type != null && !type.equals("sorted") && !type.equals("hash") && !type.equals("text")) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown index type " + type);
+		}
+		
+		// a full-text index is filled in the background
+		if("text".equals(type)) {
+			db.createTextIndex(collection, field);
+			return ResponseEntity.accepted().build();
+		}
+		
+		db.createIndex(collection, field, "sorted".equals(type));
+		return ResponseEntity.ok().build();
+	}
+	
+	@ExceptionHandler(IllegalArgumentException.class)
+	public ResponseEntity<String> badRequest(IllegalArgumentException e) {
+		return ResponseEntity.badRequest().body(e.getMessage());
+	}
+
+	@RequestMapping(value="/{collection}/_indexes/{field}",method=RequestMethod.DELETE,produces="application/json")	
+	public ResponseEntity<JsonNode> dropIndex(@PathVariable String collection, @PathVariable String field) {
+
+		if( db.dropIndex(collection, field)) {
+			return ResponseEntity.ok().build();
+		} else {
+			return ResponseEntity.notFound().build();
+		}
+		
+	}
+	
+	/*
+	 * Sets the collection's levels of shards and moves its objects into them, 
+	 * which for a big collection takes a while; it's usable meanwhile.
+	 */
+	@RequestMapping(value="/{collection}/_shards/{levels}",method=RequestMethod.PUT,produces="application/json")	
+	public ObjectNode reshard(@PathVariable String collection, @PathVariable int levels) {
+		
+		db.setShards(collection, levels);
+		
+		ObjectNode result = db.getObjectMapper().createObjectNode();
+		
+		try {
+			result.put("moved", db.reshard(collection));
+		} catch (IllegalStateException e) {
+			throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+		}
+		
+		return result;
+	}
+	
+	/*
+	 * Changes to the collection as Server-Sent Events, each one's data a
+	 * Json change and its id the sequence number, starting after the one 
+	 * given, or the Last-Event-ID a reconnecting client sends, or else from
+	 * now. A comment is sent every so often when there's nothing else,
+	 * so that a client that's gone away is noticed.
+	 */
+	@RequestMapping(value="/{collection}/_changes",method=RequestMethod.GET,produces="text/event-stream")	
+	public SseEmitter changes(@PathVariable String collection, @RequestParam(required=false) Long since,
+			@RequestHeader(value=LAST_EVENT_ID,required=false) Long lastEventId) {
+		
+		ObjectWriter writer = db.getObjectMapper().writer().without(SerializationFeature.INDENT_OUTPUT);
+		
+		SseEmitter emitter = new SseEmitter(0L);
+		
+		Long from = since != null ? since : lastEventId;
+		
+		ChangeSubscription subscription;
+		
+		try {
+			subscription = db.addChangeListener(collection, from != null ? from : db.getChangeSequence(),
+				change -> {
+					try {
+						emitter.send(SseEmitter.event()
+								.id(Long.toString(change.getSequence()))
+								.data(writer.writeValueAsString(change)));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				},
+				() -> {
+					try {
+						emitter.send(SseEmitter.event().comment(""));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				},
+				CHANGES_HEARTBEAT);
+		} catch (IllegalStateException e) {
+			throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+		}
+		
+		emitter.onCompletion(subscription::close);
+		emitter.onTimeout(subscription::close);
+		emitter.onError(e -> subscription.close());
+		
+		return emitter;
+	}
+	
 	@RequestMapping(value="/{collection}",method=RequestMethod.DELETE,produces="application/json")	
 	public ResponseEntity<JsonNode> deleteCollection(@PathVariable String collection) {
 
@@ -85,6 +455,95 @@ public class Controller {
 		
 	}
 	
+	private static String etag(String version) {
+		return "\"" + version + "\"";
+	}
+	
+	/*
+	 * The versions listed in an If-Match or If-None-Match header, including 
+	 * weak ones only if asked, since If-Match has to ignore them.
+	 */
+	private static List<String> versions(String header, boolean weak) {
+		
+		List<String> versions = new ArrayList<>();
+		
+		for(String tag : header.split(",")) {
+			
+			tag = tag.trim();
+			
+			if(tag.equals(DatabaseService.ANY_VERSION)) {
+				versions.add(DatabaseService.ANY_VERSION);
+				continue;
+			}
+			
+			if(tag.startsWith("W/")) {
+				if(!weak) {
+					continue;
+				}
+				tag = tag.substring(2);
+			}
+			
+			if(tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+				versions.add(tag.substring(1, tag.length() - 1));
+			}
+		}
+		
+		return versions;
+	}
+	
+	private <T> ResponseEntity<List<T>> page(Page<T> page) {
+		
+		ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+		
+		if(page.getNext() != null) {
+			response.header(NEXT_CURSOR, page.getNext());
+		}
+		
+		return response.body(page.getItems());
+	}
+	
+	/*
+	 * Writes whatever the reader produces straight to the response, either
+	 * as newline delimited Json or as a Json array.
+	 */
+	private <T> ResponseEntity<StreamingResponseBody> stream(String format, Consumer<Consumer<T>> reader) {
+		
+		boolean ndjson = NDJSON.equalsIgnoreCase(format);
+		
+		StreamingResponseBody body = out -> {
+			
+			ObjectWriter objectWriter = db.getObjectMapper().writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			
+			boolean[] written = { false };
+			
+			try (SequenceWriter writer = ndjson
+					? objectWriter.without(SerializationFeature.INDENT_OUTPUT).withRootValueSeparator("\n").writeValues(out)
+					: objectWriter.writeValuesAsArray(out)) {
+				
+				reader.accept(row -> {
+					try {
+						writer.write(row);
+						written[0] = true;
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+				
+				writer.flush();
+				
+				if(ndjson && written[0]) {
+					out.write('\n');
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		};
+		
+		return ResponseEntity.ok()
+				.contentType(ndjson ? MediaType.APPLICATION_NDJSON : MediaType.APPLICATION_JSON)
+				.body(body);
+	}
+	
 	
 	
 }
@@ -0,0 +1,261 @@
+package com.adaptershack.jeffdb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Times operations and counts the work done by scans, per collection, in
+ * a Micrometer registry:
+ *
+ *   jeffdb.operations      timer, tagged with collection and operation
+ *   jeffdb.objects.read    objects read from storage
+ *   jeffdb.bytes.read      their size as stored
+ *   jeffdb.objects.parsed  objects parsed, or partly parsed for a projection
+ *   jeffdb.objects.matched objects a scan passed on
+ *
+ * Operations made of others are timed as well as their parts; for example
+ * a deleteMatching that can't use an index is also a scan, and each object
+ * it deletes is also a delete.
+ *
+ * Without a registry, which is how it starts, nothing is recorded, and all
+ * it costs is a check that there isn't one. Meters are made the first time
+ * each collection and operation is seen, and kept, so recording one is
+ * only a map lookup on top of what Micrometer does.
+ *
+ * @author Jeff
+ *
+ */
+class DatabaseMetrics {
+
+	static final String OPERATIONS = "jeffdb.operations";
+	static final String OBJECTS_READ = "jeffdb.objects.read";
+	static final String BYTES_READ = "jeffdb.bytes.read";
+	static final String OBJECTS_PARSED = "jeffdb.objects.parsed";
+	static final String OBJECTS_MATCHED = "jeffdb.objects.matched";
+
+	static final String COLLECTION = "collection";
+	static final String OPERATION = "operation";
+
+	/*
+	 * Returned by start() when not timing, since any long could be a time.
+	 */
+	static final long NOT_TIMING = Long.MIN_VALUE;
+
+	enum Operation {
+		GET("get"),
+		INSERT("insert"),
+		BULK("bulk"),
+		DELETE("delete"),
+		SCAN("scan"),
+		SEARCH("search"),
+		DELETE_MATCHING("deleteMatching"),
+		ARCHIVE("archive"),
+		AGGREGATE("aggregate");
+
+		final String tag;
+
+		Operation(String tag) {
+			this.tag = tag;
+		}
+	}
+
+	private volatile MeterRegistry registry;
+
+	private volatile boolean histograms = true;
+
+	private final Map<String,CollectionMeters> collections = new ConcurrentHashMap<>();
+
+	private class CollectionMeters {
+
+		final MeterRegistry registry;
+
+		final String collection;
+
+		final AtomicReferenceArray<Timer> timers = new AtomicReferenceArray<>(Operation.values().length);
+
+		final Counter read;
+		final Counter bytes;
+		final Counter parsed;
+		final Counter matched;
+
+		CollectionMeters(MeterRegistry registry, String collection) {
+			this.registry = registry;
+			this.collection = collection;
+
+			read = counter(OBJECTS_READ, "Objects read from storage", null);
+			bytes = counter(BYTES_READ, "Size of objects read, as stored", "bytes");
+			parsed = counter(OBJECTS_PARSED, "Objects parsed, or partly parsed for a projection", null);
+			matched = counter(OBJECTS_MATCHED, "Objects passed on by scans", null);
+		}
+
+		Timer timer(Operation operation) {
+
+			Timer timer = timers.get(operation.ordinal());
+
+			if(timer == null) {
+				timer = Timer.builder(OPERATIONS)
+						.description("Time taken by database operations")
+						.tag(COLLECTION, collection)
+						.tag(OPERATION, operation.tag)
+						.publishPercentileHistogram(histograms)
+						.register(registry);
+
+				timers.set(operation.ordinal(), timer);
+			}
+
+			return timer;
+		}
+
+		private Counter counter(String name, String description, String unit) {
+			return Counter.builder(name)
+					.description(description)
+					.baseUnit(unit)
+					.tag(COLLECTION, collection)
+					.register(registry);
+		}
+
+		void remove() {
+
+			for(int i = 0; i < timers.length(); i++) {
+				Timer timer = timers.get(i);
+
+				if(timer != null) {
+					registry.remove(timer);
+				}
+			}
+
+			registry.remove(read);
+			registry.remove(bytes);
+			registry.remove(parsed);
+			registry.remove(matched);
+		}
+	}
+
+	boolean isEnabled() {
+		return registry != null;
+	}
+
+	/**
+	 * Starts recording in the registry, or with null, stops.
+	 *
+	 * @param registry
+	 */
+	synchronized void setRegistry(MeterRegistry registry) {
+
+		if(registry == this.registry) {
+			return;
+		}
+
+		forgetAll();
+
+		this.registry = registry;
+	}
+
+	boolean isHistograms() {
+		return histograms;
+	}
+
+	/**
+	 * Sets whether timers keep histogram buckets, from which percentiles
+	 * can be worked out, say by Prometheus, as well as a count and a total.
+	 * Only affects timers made after it's set.
+	 *
+	 * @param histograms
+	 */
+	void setHistograms(boolean histograms) {
+		this.histograms = histograms;
+	}
+
+	/**
+	 * The time to pass to stop(), or NOT_TIMING if there's no registry.
+	 *
+	 * @return
+	 */
+	long start() {
+		return registry == null ? NOT_TIMING : System.nanoTime();
+	}
+
+	void stop(Operation operation, String collection, long start) {
+
+		if(start == NOT_TIMING) {
+			return;
+		}
+
+		CollectionMeters meters = meters(collection);
+
+		if(meters != null) {
+			meters.timer(operation).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	void read(String collection, int bytes) {
+
+		CollectionMeters meters = meters(collection);
+
+		if(meters != null) {
+			meters.read.increment();
+			meters.bytes.increment(bytes);
+		}
+	}
+
+	void parsed(String collection) {
+
+		CollectionMeters meters = meters(collection);
+
+		if(meters != null) {
+			meters.parsed.increment();
+		}
+	}
+
+	void matched(String collection) {
+
+		CollectionMeters meters = meters(collection);
+
+		if(meters != null) {
+			meters.matched.increment();
+		}
+	}
+
+	/**
+	 * Removes the collection's meters from the registry, for when the
+	 * collection is deleted.
+	 *
+	 * @param collection
+	 */
+	void forget(String collection) {
+
+		CollectionMeters meters = collections.remove(collection);
+
+		if(meters != null) {
+			meters.remove();
+		}
+	}
+
+	void forgetAll() {
+		collections.keySet().forEach(this::forget);
+	}
+
+	private CollectionMeters meters(String collection) {
+
+		MeterRegistry r = registry;
+
+		if(r == null) {
+			return null;
+		}
+
+		CollectionMeters meters = collections.get(collection);
+
+		if(meters == null || meters.registry != r) {
+			meters = collections.compute(collection, (c, m) -> m != null && m.registry == r ? m : new CollectionMeters(r, c));
+		}
+
+		return meters;
+	}
+
+}
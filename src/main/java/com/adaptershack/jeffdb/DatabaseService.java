@@ -6,31 +6,50 @@ import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
 import java.util.function.Predicate;
 
-import org.apache.commons.beanutils.BeanUtils;
-import org.apache.commons.beanutils.PropertyUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.FileSystemUtils;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import com.adaptershack.jeffdb.DatabaseMetrics.Operation;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
 /**
  * Main implementation of all database CRUD functions.
  * 
@@ -63,6 +82,158 @@ public class DatabaseService {
 	@Value("${com.adaptershack.jeffdb.archive:archive}")
 	private String archiveName = "archive";
 	
+	/*
+	 * Which storage engine to use, if one isn't set directly,
+	 * and settings for the segment engine.
+	 */
+	@Value("${com.adaptershack.jeffdb.storage:files}")
+	private String storage = FileStorageEngine.NAME;
+	
+	@Value("${com.adaptershack.jeffdb.segments.size:67108864}")
+	private long segmentSize = 64L << 20;
+	
+	@Value("${com.adaptershack.jeffdb.segments.compaction:60000}")
+	private long compactionInterval = 60_000;
+	
+	@Value("${com.adaptershack.jeffdb.segments.mapped:268435456}")
+	private long maxMappedBytes = 256L << 20;
+	
+	/*
+	 * And for the file engine, whether to keep the ids of each collection
+	 * in memory, and how to notice changes made by anyone else.
+	 */
+	@Value("${com.adaptershack.jeffdb.files.manifest:false}")
+	private boolean manifest;
+	
+	@Value("${com.adaptershack.jeffdb.files.manifest.check:60000}")
+	private long manifestCheckInterval = 60_000;
+	
+	@Value("${com.adaptershack.jeffdb.files.manifest.watch:false}")
+	private boolean manifestWatch;
+	
+	/*
+	 * How many levels of shards new collections get with the file engine,
+	 * 0 meaning none, and for particular collections, where that differs.
+	 */
+	@Value("${com.adaptershack.jeffdb.files.shards:0}")
+	private int shards;
+	
+	private final Map<String,Integer> collectionShards = new ConcurrentHashMap<>();
+	
+	@Value("${com.adaptershack.jeffdb.bulk.batch:1000}")
+	private int bulkBatchSize = 1000;
+	
+	/*
+	 * How hard to try not to lose changes in a crash: "none" leaves it to 
+	 * the operating system, while "batch" and "always" keep a write-ahead log.
+	 */
+	@Value("${com.adaptershack.jeffdb.durability:none}")
+	private String durability = WriteAheadLog.NONE;
+	
+	@Value("${com.adaptershack.jeffdb.wal.window:2}")
+	private long walWindow = 2;
+	
+	@Value("${com.adaptershack.jeffdb.wal.records:1000}")
+	private int walRecords = 1000;
+	
+	@Value("${com.adaptershack.jeffdb.wal.size:67108864}")
+	private long walSize = 64L << 20;
+	
+	/*
+	 * What new objects are written as: "json", or binary "smile" or "cbor". 
+	 * Objects are read as whatever they were written as, so this can be 
+	 * changed at any time.
+	 */
+	@Value("${com.adaptershack.jeffdb.format:json}")
+	private String format = DocumentFormats.JSON;
+	
+	@Value("${com.adaptershack.jeffdb.format.convert:false}")
+	private boolean convertFormats;
+	
+	/*
+	 * Formats for particular collections, where they differ from the above.
+	 */
+	private final Map<String,String> collectionFormats = new ConcurrentHashMap<>();
+	
+	/*
+	 * Mappers for each format, made from objectMapper the first time they're needed.
+	 */
+	private volatile DocumentFormats formats;
+	
+	private ExecutorService converter;
+	
+	/*
+	 * Fills new full-text indexes.
+	 */
+	private ExecutorService indexer;
+	
+	/*
+	 * Whether to compress objects: "none" or "deflate", which is done after
+	 * they're serialized. Objects are uncompressed (or not) according to how
+	 * they were stored, so this too can be changed at any time.
+	 */
+	@Value("${com.adaptershack.jeffdb.compression:none}")
+	private String compression = DocumentCompression.NONE;
+	
+	@Value("${com.adaptershack.jeffdb.compression.level:1}")
+	private int compressionLevel = 1;
+	
+	@Value("${com.adaptershack.jeffdb.compression.threshold:128}")
+	private int compressionThreshold = 128;
+	
+	private final Map<String,String> collectionCompressions = new ConcurrentHashMap<>();
+	
+	private final Map<String,CompressionStatistics> compressionStatistics = new ConcurrentHashMap<>();
+	
+	private volatile StorageEngine storageEngine;
+	
+	/*
+	 * The storage engine, or the write-ahead log in front of it.
+	 */
+	private volatile StorageEngine engineInUse;
+	
+	/*
+	 * Secondary indexes, loaded lazily the first time each collection is touched.
+	 */
+	private final Map<String,CollectionIndexes> indexes = new ConcurrentHashMap<>();
+	
+	/*
+	 * Optional cache of objects read by id. Off unless given a size.
+	 */
+	private final DocumentCache cache = new DocumentCache();
+	
+	/*
+	 * Collections whose directories are known to be there, so they needn't 
+	 * be looked for every time; only kept along with the file engine's
+	 * manifest, since that's there to save going to the disk too.
+	 */
+	private final Set<String> collectionsMade = ConcurrentHashMap.newKeySet();
+	
+	/*
+	 * Reads collections either sequentially or in parallel.
+	 */
+	private final CollectionScanner scanner = new CollectionScanner();
+	
+	/*
+	 * So that changes to the same object, or to a whole collection, don't overlap.
+	 */
+	private final DocumentLocks locks = new DocumentLocks();
+	
+	/*
+	 * Timings and counts, recorded in the registry if there is one, and
+	 * metrics haven't been turned off.
+	 */
+	private final DatabaseMetrics metrics = new DatabaseMetrics();
+	
+	private MeterRegistry meterRegistry;
+	
+	private boolean metricsEnabled = true;
+	
+	/*
+	 * The latest changes, for change listeners.
+	 */
+	private final ChangeFeed changes = new ChangeFeed(1024);
+	
 	/*
 	 * Getters and setters, for manual (non-injected) usage.
 	 */
@@ -72,589 +243,2641 @@ public class DatabaseService {
 	}
 
 	public void setRootDirectory(String rootDirectory) {
+		detachLog();
 		this.rootDirectory = rootDirectory;
+		this.indexes.clear();
+		this.cache.clear();
+		this.collectionsMade.clear();
 	}
 
-	public ObjectMapper getObjectMapper() {
-		return objectMapper;
+	public String getStorage() {
+		return storage;
 	}
 
-	public void setObjectMapper(ObjectMapper objectMapper) {
-		this.objectMapper = objectMapper;
+	/**
+	 * Chooses a built-in storage engine by name: "files" (the default) or "segments". 
+	 * Has no effect once the engine has been used.
+	 * 
+	 * @param storage
+	 */
+	public void setStorage(String storage) {
+		this.storage = storage;
 	}
 
-	
-	
+	public StorageEngine getStorageEngine() {
+		storage();
+		return storageEngine;
+	}
 
 	/**
-	 * Adds a new object to the specified collections.
-	 * If the object already contains a key called "id",
-	 * then the value of this field will be used to store
-	 * and retrieve the object. If no such field exists,
-	 * one will be randomly generated.
+	 * Uses the provided storage engine, instead of one chosen by name.
 	 * 
-	 * @param collection
-	 * @param row
-	 * @return
+	 * @param storageEngine
 	 */
-	public ObjectNode insert(String collection, ObjectNode row) {
-		
-		if(!row.has(ID)) {
-			row.put(ID, generateId());
-		}
-		
-		File collectionDir = directoryExists(collection);
-		
-		String id = row.get(ID).asText();
-		
-		checkRegex(id);
-		
-		File rowFile = new File( collectionDir, id + DOT_JSON );
-		
-		try {
-			objectMapper.writeValue(rowFile, row);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-		
-		return row;
-		
+	public void setStorageEngine(StorageEngine storageEngine) {
+		detachLog();
+		this.storageEngine = storageEngine;
+		this.collectionsMade.clear();
 	}
-
 	
+	public String getDurability() {
+		return durability;
+	}
+
 	/**
-	 * Adds a Java object to the collection by first serializing it
-	 * as Json.
-	 * 
-	 * The object does not need to extend any particular
-	 * superclass or implement any interface, but it must have a public
-	 * getter/setter for a String id. 
+	 * Sets what a change has to have done before it returns: "none" (the 
+	 * default) only hands it to the operating system; "always" waits for 
+	 * it to be synced to disk in a write-ahead log; "batch" does the same,
+	 * but lets each sync wait a few milliseconds to gather up other changes.
 	 * 
-	 * @param <T>
-	 * @param collection
-	 * @param row
-	 * @return
+	 * @param durability
 	 */
-	public <T> T insert(String collection, T row) {
-		
-		File collectionDir = directoryExists(collection);
-		
-		String id = null;
-		
-		try {
-			id = (String) PropertyUtils.getProperty(row, ID);
-			
-			if(id == null) {
-				id = generateId();
-				PropertyUtils.setProperty(row,ID, id);
-			}
+	public void setDurability(String durability) {
+		detachLog();
+		this.durability = durability;
+	}
+	
+	public long getWalWindow() {
+		return walWindow;
+	}
 
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-		
-		
-		checkRegex(id);
-		
-		File rowFile = new File( collectionDir, id + DOT_JSON );
-		
-		try {
-			objectMapper.writeValue(rowFile, row);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-		
-		return row;
-		
+	/**
+	 * Sets how many milliseconds a batch sync waits for more changes.
+	 * 
+	 * @param walWindow
+	 */
+	public void setWalWindow(long walWindow) {
+		this.walWindow = walWindow;
 	}
 	
+	public int getWalRecords() {
+		return walRecords;
+	}
+
+	/**
+	 * Sets how many changes waiting are enough for a batch sync to go ahead
+	 * without waiting out the window.
+	 * 
+	 * @param walRecords
+	 */
+	public void setWalRecords(int walRecords) {
+		this.walRecords = walRecords;
+	}
 	
+	public long getWalSize() {
+		return walSize;
+	}
 
 	/**
-	 * Stores the object under the specified ID.
+	 * Sets how big the write-ahead log grows before its changes are synced
+	 * into the storage engine and it's started over.
 	 * 
-	 * @param collection
-	 * @param id
-	 * @param row
-	 * @return
+	 * @param walSize
 	 */
-	public ObjectNode update(String collection, String id, ObjectNode row) {
+	public void setWalSize(long walSize) {
+		this.walSize = walSize;
+	}
 
-		row.put(ID, id);
-		
-		return insert(collection,row);
-		
+	public String getFormat() {
+		return format;
 	}
 
 	/**
-	 * Stores any object under the specified ID by serializing it as Json.
-	 * 
-	 * The object does not need to extend any particular
-	 * superclass or implement any interface, but it must have a public
-	 * getter/setter for a String id. 
+	 * Sets the format new objects are written in: "json" (the default), 
+	 * or "smile" or "cbor", which are binary and quicker to read. Objects 
+	 * already stored are still read, whatever format they're in; 
+	 * convertFormat() rewrites them.
 	 * 
-	 * @param <T>
+	 * @param format
+	 */
+	public void setFormat(String format) {
+		this.format = DocumentFormats.checkFormat(format);
+	}
+	
+	/**
+	 * Gets the format objects in the collection are written in.
 	 * 
 	 * @param collection
-	 * @param id
-	 * @param row
 	 * @return
 	 */
-	public <T> T update(String collection, String id, T row) {
-
-		try {
-			PropertyUtils.setProperty(row,ID, id);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-		
-		return insert(collection,row);
-		
+	public String getFormat(String collection) {
+		return collectionFormats.getOrDefault(collection, format);
 	}
 	
-	
-	
 	/**
-	 * Gets the object specified by the id, from the specified collection.
+	 * Sets the format for just one collection, or with null, goes back
+	 * to the one for all of them.
 	 * 
 	 * @param collection
-	 * @param id
-	 * @return
+	 * @param format
 	 */
-	public ObjectNode get(String collection, String id) {
-
-		checkRegex(id);
-
-		File collectionDir = directoryExists(collection);
+	public void setFormat(String collection, String format) {
 		
-		File rowFile = new File( collectionDir, id + DOT_JSON );
-		
-		if(!rowFile.exists()) {
-			return null;
-		}
+		checkRegex(collection);
 		
-		try {
-			return (ObjectNode) objectMapper.readTree(rowFile);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		if(format == null) {
+			collectionFormats.remove(collection);
+		} else {
+			collectionFormats.put(collection, DocumentFormats.checkFormat(format));
 		}
-		
 	}
-
+	
 	/**
-	 * Gets the object specified by the id, from the specified collection.
-	 * @param <T>
+	 * Sets formats for several collections at once, as a comma separated 
+	 * list of collection:format, for example "logs:smile,events:cbor".
 	 * 
-	 * @param collection
-	 * @param id
-	 * @return
+	 * @param formats
 	 */
-	public <T> T get(String collection, String id, Class<T> clazz) {
+	@Value("${com.adaptershack.jeffdb.format.collections:}")
+	public void setCollectionFormats(String formats) {
+		perCollection(formats, this::setFormat);
+	}
 
-		checkRegex(id);
+	public int getShards() {
+		return shards;
+	}
 
-		File collectionDir = directoryExists(collection);
-		
-		File rowFile = new File( collectionDir, id + DOT_JSON );
-		
-		if(!rowFile.exists()) {
-			return null;
-		}
-		
-		try {
-			return objectMapper.readValue(rowFile,clazz);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-		
+	/**
+	 * Sets how many levels of subdirectories, from 0 (the default) to 4, 
+	 * the objects in new collections are spread over with the file engine,
+	 * with 256 subdirectories at each level. For collections of millions of
+	 * objects, which are slow to look through in a single directory. 
+	 * Existing collections stay as they are until resharded.
+	 * 
+	 * @param shards
+	 */
+	public void setShards(int shards) {
+		FileStorageEngine.checkShards(shards);
+		this.shards = shards;
 	}
 	
-	
+	public int getShards(String collection) {
+		return collectionShards.getOrDefault(collection, shards);
+	}
 	
 	/**
-	 * Deletes the object specified by the ID.
+	 * Sets the levels of shards for just one collection, or with null, goes
+	 * back to the setting for all of them.
 	 * 
 	 * @param collection
-	 * @param id
-	 * @return
+	 * @param shards
 	 */
-	public boolean delete(String collection, String id) {
+	public void setShards(String collection, Integer shards) {
 		
-		checkRegex(id);
-
-		File collectionDir = directoryExists(collection);
-
-		File rowFile = new File( collectionDir, id + DOT_JSON );
+		checkRegex(collection);
 		
-		if(!rowFile.exists()) {
-			return false;
+		if(shards == null) {
+			collectionShards.remove(collection);
 		} else {
-			return rowFile.delete();
+			FileStorageEngine.checkShards(shards);
+			collectionShards.put(collection, shards);
 		}
-		
 	}
 	
-	
 	/**
-	 * Simply gets all objects from the specified collection.
+	 * Sets shards for several collections at once, as a comma separated 
+	 * list of collection:shards, for example "events:2,logs:1".
 	 * 
-	 * @param collection
-	 * @return
+	 * @param shards
 	 */
-	public ArrayNode listAll(String collection) {
-		return list(collection,null);
+	@Value("${com.adaptershack.jeffdb.files.shards.collections:}")
+	public void setCollectionShards(String shards) {
+		perCollection(shards, (collection, levels) -> setShards(collection, Integer.valueOf(levels)));
 	}
 
-	
+	public String getCompression() {
+		return compression;
+	}
 
-	
 	/**
-	 * Deserializes all the Json data in the collection to a list of objects of the specified
-	 * class.
+	 * Sets whether new objects are compressed: "none" (the default) or 
+	 * "deflate". Objects already stored are read either way.
 	 * 
-	 * @param <T>
-	 * @param collection
-	 * @param clazz
-	 * @param predicate
-	 * @return
+	 * @param compression
 	 */
-	public <T> List<T> listAll(String collection, Class<T> clazz ) {
-		return list(collection,clazz,null);
+	public void setCompression(String compression) {
+		this.compression = DocumentCompression.checkCompression(compression);
+	}
+	
+	public String getCompression(String collection) {
+		return collectionCompressions.getOrDefault(collection, compression);
 	}
 	
 	/**
-	 * Deserializes all the Json data in the collection to a list of objects of the specified
-	 * class, subject to the predicate returning true.
-	 * 
-	 * Example:
-	 * 
-	 * list("foo", MyClass.class, o -> o.getName().equalsIgnoreCase("jeff") );
+	 * Sets compression for just one collection, or with null, goes back
+	 * to the setting for all of them.
 	 * 
-	 * @param <T>
 	 * @param collection
-	 * @param clazz
-	 * @param predicate
-	 * @return
+	 * @param compression
 	 */
-	public <T> List<T> list(String collection, Class<T> clazz, Predicate<T> predicate ) {
-
-		List<T> list = new ArrayList<T>();
-		list(collection,list,clazz,predicate);
-		return list;
+	public void setCompression(String collection, String compression) {
+		
+		checkRegex(collection);
+		
+		if(compression == null) {
+			collectionCompressions.remove(collection);
+		} else {
+			collectionCompressions.put(collection, DocumentCompression.checkCompression(compression));
+		}
 	}
 	
-	
 	/**
-	 * Deserializes all the Json data in the collection to a list of objects of the specified
-	 * class, tests each using the specified predicate, and adds the objects to the specified
-	 * container if true.
-	 * 
-	 * Example:
-	 * 
-	 * list("foo", myList, MyClass.class, o -> o.getName().equalsIgnoreCase("jeff") );
+	 * Sets compression for several collections at once, as a comma 
+	 * separated list of collection:compression, for example "logs:deflate".
 	 * 
-	 * @param <T>
-	 * @param collection
-	 * @param clazz
-	 * @param predicate
-	 * @return
+	 * @param compressions
 	 */
-	public <T> void list(String collection, Collection<T> list, Class<T> clazz, Predicate<T> predicate ) {
-
-		readAll(collection, clazz, obj ->
-		{
-			if(predicate == null || predicate.test(obj)) {
-				list.add(obj);
-			}
-			
-		});
-		
+	@Value("${com.adaptershack.jeffdb.compression.collections:}")
+	public void setCollectionCompressions(String compressions) {
+		perCollection(compressions, this::setCompression);
 	}
-
-	
 	
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
 	/**
-	 * Finds all objects in the collection where the predicate returns true.
-	 * 
-	 * Example:
+	 * Sets the Deflate level, from 1, the fastest (and the default), to 9, 
+	 * the smallest.
 	 * 
-     *   list("bar", obj -> obj.get("name").asText().equalsIgnoreCase("jeff") );
+	 * @param compressionLevel
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+	
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Sets the size in bytes below which objects aren't worth compressing, 
+	 * and are stored as they are.
 	 * 
+	 * @param compressionThreshold
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	/**
+	 * Gets how well objects have compressed, and how long they've taken
+	 * to decompress, by collection.
 	 * 
-	 * @param collection
-	 * @param predicate
 	 * @return
 	 */
-	public ArrayNode list(String collection, Predicate<JsonNode> predicate ) {
+	public Map<String,CompressionStatistics> getCompressionStatistics() {
+		return new TreeMap<>(compressionStatistics);
+	}
 
-		ArrayNode list = objectMapper.createArrayNode();
-		
-		readAll(collection, row -> {
-			if(predicate == null || predicate.test(row)) {
-				list.add(row);
-			}
-		});
-		
-		return list;
+	public ObjectMapper getObjectMapper() {
+		return objectMapper;
 	}
 
+	public void setObjectMapper(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	public int getCacheEntries() {
+		return cache.getMaxEntries();
+	}
 
 	/**
-	 * Finds and DELETES all objects in the collection where the predicate returns true.
-	 * 
-	 * Example:
+	 * Sets the maximum number of objects kept in the read cache. 
+	 * Zero, the default, turns the cache off.
 	 * 
-     *   deleteMatching("bar", obj -> obj.get("name").asText().equalsIgnoreCase("jeff") );
-	 * 
-	 * @param collection
-	 * @param predicate
-	 * @return
+	 * @param cacheEntries
 	 */
-	public boolean deleteMatching(String collection, Predicate<JsonNode> predicate ) {
+	@Value("${com.adaptershack.jeffdb.cache.entries:0}")
+	public void setCacheEntries(int cacheEntries) {
+		cache.setMaxEntries(cacheEntries);
+	}
 
-		JsonNode removed = list(collection, (row) ->
-			{ 
-				if(predicate.test(row)) {
-					delete(collection,row.get(ID).asText());
-					return true;
-				} else {
-					return false;
-				}
-			});
-		
-		return ! removed.isEmpty();
+	public long getCacheBytes() {
+		return cache.getMaxBytes();
 	}
-	
+
 	/**
-	 * A convenience method for finding objects where the same keys,
-	 * having the same values, exist as in the provided object.
-	 * 
-	 * The query object need not have as many fields as the objects
-	 * in the collection. The most common use case is probably for it
-	 * to have only one field.
+	 * Sets the maximum total size of objects kept in the read cache, counting 
+	 * each object as its size on disk, before any compression. Zero means no limit but the number
+	 * of entries.
 	 * 
-	 * @param collection
-	 * @param params
-	 * @return
+	 * @param cacheBytes
 	 */
-	public ArrayNode listMatching(String collection, JsonNode params) {
-		return list(collection, new MatchingP(params));
+	@Value("${com.adaptershack.jeffdb.cache.bytes:67108864}")
+	public void setCacheBytes(long cacheBytes) {
+		cache.setMaxBytes(cacheBytes);
 	}
 	
 	/**
-	 * A convenience method for DELETING objects where the same keys,
-	 * having the same values, exist as in the provided object.
-	 * 
-	 * The query object need not have as many fields as the objects
-	 * in the collection. The most common use case is probably for it
-	 * to have only one field.
+	 * Gets the read cache's hit and miss counts, by collection.
 	 * 
-	 * @param collection
-	 * @param params
 	 * @return
 	 */
-	public boolean deleteMatching(String collection, JsonNode params) {
-		return deleteMatching(collection, new MatchingP(params));
+	public Map<String,CacheStatistics> getCacheStatistics() {
+		return cache.getStatistics();
 	}
 	
+	public MeterRegistry getMeterRegistry() {
+		return meterRegistry;
+	}
+
 	/**
-	 * Deletes the entire collection and all of its objects.
+	 * Records timings of operations and counts of objects read, by 
+	 * collection, in the registry; see DatabaseMetrics for what there is. 
+	 * In Spring Boot this is the one Actuator makes. Without a registry,
+	 * which is how an embedded database starts, nothing is recorded.
 	 * 
-	 * @param collection
-	 * @return
+	 * @param meterRegistry
 	 */
-	public boolean deleteCollection(String collection) {
-
-		checkRegex(collection);
+	@Autowired(required=false)
+	public synchronized void setMeterRegistry(MeterRegistry meterRegistry) {
+		this.meterRegistry = meterRegistry;
+		metrics.setRegistry(metricsEnabled ? meterRegistry : null);
+	}
+	
+	public boolean isMetrics() {
+		return metricsEnabled;
+	}
 
-		File toDelete = new File(rootDirectory,collection);
-		
-		return FileSystemUtils.deleteRecursively(toDelete);
-		
+	/**
+	 * Turns metrics off, or back on, even with a registry.
+	 * 
+	 * @param metrics
+	 */
+	@Value("${com.adaptershack.jeffdb.metrics:true}")
+	public synchronized void setMetrics(boolean metrics) {
+		this.metricsEnabled = metrics;
+		this.metrics.setRegistry(metrics ? meterRegistry : null);
 	}
 	
+	public boolean isMetricsHistograms() {
+		return metrics.isHistograms();
+	}
+
 	/**
-	 * Iterates the collection, passing each item to the specified consumer.
-	 * It is up to the consumer to decide what to the do with it.
+	 * Sets whether operation timers keep a histogram (the default), from
+	 * which latency percentiles can be worked out, or only a count and a 
+	 * total time.
 	 * 
-	 * @param collection
-	 * @param c
+	 * @param histograms
 	 */
-	public void readAll(String collection, Consumer<JsonNode> c){
-		readAllFiles(collection, rowFile -> {
-			try {
-				c.accept( objectMapper.readTree(rowFile) );
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		});
+	@Value("${com.adaptershack.jeffdb.metrics.histograms:true}")
+	public void setMetricsHistograms(boolean histograms) {
+		metrics.setHistograms(histograms);
+	}
+	
+	public int getChangeBufferSize() {
+		return changes.getSize();
 	}
 
 	/**
-	 * Iterates the collection, deserialzing each item as the specified
-	 * Java class and passing it to the specified consumer.
-	 * It is up to the consumer to decide what to the do with it.
+	 * Sets how many of the latest changes are kept for change listeners
+	 * to catch up from, 1024 by default. Zero turns changes off, so no
+	 * listeners can be added.
 	 * 
-	 * @param collection
-	 * @param c
+	 * @param size
 	 */
-	public <T> void readAll(String collection, Class<T> clazz, Consumer<T> c){
-		readAllFiles(collection, rowFile -> {
-			try {
-				c.accept( objectMapper.readValue(rowFile,clazz) );
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		});
+	@Value("${com.adaptershack.jeffdb.changes:1024}")
+	public void setChangeBufferSize(int size) {
+		changes.setSize(size);
+	}
+	
+	public int getScanThreads() {
+		return scanner.getThreads();
 	}
 
+	/**
+	 * Sets how many threads read files when scanning a whole collection. 
+	 * The default of one reads them sequentially, on the caller's thread.
+	 * 
+	 * With more than one, any Predicate passed to list, deleteMatching or 
+	 * archive is called from several threads at once, so must be thread safe.
+	 * Consumers passed to readAll are still called from the caller's thread,
+	 * and results come back in the same order either way.
+	 * 
+	 * @param scanThreads
+	 */
+	@Value("${com.adaptershack.jeffdb.scan.threads:1}")
+	public void setScanThreads(int scanThreads) {
+		scanner.setThreads(scanThreads);
+	}
 	
-	public void archive(String collection) {
-		archive(collection,null);
+	public boolean isScanVirtual() {
+		return scanner.isVirtual();
 	}
 	
 	/**
-	 * Moves the current contents of the collection to an "archive" location,
-	 * notionally like a "recycle bin".
+	 * Sets whether a parallel scan reads files on virtual threads, one per
+	 * task, instead of on a pool of platform threads. With virtual threads
+	 * the scan thread count can be set well above the number of cores,
+	 * since the threads spend most of their time waiting on the disk.
 	 * 
-	 * @param collection
+	 * @param scanVirtual
 	 */
-	public void archive(String collection, Predicate<JsonNode> predicate) {
-		
-		File collectionDirecory = directoryExists(collection);
-		
-		File archiveDirectory = new File(collectionDirecory,archiveName);
-
-		if(!archiveDirectory.exists()) {
-			archiveDirectory.mkdirs();
-        }		
-		
-		readAllFiles(collection, f -> {
-			
-			try {
-				if(predicate == null || predicate.test(objectMapper.readTree(f))) {
-					
-					File destination = new File(archiveDirectory, f.getName());
-					
-					Files.move(Path.of(f.toURI()), Path.of(destination.toURI()));
-					
-				}
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-			
-			
-		});
-		
-		
+	@Value("${com.adaptershack.jeffdb.scan.virtual:false}")
+	public void setScanVirtual(boolean scanVirtual) {
+		scanner.setVirtual(scanVirtual);
 	}
 	
 	/**
-	 * Empties the "recycle bin" of objects that have been "archived".
+	 * Scans in parallel using the provided executor instead of a pool of 
+	 * our own, splitting the work into the specified number of tasks.
+	 * The executor is not shut down by close().
 	 * 
-	 * @param collection
+	 * @param executor
+	 * @param scanThreads
 	 */
-	public void purge(String collection) {
-	
-		File collectionDirecory = directoryExists(collection);
-		
-		File archiveDirectory = new File(collectionDirecory,archiveName);
+	public void setScanExecutor(ExecutorService executor, int scanThreads) {
+		scanner.setExecutor(executor, scanThreads);
+	}
 
-		if(archiveDirectory.exists()) {
-			FileSystemUtils.deleteRecursively(archiveDirectory);
-		}
+	public int getBulkBatchSize() {
+		return bulkBatchSize;
 	}
-	
+
 	/**
-	 * Permanently deletes the entire database including all collections
-	 * and all archived objects.
+	 * Sets how many objects insertAll() writes at a time.
 	 * 
-	 * @param collection
+	 * @param bulkBatchSize
 	 */
-	public void destroyDatabase() {
-	
-		File rootFile = new File(rootDirectory);
-		
-		if(rootFile.exists()) {
-			FileSystemUtils.deleteRecursively(rootFile);
-		}
-		
+	public void setBulkBatchSize(int bulkBatchSize) {
+		this.bulkBatchSize = Math.max(1, bulkBatchSize);
 	}
 	
+	public int getScanBatchSize() {
+		return scanner.getBatchSize();
+	}
 	
-	/*
-	 * "Magic" constants
+	/**
+	 * Sets how many files a parallel scan reads ahead of what it has passed
+	 * on to the caller, which limits how much it holds in memory at once.
+	 * 
+	 * @param scanBatchSize
 	 */
-	private final static String ID = "id";
-	private final static String DOT_JSON = ".json";
-	private final static String REGEX="^[A-Za-z0-9_.-]+";
-
-	private String generateId() {
-		return UUID.randomUUID().toString().replaceAll("-", "");
+	@Value("${com.adaptershack.jeffdb.scan.batch:1024}")
+	public void setScanBatchSize(int scanBatchSize) {
+		scanner.setBatchSize(scanBatchSize);
 	}
+
 	
-	private File directoryExists(String collection) {
+	
+
+	/**
+	 * Adds a new object to the specified collections.
+	 * If the object already contains a key called "id",
+	 * then the value of this field will be used to store
+	 * and retrieve the object. If no such field exists,
+	 * one will be randomly generated.
+	 * 
+	 * @param collection
+	 * @param row
+	 * @return
+	 */
+	public ObjectNode insert(String collection, ObjectNode row) {
 		
-		checkRegex(collection);
+		if(!row.has(ID)) {
+			row.put(ID, generateId());
+		}
 		
-		File collectionDir = new File(rootDirectory,collection);
+		checkRegex(collection);
 		
-		if(!collectionDir.exists() ) {
-			collectionDir.mkdirs();
-		}
-		return collectionDir;
-	}
-	
-	private void readAllFiles(String collection, Consumer<File> consumer ) {
-
-		File collectionDir = directoryExists(collection);
+		String id = row.get(ID).asText();
 		
-		ArrayNode list = objectMapper.createArrayNode();
+		checkRegex(id);
 		
-		for( File rowFile : collectionDir.listFiles( (dir,name) -> name.endsWith(DOT_JSON))) {
-
-			consumer.accept(rowFile);
+		write(collection, id, row, null);
 		
-		}
+		return row;
 		
 	}
-	
-
-	private void checkRegex(String collection) {
-		if( !collection.matches(REGEX) ) {
-			throw new IllegalArgumentException("Collection and ID names must match " + REGEX);
-		}
-	}
-
 
 	
-	private static class MatchingP implements Predicate<JsonNode> {
+	/**
+	 * Adds a Java object to the collection by first serializing it
+	 * as Json.
+	 * 
+	 * The object does not need to extend any particular
+	 * superclass or implement any interface, but it must have a public
+	 * getter/setter for a String id. 
+	 * 
+	 * @param <T>
+	 * @param collection
+	 * @param row
+	 * @return
+	 */
+	public <T> T insert(String collection, T row) {
+		
+		checkRegex(collection);
+		
+		IdAccessor accessor = IdAccessor.of(row);
+		
+		String id = accessor.get(row);
+			
+		if(id == null) {
+			id = generateId();
+			accessor.set(row, id);
+		}
+		
+		checkRegex(id);
+		
+		write(collection, id, row, null);
+		
+		return row;
+		
+	}
+	
+	
+
+	/**
+	 * Stores the object under the specified ID.
+	 * 
+	 * @param collection
+	 * @param id
+	 * @param row
+	 * @return
+	 */
+	public ObjectNode update(String collection, String id, ObjectNode row) {
+
+		row.put(ID, id);
+		
+		return insert(collection,row);
+		
+	}
+
+	/**
+	 * Stores any object under the specified ID by serializing it as Json.
+	 * 
+	 * The object does not need to extend any particular
+	 * superclass or implement any interface, but it must have a public
+	 * getter/setter for a String id. 
+	 * 
+	 * @param <T>
+	 * 
+	 * @param collection
+	 * @param id
+	 * @param row
+	 * @return
+	 */
+	public <T> T update(String collection, String id, T row) {
 
-		JsonNode params;
+		IdAccessor.of(row).set(row, id);
+		
+		return insert(collection,row);
+		
+	}
+	
+	
+	
+	/**
+	 * Stores the object under the specified ID, but only if what's stored
+	 * there now is the specified version. For updating without losing
+	 * someone else's change made since it was read.
+	 * 
+	 * @param collection
+	 * @param id
+	 * @param version as returned by version(), or "*" for any
+	 * @param row
+	 * @return the object, or null if the version didn't match
+	 */
+	public ObjectNode updateIfMatch(String collection, String id, String version, ObjectNode row) {
+		
+		checkRegex(collection);
+		checkRegex(id);
+		
+		row.put(ID, id);
+		
+		return write(collection, id, row, version) ? row : null;
+	}
+	
+	/**
+	 * Gets the version of the object, which changes every time it's
+	 * written, or null if there's no such object. This comes from what the
+	 * storage engine knows about the object, without reading it.
+	 * 
+	 * @param collection
+	 * @param id
+	 * @return
+	 */
+	public String version(String collection, String id) {
+		
+		checkRegex(id);
+		
+		return version(directoryExists(collection), id);
+	}
+	
+	/**
+	 * Adds many objects to the collection, each as if by insert(), but
+	 * writing them in batches. The objects are taken from the iterable one
+	 * at a time, so it can be something still being parsed.
+	 * 
+	 * An object that can't be stored, because it's null or its id isn't
+	 * valid, is reported as an error in its result and the rest carry on.
+	 * 
+	 * @param collection
+	 * @param rows
+	 * @return one result per object, in the same order
+	 */
+	public List<BulkResult> insertAll(String collection, Iterable<ObjectNode> rows) {
+		
+		List<BulkResult> results = new ArrayList<>();
+		
+		insertAll(collection, rows, results::add);
+		
+		return results;
+	}
+	
+	/**
+	 * Same, but passing each result to the consumer once its batch is 
+	 * written, rather than collecting them.
+	 * 
+	 * @param collection
+	 * @param rows
+	 * @param c
+	 */
+	public void insertAll(String collection, Iterable<ObjectNode> rows, Consumer<BulkResult> c) {
 		
-		public MatchingP(JsonNode params) {
-			this.params = params;
+		checkRegex(collection);
+		
+		long start = metrics.start();
+		
+		try {
+			Map<String,ObjectNode> batch = new LinkedHashMap<>();
+			
+			List<BulkResult> results = new ArrayList<>();
+			
+			int index = 0;
+			
+			Iterator<ObjectNode> it = rows.iterator();
+			
+			while(true) {
+				
+				ObjectNode row;
+				
+				try {
+					if(!it.hasNext()) {
+						break;
+					}
+					row = it.next();
+				} catch (RuntimeException e) {
+					// keep what was read before things went wrong
+					writeAll(collection, batch);
+					results.forEach(c);
+					throw e;
+				}
+				
+				if(row == null) {
+					results.add(new BulkResult(index++, null, "Not a Json object"));
+					continue;
+				}
+				
+				if(!row.has(ID)) {
+					row.put(ID, generateId());
+				}
+				
+				String id = row.get(ID).asText();
+				
+				if(!isValidName(id)) {
+					results.add(new BulkResult(index++, id, "ID names " + NAME_RULE));
+					continue;
+				}
+				
+				// the same id twice in a batch would confuse the indexes
+				if(batch.size() >= bulkBatchSize || batch.containsKey(id)) {
+					writeAll(collection, batch);
+					results.forEach(c);
+					batch.clear();
+					results.clear();
+				}
+				
+				batch.put(id, row);
+				results.add(new BulkResult(index++, id, null));
+			}
+			
+			writeAll(collection, batch);
+			results.forEach(c);
+		} finally {
+			metrics.stop(Operation.BULK, collection, start);
 		}
+	}
+	
+	/**
+	 * Gets the object specified by the id, from the specified collection.
+	 * 
+	 * @param collection
+	 * @param id
+	 * @return
+	 */
+	public ObjectNode get(String collection, String id) {
 
-		@Override
-		public boolean test(JsonNode row) {
-			Iterator<Entry<String, JsonNode>> i = params.fields();
+		checkRegex(id);
+		
+		checkRegex(collection);
+		
+		long start = metrics.start();
+		
+		try {
+			return getRow(collection, id);
+		} finally {
+			metrics.stop(Operation.GET, collection, start);
+		}
+	}
+	
+	/*
+	 * The same, without timing it, for when it's part of something else.
+	 */
+	private ObjectNode getRow(String collection, String id) {
+		
+		if(cache.isEnabled()) {
+			ObjectNode row = cachedGet(collection, id);
+			return row == null ? null : row.deepCopy();
+		}
+		
+		return (ObjectNode) readRow(directoryExists(collection), id);
+	}
+	
+	/**
+	 * Gets just the specified fields of the object, plus its id. Fields 
+	 * not asked for are skipped over while reading, rather than parsed. 
+	 * 
+	 * @param collection
+	 * @param id
+	 * @param fields the top level fields to get, or null for all of them
+	 * @return
+	 */
+	public ObjectNode get(String collection, String id, Collection<String> fields) {
+		
+		Projection projection = Projection.of(fields);
+		
+		if(projection == null) {
+			return get(collection, id);
+		}
+		
+		checkRegex(id);
+		
+		checkRegex(collection);
+		
+		long start = metrics.start();
+		
+		try {
+			if(cache.isEnabled()) {
+				ObjectNode row = cachedGet(collection, id);
+				return row == null ? null : projection.project(row);
+			}
 			
-			while(i.hasNext() ) {
-				Entry<String, JsonNode> e = i.next();
+			return (ObjectNode) readRow(directoryExists(collection), id, null, projection);
+		} finally {
+			metrics.stop(Operation.GET, collection, start);
+		}
+	}
+
+	/**
+	 * Gets the object specified by the id, from the specified collection.
+	 * @param <T>
+	 * 
+	 * @param collection
+	 * @param id
+	 * @return
+	 */
+	public <T> T get(String collection, String id, Class<T> clazz) {
+
+		checkRegex(id);
+		
+		checkRegex(collection);
+		
+		long start = metrics.start();
+		
+		try {
+			if(cache.isEnabled()) {
+				ObjectNode row = cachedGet(collection, id);
 				
-				if( !row.has(e.getKey()) || !row.get(e.getKey()).equals( e.getValue() )) {
+				try {
+					return row == null ? null : objectMapper.treeToValue(row, clazz);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			
+			File collectionDir = directoryExists(collection);
+			
+			return readRow(collectionDir, id, clazz);
+		} finally {
+			metrics.stop(Operation.GET, collection, start);
+		}
+	}
+	
+	
+	
+	/**
+	 * Deletes the object specified by the ID.
+	 * 
+	 * @param collection
+	 * @param id
+	 * @return
+	 */
+	public boolean delete(String collection, String id) {
+		return delete(collection, id, null, null);
+	}
+	
+	/**
+	 * Deletes the object, but only if it's still the specified version.
+	 * 
+	 * @param collection
+	 * @param id
+	 * @param version as returned by version(), or "*" for any
+	 * @return false if it wasn't there, or was a different version
+	 */
+	public boolean deleteIfMatch(String collection, String id, String version) {
+		return delete(collection, id, version, null);
+	}
+	
+	/*
+	 * Deletes the object if it's the version, and passes the condition, 
+	 * as it is once it's locked; either can be null.
+	 */
+	private boolean delete(String collection, String id, String version, Predicate<JsonNode> condition) {
+		
+		checkRegex(id);
+
+		checkRegex(collection);
+		
+		long start = metrics.start();
+		
+		try {
+			return deleteRow(collection, id, version, condition);
+		} finally {
+			metrics.stop(Operation.DELETE, collection, start);
+		}
+	}
+	
+	/*
+	 * The same, without timing it, for when it's part of something else.
+	 */
+	private boolean deleteRow(String collection, String id, String version, Predicate<JsonNode> condition) {
+		
+		locks.lock(collection, id);
+		
+		try {
+			File collectionDir = directoryExists(collection);
+			
+			if(!matches(collectionDir, id, version)) {
+				return false;
+			}
+
+			CollectionIndexes collectionIndexes = indexes(collection);
+		
+			JsonNode before = null;
+		
+			if(condition != null || !collectionIndexes.isEmpty()) {
+				before = readRow(collectionDir, id);
+			
+				if(before == null || (condition != null && !condition.test(before))) {
 					return false;
 				}
-				
-				return true;
 			}
 			
-			return true;
+			if(!collectionIndexes.isEmpty()) {
+				collectionIndexes.changing();
+			}
+		
+			boolean deleted;
+		
+			try {
+				deleted = storage().delete(collectionDir, id);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				cache.invalidate(collection, id);
+			}
+		
+			if(deleted) {
+				collectionIndexes.remove(id, before);
+				changes.publish(Change.Type.DELETE, collection, id);
+			}
+		
+			return deleted;
+		} finally {
+			locks.unlock(collection, id);
 		}
 		
 	}
 	
 	
+	/**
+	 * Simply gets all objects from the specified collection.
+	 * 
+	 * @param collection
+	 * @return
+	 */
+	public ArrayNode listAll(String collection) {
+		return list(collection,null);
+	}
+
+	/**
+	 * Gets up to limit objects from the collection, in order by id, 
+	 * starting after the ones returned by the previous page.
+	 * 
+	 * Only as many files are read as it takes to fill the page.
+	 * 
+	 * @param collection
+	 * @param limit
+	 * @param cursor returned with the previous page, or null for the first one
+	 * @return
+	 */
+	public Page<JsonNode> listAll(String collection, int limit, String cursor) {
+		return list(collection, null, limit, cursor);
+	}
+	
+	/**
+	 * Gets just the specified fields, plus the id, of every object in 
+	 * the collection.
+	 * 
+	 * @param collection
+	 * @param fields the top level fields to get, or null for all of them
+	 * @return
+	 */
+	public ArrayNode listAll(String collection, Collection<String> fields) {
+		
+		ArrayNode list = objectMapper.createArrayNode();
+		
+		readAll(collection, fields, 0, null, list::add);
+		
+		return list;
+	}
+	
+	/**
+	 * Same, a page at a time.
+	 * 
+	 * @param collection
+	 * @param fields the top level fields to get, or null for all of them
+	 * @param limit
+	 * @param cursor returned with the previous page, or null for the first one
+	 * @return
+	 */
+	public Page<JsonNode> listAll(String collection, Collection<String> fields, int limit, String cursor) {
+		
+		List<JsonNode> items = new ArrayList<>();
+		
+		String next = readAll(collection, fields, limit, cursor, items::add);
+		
+		return new Page<>(items, next);
+	}
+
+	
+
+	
+	/**
+	 * Deserializes all the Json data in the collection to a list of objects of the specified
+	 * class.
+	 * 
+	 * @param <T>
+	 * @param collection
+	 * @param clazz
+	 * @param predicate
+	 * @return
+	 */
+	public <T> List<T> listAll(String collection, Class<T> clazz ) {
+		return list(collection,clazz,null);
+	}
+	
+	/**
+	 * Deserializes all the Json data in the collection to a list of objects of the specified
+	 * class, subject to the predicate returning true.
+	 * 
+	 * Example:
+	 * 
+	 * list("foo", MyClass.class, o -> o.getName().equalsIgnoreCase("jeff") );
+	 * 
+	 * @param <T>
+	 * @param collection
+	 * @param clazz
+	 * @param predicate
+	 * @return
+	 */
+	public <T> List<T> list(String collection, Class<T> clazz, Predicate<T> predicate ) {
+
+		List<T> list = new ArrayList<T>();
+		list(collection,list,clazz,predicate);
+		return list;
+	}
+	
+	
+	/**
+	 * Deserializes all the Json data in the collection to a list of objects of the specified
+	 * class, tests each using the specified predicate, and adds the objects to the specified
+	 * container if true.
+	 * 
+	 * Example:
+	 * 
+	 * list("foo", myList, MyClass.class, o -> o.getName().equalsIgnoreCase("jeff") );
+	 * 
+	 * @param <T>
+	 * @param collection
+	 * @param clazz
+	 * @param predicate
+	 * @return
+	 */
+	public <T> void list(String collection, Collection<T> list, Class<T> clazz, Predicate<T> predicate ) {
+
+		scan(collection, (dir, id) -> readRow(dir, id, clazz), predicate, list::add);
+		
+	}
+
+	
+	
+	/**
+	 * Finds all objects in the collection where the predicate returns true.
+	 * 
+	 * Example:
+	 * 
+     *   list("bar", obj -> obj.get("name").asText().equalsIgnoreCase("jeff") );
+	 * 
+	 * 
+	 * @param collection
+	 * @param predicate
+	 * @return
+	 */
+	public ArrayNode list(String collection, Predicate<JsonNode> predicate ) {
+
+		ArrayNode list = objectMapper.createArrayNode();
+		
+		scan(collection, this::readRow, predicate, list::add);
+		
+		return list;
+	}
+	
+	/**
+	 * Gets one page of the objects for which the predicate returns true,
+	 * in order by id.
+	 * 
+	 * @param collection
+	 * @param predicate
+	 * @param limit
+	 * @param cursor returned with the previous page, or null for the first one
+	 * @return
+	 */
+	public Page<JsonNode> list(String collection, Predicate<JsonNode> predicate, int limit, String cursor) {
+		
+		List<JsonNode> items = new ArrayList<>();
+		
+		String next = scan(collection, this::readRow, predicate, items::add, limit, cursor);
+		
+		return new Page<>(items, next);
+	}
+	
+	/**
+	 * Gets one page of the objects of the specified class for which the 
+	 * predicate returns true, in order by id.
+	 * 
+	 * @param <T>
+	 * @param collection
+	 * @param clazz
+	 * @param predicate
+	 * @param limit
+	 * @param cursor returned with the previous page, or null for the first one
+	 * @return
+	 */
+	public <T> Page<T> list(String collection, Class<T> clazz, Predicate<T> predicate, int limit, String cursor) {
+		
+		List<T> items = new ArrayList<>();
+		
+		String next = scan(collection, (dir, id) -> readRow(dir, id, clazz), predicate, items::add, limit, cursor);
+		
+		return new Page<>(items, next);
+	}
+
+
+	/**
+	 * Finds and DELETES all objects in the collection where the predicate returns true.
+	 * 
+	 * Example:
+	 * 
+     *   deleteMatching("bar", obj -> obj.get("name").asText().equalsIgnoreCase("jeff") );
+	 * 
+	 * @param collection
+	 * @param predicate
+	 * @return
+	 */
+	public boolean deleteMatching(String collection, Predicate<JsonNode> predicate ) {
+		
+		checkRegex(collection);
+		
+		long start = metrics.start();
+		
+		try {
+			return deleteScanned(collection, this::readRow, predicate, predicate);
+		} finally {
+			metrics.stop(Operation.DELETE_MATCHING, collection, start);
+		}
+	}
+	
+	/**
+	 * A convenience method for finding objects where the same keys,
+	 * having the same values, exist as in the provided object.
+	 * 
+	 * The query object need not have as many fields as the objects
+	 * in the collection. The most common use case is probably for it
+	 * to have only one field. A field can also be compared with
+	 * operators, and queries combined with $and and $or; see QueryMatcher.
+	 * 
+	 * If any of the query's fields has an index (see createIndex), only
+	 * the objects the index points to are read, instead of the whole
+	 * collection. Range and prefix operators need a sorted index,
+	 * and $text a full-text one.
+	 * 
+	 * @param collection
+	 * @param params
+	 * @return
+	 */
+	public ArrayNode listMatching(String collection, JsonNode params) {
+		return listMatching(collection, params, (Collection<String>) null);
+	}
+	
+	/**
+	 * Like listMatching, but gets just the specified fields of each
+	 * object found, plus its id.
+	 * 
+	 * @param collection
+	 * @param params
+	 * @param fields the top level fields to get, or null for all of them
+	 * @return
+	 */
+	public ArrayNode listMatching(String collection, JsonNode params, Collection<String> fields) {
+		
+		ArrayNode list = objectMapper.createArrayNode();
+		
+		readMatching(collection, params, fields, 0, null, list::add);
+		
+		return list;
+	}
+	
+	/**
+	 * Like listMatching, but passes each object found to the consumer
+	 * as soon as it's read, instead of collecting them all first.
+	 * 
+	 * @param collection
+	 * @param params
+	 * @param c
+	 */
+	public void readMatching(String collection, JsonNode params, Consumer<JsonNode> c) {
+		readMatching(collection, params, 0, null, c);
+	}
+	
+	/**
+	 * Counts the objects in the collection, or just those matching a query,
+	 * and works out sums, averages, minimums, maximums and numbers of
+	 * distinct values of their fields, optionally grouped by the value of
+	 * another field. See Aggregation for what the spec looks like.
+	 * 
+	 * The objects are streamed through running totals, reading only the 
+	 * fields needed, so nothing like the whole collection is ever in memory.
+	 * 
+	 * @param collection
+	 * @param spec
+	 * @return
+	 */
+	public ObjectNode aggregate(String collection, JsonNode spec) {
+		
+		checkRegex(collection);
+		
+		long start = metrics.start();
+		
+		try {
+			Aggregation aggregation = new Aggregation(spec);
+			
+			Collection<String> fields = aggregation.getFields();
+			
+			// just counting, so nothing needs reading but the id
+			if(fields.isEmpty()) {
+				fields = List.of(ID);
+			}
+			
+			if(aggregation.getQuery() == null) {
+				readAll(collection, fields, 0, null, aggregation);
+			} else {
+				readMatching(collection, aggregation.getQuery(), fields, 0, null, aggregation);
+			}
+			
+			return aggregation.result();
+		} finally {
+			metrics.stop(Operation.AGGREGATE, collection, start);
+		}
+	}
+	
+	/**
+	 * Like readMatching, but stops after limit objects (unless limit is zero),
+	 * starting after where a previous call left off. 
+	 * 
+	 * @param collection
+	 * @param params
+	 * @param limit
+	 * @param cursor returned by the previous call, or null to start at the beginning
+	 * @param c
+	 * @return the cursor for the next call, or null if there are no more objects
+	 */
+	public String readMatching(String collection, JsonNode params, int limit, String cursor, Consumer<JsonNode> c) {
+		return readMatching(collection, params, null, limit, cursor, c);
+	}
+	
+	/**
+	 * Like readMatching, but passing on just the specified fields of each
+	 * object found, plus its id.
+	 * 
+	 * @param collection
+	 * @param params
+	 * @param fields the top level fields to get, or null for all of them
+	 * @param limit
+	 * @param cursor returned by the previous call, or null to start at the beginning
+	 * @param c
+	 * @return the cursor for the next call, or null if there are no more objects
+	 */
+	public String readMatching(String collection, JsonNode params, Collection<String> fields, int limit, String cursor, Consumer<JsonNode> c) {
+		
+		checkRegex(collection);
+		
+		long start = metrics.start();
+		
+		try {
+			QueryMatcher matcher = new QueryMatcher(params);
+			
+			Projection projection = Projection.of(fields);
+			
+			NavigableSet<String> candidates = candidates(collection, params);
+			
+			if(candidates == null) {
+				return scan(collection, (dir, id) -> readRow(dir, id, matcher, projection), null, c, limit, cursor);
+			}
+			
+			String after = Page.after(cursor);
+			
+			int count = 0;
+			
+			for(String id : after == null ? candidates : candidates.tailSet(after, false)) {
+				ObjectNode row = getRow(collection, id);
+				
+				if(row != null && matcher.test(row)) {
+					c.accept(projection == null ? row : projection.project(row));
+					
+					if(++count == limit) {
+						return Page.cursor(id);
+					}
+				}
+			}
+			
+			return null;
+		} finally {
+			metrics.stop(Operation.SEARCH, collection, start);
+		}
+	}
+	
+	/**
+	 * Gets one page of the objects matching the query; see listMatching.
+	 * 
+	 * @param collection
+	 * @param params
+	 * @param limit
+	 * @param cursor returned with the previous page, or null for the first one
+	 * @return
+	 */
+	public Page<JsonNode> listMatching(String collection, JsonNode params, int limit, String cursor) {
+		return listMatching(collection, params, null, limit, cursor);
+	}
+	
+	/**
+	 * Same, with just the specified fields of each object, plus its id.
+	 * 
+	 * @param collection
+	 * @param params
+	 * @param fields the top level fields to get, or null for all of them
+	 * @param limit
+	 * @param cursor returned with the previous page, or null for the first one
+	 * @return
+	 */
+	public Page<JsonNode> listMatching(String collection, JsonNode params, Collection<String> fields, int limit, String cursor) {
+		
+		List<JsonNode> items = new ArrayList<>();
+		
+		String next = readMatching(collection, params, fields, limit, cursor, items::add);
+		
+		return new Page<>(items, next);
+	}
+	
+	/**
+	 * A convenience method for DELETING objects where the same keys,
+	 * having the same values, exist as in the provided object.
+	 * 
+	 * The query object need not have as many fields as the objects
+	 * in the collection. The most common use case is probably for it
+	 * to have only one field.
+	 * 
+	 * @param collection
+	 * @param params
+	 * @return
+	 */
+	public boolean deleteMatching(String collection, JsonNode params) {
+		
+		checkRegex(collection);
+		
+		long start = metrics.start();
+		
+		try {
+			QueryMatcher matcher = new QueryMatcher(params);
+			
+			Set<String> candidates = candidates(collection, params);
+			
+			if(candidates == null) {
+				return deleteScanned(collection, (dir, id) -> readRow(dir, id, matcher, null), null, matcher);
+			}
+			
+			boolean removed = false;
+			
+			for(String id : candidates) {
+				if(deleteRow(collection, id, null, matcher)) {
+					removed = true;
+				}
+			}
+			
+			return removed;
+		} finally {
+			metrics.stop(Operation.DELETE_MATCHING, collection, start);
+		}
+	}
+	
+	/**
+	 * Creates an index on the named field of every object in the collection,
+	 * which listMatching and deleteMatching will then use whenever a query
+	 * includes that field. Indexes are updated by every insert, update, 
+	 * delete and archive, and saved under the collection's directory.
+	 * 
+	 * Building the index requires reading the whole collection once, and
+	 * changes to the collection wait until it's done.
+	 * 
+	 * @param collection
+	 * @param field
+	 */
+	public void createIndex(String collection, String field) {
+		createIndex(collection, field, false);
+	}
+	
+	/**
+	 * Creates an index, as above, which if sorted also keeps numbers and
+	 * strings in order, so that range and prefix queries can use it too.
+	 * An existing index on the field is replaced if it's not the same kind.
+	 * 
+	 * @param collection
+	 * @param field
+	 * @param sorted
+	 */
+	public void createIndex(String collection, String field, boolean sorted) {
+		
+		checkRegex(field);
+		
+		directoryExists(collection);
+		
+		CollectionIndexes collectionIndexes = indexes(collection);
+		
+		// changes wait until it's built, so that none are missed
+		locks.lockCollection(collection);
+		
+		try {
+			if(!collectionIndexes.has(field) || collectionIndexes.isSorted(field) != sorted || collectionIndexes.isText(field)) {
+				collectionIndexes.define(field, sorted, consumer -> readAll(collection, consumer));
+			}
+		} finally {
+			locks.unlockCollection(collection);
+		}
+	}
+	
+	/**
+	 * Creates a full-text index on the named field, for $text queries,
+	 * which then only read the objects having all of the query's words
+	 * in that field. See TextIndex.
+	 * 
+	 * The index is filled from the collection on a background thread, 
+	 * and queries scan until it's done; the collection can be used as 
+	 * usual meanwhile. An existing index on the field is replaced, unless
+	 * it's already a full-text one.
+	 * 
+	 * @param collection
+	 * @param field
+	 * @return how many objects were indexed, once it's done
+	 */
+	public synchronized Future<Integer> createTextIndex(String collection, String field) {
+		
+		checkRegex(field);
+		
+		directoryExists(collection);
+		
+		CollectionIndexes collectionIndexes = indexes(collection);
+		
+		TextIndex existing = collectionIndexes.getTextIndex(field);
+		
+		if(existing != null) {
+			return existing.getFilling() != null ? existing.getFilling() : CompletableFuture.completedFuture(0);
+		}
+		
+		if(indexer == null) {
+			indexer = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "jeffdb-indexer");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		
+		ExecutorService executor = indexer;
+		
+		TextIndex index = collectionIndexes.defineText(field);
+		
+		Future<Integer> filling = executor.submit(() -> collectionIndexes.fill(index, 
+				consumer -> readAll(collection, consumer), 
+				() -> executor.isShutdown() || indexes.get(collection) != collectionIndexes));
+		
+		index.setFilling(filling);
+		
+		return filling;
+	}
+	
+	/**
+	 * Removes the index on the named field, if there is one.
+	 * 
+	 * @param collection
+	 * @param field
+	 * @return
+	 */
+	public boolean dropIndex(String collection, String field) {
+
+		checkRegex(field);
+		
+		directoryExists(collection);
+		
+		return indexes(collection).drop(field);
+	}
+	
+	/**
+	 * Gets the names of all the indexed fields in the collection.
+	 * 
+	 * @param collection
+	 * @return
+	 */
+	public Set<String> getIndexes(String collection) {
+
+		directoryExists(collection);
+		
+		return indexes(collection).getFields();
+	}
+	
+	/**
+	 * Saves any indexes that have changed since they were last saved.
+	 * Called by close(). Until it's called, indexes will be rebuilt from
+	 * scratch the next time they are used by a new instance.
+	 */
+	public void flushIndexes() {
+		for(CollectionIndexes collectionIndexes : indexes.values()) {
+			if(collectionIndexes.isDirty()) {
+				collectionIndexes.save();
+			}
+		}
+	}
+	
+	/**
+	 * Starts converting collections to their formats, if so configured. 
+	 * Called automatically when running in Spring Boot.
+	 */
+	@PostConstruct
+	public void start() {
+		if(convertFormats) {
+			convertFormats();
+		}
+	}
+	
+	/**
+	 * Saves indexes and stops any background threads. Called automatically 
+	 * at shutdown when running in Spring Boot; embedded users should call
+	 * it when they're done.
+	 */
+	@PreDestroy
+	public void close() {
+		flushIndexes();
+		scanner.close();
+		changes.close();
+		
+		synchronized(this) {
+			if(converter != null) {
+				converter.shutdown();
+				converter = null;
+			}
+			
+			if(indexer != null) {
+				indexer.shutdown();
+				indexer = null;
+			}
+		}
+		
+		detachLog();
+		
+		if(storageEngine != null) {
+			storageEngine.close();
+		}
+	}
+	
+	/**
+	 * Rewrites every object in the collection that isn't already stored in 
+	 * the collection's format, compressed or not according to its setting. 
+	 * Objects can be read and written as usual while this goes on.
+	 * 
+	 * @param collection
+	 * @return how many objects were rewritten
+	 */
+	public int convertFormat(String collection) {
+		return convertFormat(collection, () -> false);
+	}
+	
+	/*
+	 * Same, but giving up part way if told to stop.
+	 */
+	private int convertFormat(String collection, BooleanSupplier stop) {
+		
+		String target = getFormat(collection);
+		
+		File collectionDir = directoryExists(collection);
+		
+		int converted = 0;
+		
+		for(String id : rowIds(collectionDir, null)) {
+			
+			if(stop.getAsBoolean()) {
+				break;
+			}
+			
+			locks.lock(collection, id);
+			
+			try {
+				byte[] stored = storage().read(collectionDir, id);
+				
+				if(stored == null) {
+					continue;
+				}
+				
+				byte[] data = decompress(collection, stored);
+				
+				if(DocumentFormats.formatOf(data).equals(target) 
+						&& DocumentCompression.isCompressed(stored) == compresses(collection, data)) {
+					continue;
+				}
+				
+				storage().write(collectionDir, id, serialize(collection, formats().readTree(data)));
+				
+				converted++;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				cache.invalidate(collection, id);
+				locks.unlock(collection, id);
+			}
+		}
+		
+		return converted;
+	}
+	
+	/**
+	 * Moves the objects in the collection into the number of levels of shards
+	 * set for it, for example to spread out a big collection that was made 
+	 * before sharding was turned on. Objects can be read and written as 
+	 * usual while this goes on, and if it's interrupted, running it again 
+	 * carries on where it left off. Only for the file engine.
+	 * 
+	 * @param collection
+	 * @return how many objects were moved
+	 */
+	public int reshard(String collection) {
+		
+		File collectionDir = directoryExists(collection);
+		
+		if(!(storageEngine instanceof FileStorageEngine)) {
+			throw new IllegalStateException("Only the " + FileStorageEngine.NAME + " storage engine has shards");
+		}
+		
+		FileStorageEngine files = (FileStorageEngine) storageEngine;
+		
+		int moved = 0;
+		
+		try {
+			files.startResharding(collectionDir, getShards(collection));
+			
+			if(!files.isResharding(collectionDir)) {
+				return 0;
+			}
+			
+			for(String id : rowIds(collectionDir, null)) {
+				
+				locks.lock(collection, id);
+				
+				try {
+					if(files.reshard(collectionDir, id)) {
+						moved++;
+					}
+				} finally {
+					locks.unlock(collection, id);
+				}
+			}
+			
+			files.finishResharding(collectionDir);
+			
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		return moved;
+	}
+	
+	/**
+	 * Converts every collection, one after another, on a background thread.
+	 * 
+	 * @return the total number of objects rewritten, once it's done
+	 */
+	public synchronized Future<Integer> convertFormats() {
+		
+		if(converter == null) {
+			converter = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "jeffdb-converter");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		
+		ExecutorService executor = converter;
+		
+		return executor.submit(() -> {
+			
+			int converted = 0;
+			
+			for(String collection : collections()) {
+				converted += convertFormat(collection, executor::isShutdown);
+			}
+			
+			return converted;
+		});
+	}
+	
+	/**
+	 * Deletes the entire collection and all of its objects.
+	 * 
+	 * @param collection
+	 * @return
+	 */
+	public boolean deleteCollection(String collection) {
+
+		checkRegex(collection);
+
+		locks.lockCollection(collection);
+		
+		try {
+			File toDelete = new File(rootDirectory,collection);
+		
+			indexes.remove(collection);
+			
+			collectionsMade.remove(collection);
+			
+			metrics.forget(collection);
+		
+			storage().release(toDelete);
+		
+			boolean deleted;
+			
+			try {
+				deleted = FileSystemUtils.deleteRecursively(toDelete);
+			} finally {
+				cache.invalidateCollection(collection);
+			}
+			
+			if(deleted) {
+				changes.publish(Change.Type.DROP, collection, null);
+			}
+			
+			return deleted;
+		} finally {
+			locks.unlockCollection(collection);
+		}
+		
+	}
+	
+	/**
+	 * Iterates the collection, passing each item to the specified consumer.
+	 * It is up to the consumer to decide what to the do with it.
+	 * 
+	 * @param collection
+	 * @param c
+	 */
+	public void readAll(String collection, Consumer<JsonNode> c){
+		scan(collection, this::readRow, null, c);
+	}
+
+	/**
+	 * Like readAll, but stops after limit objects (unless limit is zero),
+	 * starting after where a previous call left off. 
+	 * 
+	 * @param collection
+	 * @param limit
+	 * @param cursor returned by the previous call, or null to start at the beginning
+	 * @param c
+	 * @return the cursor for the next call, or null if there are no more objects
+	 */
+	public String readAll(String collection, int limit, String cursor, Consumer<JsonNode> c){
+		return scan(collection, this::readRow, null, c, limit, cursor);
+	}
+	
+	/**
+	 * Like readAll, but passing on just the specified fields of each
+	 * object, plus its id.
+	 * 
+	 * @param collection
+	 * @param fields the top level fields to get, or null for all of them
+	 * @param limit
+	 * @param cursor returned by the previous call, or null to start at the beginning
+	 * @param c
+	 * @return the cursor for the next call, or null if there are no more objects
+	 */
+	public String readAll(String collection, Collection<String> fields, int limit, String cursor, Consumer<JsonNode> c){
+		
+		Projection projection = Projection.of(fields);
+		
+		if(projection == null) {
+			return readAll(collection, limit, cursor, c);
+		}
+		
+		return scan(collection, (dir, id) -> readRow(dir, id, null, projection), null, c, limit, cursor);
+	}
+
+	/**
+	 * Iterates the collection, deserialzing each item as the specified
+	 * Java class and passing it to the specified consumer.
+	 * It is up to the consumer to decide what to the do with it.
+	 * 
+	 * @param collection
+	 * @param c
+	 */
+	public <T> void readAll(String collection, Class<T> clazz, Consumer<T> c){
+		scan(collection, (dir, id) -> readRow(dir, id, clazz), null, c);
+	}
+
+	
+	public void archive(String collection) {
+		archive(collection,null);
+	}
+	
+	/**
+	 * Moves the current contents of the collection to an "archive" location,
+	 * notionally like a "recycle bin".
+	 * 
+	 * @param collection
+	 */
+	public void archive(String collection, Predicate<JsonNode> predicate) {
+		
+		checkRegex(collection);
+		
+		long start = metrics.start();
+		
+		locks.lockCollection(collection);
+		
+		try {
+			File collectionDirecory = directoryExists(collection);
+		
+			File archiveDirectory = new File(collectionDirecory,archiveName);
+
+			if(!archiveDirectory.exists()) {
+				archiveDirectory.mkdirs();
+	        }		
+		
+			CollectionIndexes collectionIndexes = indexes(collection);
+		
+			collectionIndexes.changing();
+		
+			boolean needRows = predicate != null || !collectionIndexes.isEmpty();
+		
+			scan(collection, 
+				(dir, id) -> {
+					if(!needRows) {
+						return new IdRow(id, null);
+					}
+					JsonNode row = readRow(dir, id);
+					return row == null ? null : new IdRow(id, row);
+				},
+				ir -> predicate == null || predicate.test(ir.row),
+				ir -> {
+					try {
+						storage().move(collectionDirecory, archiveDirectory, ir.id);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					} finally {
+						cache.invalidate(collection, ir.id);
+					}
+				
+					collectionIndexes.remove(ir.id, ir.row);
+					
+					changes.publish(Change.Type.ARCHIVE, collection, ir.id);
+				});
+		} finally {
+			locks.unlockCollection(collection);
+			metrics.stop(Operation.ARCHIVE, collection, start);
+		}
+		
+	}
+	
+	/**
+	 * Empties the "recycle bin" of objects that have been "archived".
+	 * 
+	 * @param collection
+	 */
+	public void purge(String collection) {
+	
+		checkRegex(collection);
+		
+		locks.lockCollection(collection);
+		
+		try {
+			File collectionDirecory = directoryExists(collection);
+		
+			File archiveDirectory = new File(collectionDirecory,archiveName);
+
+			if(archiveDirectory.exists()) {
+				storage().release(archiveDirectory);
+				FileSystemUtils.deleteRecursively(archiveDirectory);
+			}
+		} finally {
+			locks.unlockCollection(collection);
+		}
+		
+	}
+	
+	/**
+	 * Permanently deletes the entire database including all collections
+	 * and all archived objects.
+	 * 
+	 * @param collection
+	 */
+	public void destroyDatabase() {
+	
+		locks.lockDatabase();
+		
+		try {
+			File rootFile = new File(rootDirectory);
+		
+			indexes.clear();
+		
+			cache.clear();
+			
+			collectionsMade.clear();
+			
+			metrics.forgetAll();
+		
+			storage().release(rootFile);
+		
+			if(rootFile.exists()) {
+				FileSystemUtils.deleteRecursively(rootFile);
+			}
+			
+			changes.publish(Change.Type.DROP, null, null);
+		} finally {
+			locks.unlockDatabase();
+		}
+		
+	}
+	
+	/**
+	 * Gets the sequence number of the latest change to any collection.
+	 * 
+	 * @return
+	 */
+	public long getChangeSequence() {
+		return changes.getSequence();
+	}
+	
+	/**
+	 * Passes every change to the collection from now on to the listener, 
+	 * as it happens: inserts, updates, deletes and archives of objects,
+	 * and the collection being deleted. See addChangeListener below.
+	 * 
+	 * @param collection or null for every collection
+	 * @param listener
+	 * @return
+	 */
+	public ChangeSubscription addChangeListener(String collection, Consumer<Change> listener) {
+		return addChangeListener(collection, changes.getSequence(), listener);
+	}
+	
+	/**
+	 * Passes every change to the collection after the one with the given
+	 * sequence number to the listener, starting with any that have already
+	 * happened, if they're still kept (see setChangeBufferSize). If not,
+	 * the listener is passed a reset first.
+	 * 
+	 * The listener is called on a thread of its own, and one change at a 
+	 * time, in order. It can take as long as it likes; changes carry on
+	 * regardless, and if it gets too far behind, it's passed a reset and 
+	 * skipped ahead. If it throws an exception, it's removed.
+	 * 
+	 * Only changes made through this service are seen, and only those 
+	 * since it started.
+	 * 
+	 * @param collection or null for every collection
+	 * @param since
+	 * @param listener
+	 * @return a subscription, to be closed when the listener is done
+	 */
+	public ChangeSubscription addChangeListener(String collection, long since, Consumer<Change> listener) {
+		return addChangeListener(collection, since, listener, null, CHANGE_WAIT);
+	}
+	
+	/*
+	 * Same, also calling idle when nothing's been passed to the listener 
+	 * for the given number of milliseconds.
+	 */
+	ChangeSubscription addChangeListener(String collection, long since, Consumer<Change> listener, Runnable idle, long idleInterval) {
+		
+		if(collection != null) {
+			checkRegex(collection);
+		}
+		
+		if(!changes.isEnabled()) {
+			throw new IllegalStateException("Changes are turned off");
+		}
+		
+		ChangeSubscription subscription = new ChangeSubscription(changes, collection, since, listener, idle, idleInterval);
+		
+		subscription.start();
+		
+		return subscription;
+	}
+	
+	
+	/*
+	 * "Magic" constants
+	 */
+	final static String ID = "id";
+	final static String ANY_VERSION = "*";
+	private final static int INDEX_SCAN_MINIMUM = 1000;
+	private final static long CHANGE_WAIT = 60_000;
+	/*
+	 * Nothing starting with a dot, which is kept for the database's own
+	 * files, like .wal and .indexes, and would let "." and ".." through.
+	 */
+	private final static String REGEX="^[A-Za-z0-9_-][A-Za-z0-9_.-]*";
+	
+	/*
+	 * Longest name allowed, so that "<id>.json" fits in the 255 bytes most
+	 * file systems allow, and well within what the logs and segments take.
+	 */
+	final static int MAX_NAME_LENGTH = 250;
+	private final static String NAME_RULE = "must match " + REGEX + " and be at most " + MAX_NAME_LENGTH + " characters";
+
+	private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+	/*
+	 * A random UUID, as 32 hex digits without the dashes, written
+	 * straight out rather than formatted and then stripped.
+	 */
+	private String generateId() {
+		
+		UUID uuid = UUID.randomUUID();
+		
+		char[] chars = new char[32];
+		
+		long bits = uuid.getMostSignificantBits();
+		
+		for(int i = 15; i >= 0; i--, bits >>>= 4) {
+			chars[i] = HEX[(int) bits & 0xF];
+		}
+		
+		bits = uuid.getLeastSignificantBits();
+		
+		for(int i = 31; i >= 16; i--, bits >>>= 4) {
+			chars[i] = HEX[(int) bits & 0xF];
+		}
+		
+		return new String(chars);
+	}
+	
+	private DocumentFormats formats() {
+		
+		DocumentFormats f = formats;
+		
+		if(f == null || f.getObjectMapper() != objectMapper) {
+			formats = f = new DocumentFormats(objectMapper);
+		}
+		
+		return f;
+	}
+	
+	/*
+	 * Serializes an object the way its collection stores them.
+	 */
+	private byte[] serialize(String collection, Object row) throws IOException {
+		
+		byte[] data = formats().write(getFormat(collection), row);
+		
+		if(!compresses(collection, data)) {
+			return data;
+		}
+		
+		byte[] compressed = DocumentCompression.compress(data, compressionLevel);
+		
+		CompressionStatistics statistics = compressionStatistics(collection);
+		statistics.compressed.increment();
+		statistics.bytesIn.add(data.length);
+		statistics.bytesOut.add(compressed.length);
+		
+		return compressed;
+	}
+	
+	private boolean compresses(String collection, byte[] data) {
+		return DocumentCompression.DEFLATE.equals(getCompression(collection)) && data.length >= compressionThreshold;
+	}
+	
+	/*
+	 * Undoes any compression of bytes read from the collection.
+	 */
+	private byte[] decompress(String collection, byte[] data) throws IOException {
+		
+		if(data == null || !DocumentCompression.isCompressed(data)) {
+			return data;
+		}
+		
+		long start = System.nanoTime();
+		
+		byte[] decompressed = DocumentCompression.decompress(data);
+		
+		CompressionStatistics statistics = compressionStatistics(collection);
+		statistics.decompressed.increment();
+		statistics.decompressionNanos.add(System.nanoTime() - start);
+		
+		return decompressed;
+	}
+	
+	private CompressionStatistics compressionStatistics(String collection) {
+		return compressionStatistics.computeIfAbsent(collection, c -> new CompressionStatistics());
+	}
+	
+	/*
+	 * Parses a list of collection:setting pairs, passing each to the setter.
+	 */
+	private void perCollection(String settings, BiConsumer<String,String> setter) {
+		for(String entry : settings.split(",")) {
+			
+			if(entry.isBlank()) {
+				continue;
+			}
+			
+			String[] parts = entry.trim().split(":");
+			
+			if(parts.length != 2) {
+				throw new IllegalArgumentException("Expected collection:setting, not " + entry);
+			}
+			
+			setter.accept(parts[0].trim(), parts[1].trim());
+		}
+	}
+	
+	/*
+	 * The names of all the collections there are, which is every
+	 * directory under the root, apart from our own hidden ones.
+	 */
+	private List<String> collections() {
+		
+		String[] names = new File(rootDirectory).list( (dir, name) -> 
+			!name.startsWith(".") && isValidName(name) && new File(dir, name).isDirectory() );
+		
+		if(names == null) {
+			return List.of();
+		}
+		
+		Arrays.sort(names);
+		
+		return Arrays.asList(names);
+	}
+	
+	private StorageEngine storage() {
+		
+		StorageEngine engine = engineInUse;
+		
+		if(engine == null) {
+			synchronized(this) {
+				if(engineInUse == null) {
+					
+					if(storageEngine == null) {
+						storageEngine = StorageEngine.named(storage);
+						
+						if(storageEngine instanceof FileStorageEngine) {
+							((FileStorageEngine) storageEngine).setManifestCheckInterval(manifestCheckInterval);
+							((FileStorageEngine) storageEngine).setManifestWatch(manifestWatch);
+							((FileStorageEngine) storageEngine).setManifest(manifest);
+						}
+						
+						if(storageEngine instanceof SegmentStorageEngine) {
+							((SegmentStorageEngine) storageEngine).setSegmentSize(segmentSize);
+							((SegmentStorageEngine) storageEngine).setCompactionInterval(compactionInterval);
+							((SegmentStorageEngine) storageEngine).setMaxMappedBytes(maxMappedBytes);
+						}
+					}
+					
+					if(WriteAheadLog.NONE.equals(durability)) {
+						engineInUse = storageEngine;
+					} else {
+						WriteAheadLog log = new WriteAheadLog(new File(rootDirectory), storageEngine, durability);
+						log.setWindow(walWindow);
+						log.setGroupRecords(walRecords);
+						log.setMaxLogSize(walSize);
+						
+						try {
+							log.recover();
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+						
+						engineInUse = log;
+					}
+				}
+				engine = engineInUse;
+			}
+		}
+		
+		return engine;
+	}
+	
+	/*
+	 * Checkpoints and closes the write-ahead log, if there is one, so the
+	 * next use starts over with whatever settings there are by then.
+	 */
+	private synchronized void detachLog() {
+		
+		if(engineInUse instanceof WriteAheadLog) {
+			((WriteAheadLog) engineInUse).detach();
+		}
+		
+		engineInUse = null;
+	}
+	
+	private File directoryExists(String collection) {
+		
+		checkRegex(collection);
+		
+		File collectionDir = new File(rootDirectory,collection);
+		
+		if(collectionsMade.contains(collection)) {
+			return collectionDir;
+		}
+		
+		storage();
+		
+		if(!collectionDir.exists() ) {
+			if(storageEngine instanceof FileStorageEngine) {
+				try {
+					((FileStorageEngine) storageEngine).makeDirectory(collectionDir, getShards(collection));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			} else {
+				collectionDir.mkdirs();
+			}
+		}
+		
+		if(storageEngine instanceof FileStorageEngine && ((FileStorageEngine) storageEngine).isManifest()) {
+			collectionsMade.add(collection);
+		}
+		
+		return collectionDir;
+	}
+	
+	/*
+	 * Reads every file in the collection, in order by id, passing what passes
+	 * the filter to the consumer.
+	 */
+	private <R> void scan(String collection, BiFunction<File,String,R> reader, Predicate<? super R> filter, Consumer<? super R> consumer) {
+		scan(collection, reader, filter, consumer, 0, null);
+	}
+	
+	/*
+	 * Same, but starting after the cursor, and stopping after limit results.
+	 * Returns the cursor for the next page, if the limit was reached.
+	 */
+	private <R> String scan(String collection, BiFunction<File,String,R> reader, Predicate<? super R> filter, Consumer<? super R> consumer, 
+			int limit, String cursor) {
+		
+		checkRegex(collection);
+		
+		long start = metrics.start();
+		
+		try {
+			File collectionDir = directoryExists(collection);
+			
+			Consumer<? super R> counted = consumer;
+			
+			if(metrics.isEnabled()) {
+				counted = row -> {
+					metrics.matched(collection);
+					consumer.accept(row);
+				};
+			}
+			
+			String last = scanner.scan(rowIds(collectionDir, Page.after(cursor)), 
+					id -> reader.apply(collectionDir, id), filter, counted, limit);
+			
+			return Page.cursor(last);
+		} finally {
+			metrics.stop(Operation.SCAN, collection, start);
+		}
+	}
+	
+	/*
+	 * Deletes every object the reader returns that passes the filter, 
+	 * if it still passes the condition once it's locked, in case it's
+	 * been changed since it was read.
+	 */
+	private boolean deleteScanned(String collection, BiFunction<File,String,JsonNode> reader, Predicate<JsonNode> filter, Predicate<JsonNode> condition) {
+
+		boolean[] found = { false };
+		
+		scan(collection, reader, filter, row -> {
+			if(deleteRow(collection, row.get(ID).asText(), null, condition)) {
+				found[0] = true;
+			}
+		});
+		
+		return found[0];
+	}
+	
+	/*
+	 * Gets the ids of all the objects in the collection, sorted, 
+	 * optionally only those after the specified id.
+	 */
+	private String[] rowIds(File collectionDir, String after) {
+
+		String[] names;
+		
+		try {
+			names = storage().ids(collectionDir);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		Arrays.sort(names);
+		
+		if(after == null) {
+			return names;
+		}
+		
+		int from = Arrays.binarySearch(names, after);
+		
+		from = from >= 0 ? from + 1 : -from - 1;
+		
+		return Arrays.copyOfRange(names, from, names.length);
+	}
+	
+	/*
+	 * Reads an object, or returns null if there isn't one (any more).
+	 */
+	private JsonNode readRow(File collectionDir, String id) {
+		
+		byte[] data = readBytes(collectionDir, id);
+		
+		if(data == null) {
+			return null;
+		}
+		
+		metrics.parsed(collectionDir.getName());
+		
+		try {
+			return formats().readTree(data);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/*
+	 * Reads an object only if it matches the query, if there is one, 
+	 * checking that before parsing the whole thing; or, with a projection,
+	 * without ever parsing the whole thing.
+	 */
+	private JsonNode readRow(File collectionDir, String id, QueryMatcher matcher, Projection projection) {
+		
+		byte[] data = readBytes(collectionDir, id);
+		
+		if(data == null) {
+			return null;
+		}
+		
+		try {
+			ObjectMapper mapper = formats().mapper(DocumentFormats.formatOf(data));
+			
+			if(matcher != null && !matcher.matches(mapper, data)) {
+				return null;
+			}
+			
+			metrics.parsed(collectionDir.getName());
+			
+			return projection == null ? mapper.readTree(data) : projection.read(mapper, data);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private <T> T readRow(File collectionDir, String id, Class<T> clazz) {
+		
+		byte[] data = readBytes(collectionDir, id);
+		
+		if(data == null) {
+			return null;
+		}
+		
+		metrics.parsed(collectionDir.getName());
+		
+		try {
+			return formats().readValue(data, clazz);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private String version(File collectionDir, String id) {
+		try {
+			return storage().version(collectionDir, id);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/*
+	 * Whether the stored version is the one expected, if any.
+	 */
+	private boolean matches(File collectionDir, String id, String version) {
+		
+		if(version == null) {
+			return true;
+		}
+		
+		String current = version(collectionDir, id);
+		
+		return current != null && (ANY_VERSION.equals(version) || current.equals(version));
+	}
+	
+	/*
+	 * Reads an object's bytes, uncompressed if they were stored compressed.
+	 */
+	private byte[] readBytes(File collectionDir, String id) {
+		
+		try {
+			byte[] stored = storage().read(collectionDir, id);
+			
+			if(stored != null) {
+				metrics.read(collectionDir.getName(), stored.length);
+			}
+			
+			return decompress(collectionDir.getName(), stored);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static class IdRow {
+		final String id;
+		final JsonNode row;
+		
+		IdRow(String id, JsonNode row) {
+			this.id = id;
+			this.row = row;
+		}
+	}
+	
+
+	/*
+	 * Writes the row to its file, keeping the collection's indexes up to date,
+	 * unless a version is given and isn't the one stored.
+	 */
+	private boolean write(String collection, String id, Object row, String version) {
+		
+		byte[] data;
+		
+		try {
+			data = serialize(collection, row);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		long start = metrics.start();
+		
+		locks.lock(collection, id);
+		
+		try {
+			File collectionDir = directoryExists(collection);
+			
+			if(!matches(collectionDir, id, version)) {
+				return false;
+			}
+			
+			CollectionIndexes collectionIndexes = indexes(collection);
+		
+			JsonNode before = null;
+		
+			if(!collectionIndexes.isEmpty()) {
+				collectionIndexes.changing();
+				before = readRow(collectionDir, id);
+			}
+			
+			Change.Type type = changeType(collectionDir, id, !collectionIndexes.isEmpty(), before);
+		
+			try {
+				storage().write(collectionDir, id, data);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				cache.invalidate(collection, id);
+			}
+		
+			if(!collectionIndexes.isEmpty()) {
+				collectionIndexes.remove(id, before);
+				collectionIndexes.add(row instanceof JsonNode ? (JsonNode) row : objectMapper.valueToTree(row));
+			}
+			
+			changes.publish(type, collection, id);
+			
+			return true;
+		} finally {
+			locks.unlock(collection, id);
+			metrics.stop(Operation.INSERT, collection, start);
+		}
+	}
+	
+	/*
+	 * Whether writing the object will be an insert or an update, for the
+	 * change feed; if the indexes needed it read first, that says, or else
+	 * the storage engine is asked for its version.
+	 */
+	private Change.Type changeType(File collectionDir, String id, boolean wasRead, JsonNode before) {
+		
+		if(!changes.isEnabled()) {
+			return null;
+		}
+		
+		boolean exists = wasRead ? before != null : version(collectionDir, id) != null;
+		
+		return exists ? Change.Type.UPDATE : Change.Type.INSERT;
+	}
+	
+	/*
+	 * Same, for a batch of rows.
+	 */
+	private void writeAll(String collection, Map<String,ObjectNode> rows) {
+		
+		if(rows.isEmpty()) {
+			return;
+		}
+		
+		Map<String,byte[]> data = new LinkedHashMap<>();
+		
+		try {
+			for(Map.Entry<String,ObjectNode> row : rows.entrySet()) {
+				data.put(row.getKey(), serialize(collection, row.getValue()));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		locks.lockAll(collection, rows.keySet());
+		
+		try {
+			File collectionDir = directoryExists(collection);
+			
+			CollectionIndexes collectionIndexes = indexes(collection);
+		
+			Map<String,JsonNode> before = new HashMap<>();
+		
+			if(!collectionIndexes.isEmpty()) {
+				collectionIndexes.changing();
+				rows.keySet().forEach( id -> before.put(id, readRow(collectionDir, id)) );
+			}
+			
+			Map<String,Change.Type> types = new LinkedHashMap<>();
+			
+			if(changes.isEnabled()) {
+				rows.keySet().forEach( id -> types.put(id, changeType(collectionDir, id, !collectionIndexes.isEmpty(), before.get(id))) );
+			}
+		
+			try {
+				storage().writeAll(collectionDir, data);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				rows.keySet().forEach( id -> cache.invalidate(collection, id) );
+			}
+		
+			if(!collectionIndexes.isEmpty()) {
+				rows.forEach( (id,row) -> {
+					collectionIndexes.remove(id, before.get(id));
+					collectionIndexes.add(row);
+				});
+			}
+			
+			changes.publishAll(collection, types);
+		} finally {
+			locks.unlockAll(collection, rows.keySet());
+		}
+	}
+	
+	/*
+	 * Reads through the cache. The node returned may be the cached instance,
+	 * so must be copied before it's handed to anyone who might change it.
+	 */
+	private ObjectNode cachedGet(String collection, String id) {
+		
+		checkRegex(collection);
+		
+		ObjectNode row = cache.get(collection, id);
+		
+		if(row != null) {
+			return row;
+		}
+		
+		long generation = cache.generation(collection);
+		
+		byte[] data = readBytes(directoryExists(collection), id);
+		
+		if(data == null) {
+			return null;
+		}
+		
+		metrics.parsed(collection);
+		
+		try {
+			row = (ObjectNode) formats().readTree(data);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		cache.put(collection, id, row.deepCopy(), data.length, generation);
+		
+		return row;
+	}
+	
+	private CollectionIndexes indexes(String collection) {
+		return indexes.computeIfAbsent(collection, c -> {
+			
+			CollectionIndexes collectionIndexes = new CollectionIndexes(new File(rootDirectory, c), objectMapper);
+			
+			if(!collectionIndexes.load()) {
+				collectionIndexes.rebuild(consumer -> readAll(c, consumer));
+			}
+			
+			return collectionIndexes;
+		});
+	}
+	
+	/*
+	 * Picks out the objects that might match the query using indexes, or 
+	 * returns null if it's better to scan the whole collection: either the
+	 * indexes can't help, or they leave so much of the collection that a 
+	 * scan, which can be parallel and skips objects that don't match 
+	 * without parsing them, would be about as quick.
+	 */
+	private NavigableSet<String> candidates(String collection, JsonNode params) {
+		
+		File collectionDir = directoryExists(collection);
+		
+		CollectionIndexes collectionIndexes = indexes(collection);
+		
+		NavigableSet<String> candidates = collectionIndexes.candidates(params);
+		
+		if(candidates != null && candidates.size() >= INDEX_SCAN_MINIMUM 
+				&& candidates.size() * 2 > collectionIndexes.size(() -> rowIds(collectionDir, null).length)) {
+			return null;
+		}
+		
+		return candidates;
+	}
+	
+	void checkRegex(String collection) {
+		if( !isValidName(collection) ) {
+			throw new IllegalArgumentException("Collection and ID names " + NAME_RULE);
+		}
+	}
+	
+	/*
+	 * The same as matching REGEX, checked a character at a time, since
+	 * this is done for every id of every read and write, and not too long.
+	 */
+	static boolean isValidName(String name) {
+		
+		if(name.isEmpty() || name.length() > MAX_NAME_LENGTH || name.charAt(0) == '.') {
+			return false;
+		}
+		
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			
+			if(!( (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '.' || c == '-' )) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
 	
 }
@@ -0,0 +1,205 @@
+package com.adaptershack.jeffdb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A bounded, least-recently-used cache of objects read by id.
+ * 
+ * The cache is limited both by number of entries and by total bytes,
+ * where an entry's size is taken to be the size of its file on disk.
+ * 
+ * Cached nodes are never handed out or modified; callers must store a copy
+ * and copy whatever they get back before giving it to anyone else.
+ * 
+ * @author Jeff
+ *
+ */
+class DocumentCache {
+
+	private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	
+	private final Map<String,CacheStatistics> statistics = new ConcurrentHashMap<>();
+	
+	private volatile int maxEntries;
+	
+	private long maxBytes;
+	
+	private long bytes;
+
+	/*
+	 * Bumped by every invalidation in the collection, or by clearing the
+	 * whole cache, so that a read which started before a write can tell it
+	 * should not cache what it read, without writes to other collections
+	 * keeping it from caching anything.
+	 */
+	private final Map<String,Long> generations = new HashMap<>();
+	private long generation;
+	
+	private static class Entry {
+		final ObjectNode row;
+		final long size;
+		
+		Entry(ObjectNode row, long size) {
+			this.row = row;
+			this.size = size;
+		}
+	}
+
+	boolean isEnabled() {
+		return maxEntries > 0;
+	}
+	
+	int getMaxEntries() {
+		return maxEntries;
+	}
+
+	synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		evict();
+	}
+
+	synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * Looks up an object, counting the hit or miss against its collection.
+	 * 
+	 * @param collection
+	 * @param id
+	 * @return the cached node, which must not be modified, or null
+	 */
+	ObjectNode get(String collection, String id) {
+		
+		Entry entry;
+		
+		synchronized(this) {
+			entry = entries.get(key(collection,id));
+		}
+		
+		CacheStatistics s = statistics(collection);
+		
+		if(entry == null) {
+			s.misses.increment();
+			return null;
+		} else {
+			s.hits.increment();
+			return entry.row;
+		}
+	}
+	
+	/**
+	 * Something to pass to put() for an object about to be read from the
+	 * collection; both only ever go up, so their sum changes whenever
+	 * either does.
+	 * 
+	 * @param collection
+	 * @return
+	 */
+	synchronized long generation(String collection) {
+		return generation + generations.getOrDefault(collection, 0L);
+	}
+	
+	/**
+	 * Caches an object, unless anything in its collection has been 
+	 * invalidated since the specified generation, in which case the object
+	 * may already be stale.
+	 * 
+	 * @param collection
+	 * @param id
+	 * @param row a private copy, which the cache now owns
+	 * @param size
+	 * @param generation
+	 */
+	synchronized void put(String collection, String id, ObjectNode row, long size, long generation) {
+
+		if(!isEnabled() || generation != generation(collection) || (maxBytes > 0 && size > maxBytes)) {
+			return;
+		}
+		
+		Entry previous = entries.put(key(collection,id), new Entry(row,size));
+		
+		if(previous != null) {
+			bytes -= previous.size;
+		}
+		
+		bytes += size;
+		
+		evict();
+	}
+
+	synchronized void invalidate(String collection, String id) {
+		generations.merge(collection, 1L, Long::sum);
+		
+		Entry removed = entries.remove(key(collection,id));
+		
+		if(removed != null) {
+			bytes -= removed.size;
+		}
+	}
+	
+	synchronized void invalidateCollection(String collection) {
+		generations.merge(collection, 1L, Long::sum);
+		
+		String prefix = key(collection, "");
+		
+		Iterator<Map.Entry<String,Entry>> i = entries.entrySet().iterator();
+		
+		while(i.hasNext()) {
+			Map.Entry<String,Entry> e = i.next();
+			
+			if(e.getKey().startsWith(prefix)) {
+				bytes -= e.getValue().size;
+				i.remove();
+			}
+		}
+	}
+
+	synchronized void clear() {
+		generation++;
+		entries.clear();
+		bytes = 0;
+	}
+	
+	synchronized int size() {
+		return entries.size();
+	}
+	
+	synchronized long bytes() {
+		return bytes;
+	}
+	
+	Map<String,CacheStatistics> getStatistics() {
+		return new TreeMap<>(statistics);
+	}
+	
+	private CacheStatistics statistics(String collection) {
+		return statistics.computeIfAbsent(collection, c -> new CacheStatistics());
+	}
+
+	private void evict() {
+		Iterator<Entry> i = entries.values().iterator();
+
+		while(i.hasNext() && (entries.size() > maxEntries || (maxBytes > 0 && bytes > maxBytes))) {
+			bytes -= i.next().size;
+			i.remove();
+		}
+	}
+	
+	private static String key(String collection, String id) {
+		return collection + '/' + id;
+	}
+	
+}
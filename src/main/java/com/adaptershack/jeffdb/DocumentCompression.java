@@ -0,0 +1,112 @@
+package com.adaptershack.jeffdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses serialized objects, with Deflate from java.util.zip.
+ *
+ * A compressed object starts with a header no format can start with,
+ * followed by its uncompressed length, so compressed and uncompressed
+ * objects can be told apart when read and a collection can hold both.
+ *
+ * @author Jeff
+ *
+ */
+class DocumentCompression {
+
+	static final String NONE = "none";
+
+	static final String DEFLATE = "deflate";
+
+	private static final byte[] MAGIC = { 0x1F, 'j', 'z', 1 };
+
+	private static final int HEADER = MAGIC.length + Integer.BYTES;
+
+	static byte[] compress(byte[] data, int level) {
+
+		Deflater deflater = new Deflater(level);
+
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER + data.length / 2);
+
+			out.write(MAGIC, 0, MAGIC.length);
+			out.write(ByteBuffer.allocate(Integer.BYTES).putInt(data.length).array(), 0, Integer.BYTES);
+
+			byte[] buffer = new byte[Math.min(Math.max(data.length, 64), 64 * 1024)];
+
+			while(!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	static boolean isCompressed(byte[] data) {
+		return data.length >= HEADER && Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+	}
+
+	/**
+	 * Gets back the original bytes of a compressed object.
+	 *
+	 * @param data
+	 * @return
+	 * @throws IOException if the data is corrupt
+	 */
+	static byte[] decompress(byte[] data) throws IOException {
+
+		int length = ByteBuffer.wrap(data, MAGIC.length, Integer.BYTES).getInt();
+
+		Inflater inflater = new Inflater();
+
+		try {
+			inflater.setInput(data, HEADER, data.length - HEADER);
+
+			byte[] result = new byte[length];
+
+			int n = 0;
+
+			while(n < length && !inflater.finished()) {
+				int inflated = inflater.inflate(result, n, length - n);
+
+				if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+
+				n += inflated;
+			}
+
+			if(n != length || !inflater.finished()) {
+				throw new IOException("Compressed object is corrupt");
+			}
+
+			return result;
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	static String checkCompression(String compression) {
+		switch(compression) {
+		case NONE:
+		case DEFLATE:
+			return compression;
+		default:
+			throw new IllegalArgumentException("Unknown compression " + compression);
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.adaptershack.jeffdb;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Serializes objects as text Json, or as one of the binary formats Jackson
+ * supports, Smile or CBOR, which are smaller and quicker to parse.
+ *
+ * Both binary formats are written with a header, so whatever format an
+ * object was stored in can be told from its first few bytes; anything
+ * without one is taken to be Json. So a collection can hold objects in a
+ * mix of formats, and they all read the same.
+ *
+ * The binary mappers are copies of the Json one, so they share its
+ * configuration and modules. Readers and writers for Java classes are
+ * made once per class and format, and reused.
+ *
+ * @author Jeff
+ *
+ */
+class DocumentFormats {
+
+	static final String JSON = "json";
+
+	static final String SMILE = "smile";
+
+	static final String CBOR = "cbor";
+
+	private final ObjectMapper json;
+
+	private final ObjectMapper smile;
+
+	private final ObjectMapper cbor;
+
+	private final Map<String,Map<Class<?>,ObjectReader>> readers = new ConcurrentHashMap<>();
+
+	private final Map<String,Map<Class<?>,ObjectWriter>> writers = new ConcurrentHashMap<>();
+
+	DocumentFormats(ObjectMapper json) {
+		this.json = json;
+		this.smile = json.copyWith(new SmileFactory());
+		this.cbor = json.copyWith(new CBORFactory().enable(CBORGenerator.Feature.WRITE_TYPE_HEADER));
+	}
+
+	ObjectMapper getObjectMapper() {
+		return json;
+	}
+
+	byte[] write(String format, Object row) throws IOException {
+		
+		if(row instanceof JsonNode) {
+			return mapper(format).writeValueAsBytes(row);
+		}
+		
+		return writers.computeIfAbsent(format, f -> new ConcurrentHashMap<>())
+				.computeIfAbsent(row.getClass(), c -> mapper(format).writerFor(c))
+				.writeValueAsBytes(row);
+	}
+
+	JsonNode readTree(byte[] data) throws IOException {
+		return mapper(formatOf(data)).readTree(data);
+	}
+
+	<T> T readValue(byte[] data, Class<T> clazz) throws IOException {
+		
+		String format = formatOf(data);
+		
+		return readers.computeIfAbsent(format, f -> new ConcurrentHashMap<>())
+				.computeIfAbsent(clazz, c -> mapper(format).readerFor(c))
+				.readValue(data);
+	}
+
+	/**
+	 * Gets the mapper for a format, by name.
+	 *
+	 * @param format
+	 * @return
+	 */
+	ObjectMapper mapper(String format) {
+		switch(format) {
+		case JSON:
+			return json;
+		case SMILE:
+			return smile;
+		case CBOR:
+			return cbor;
+		default:
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+	}
+
+	/**
+	 * Works out which format the bytes are in from the header, if any.
+	 *
+	 * @param data
+	 * @return
+	 */
+	static String formatOf(byte[] data) {
+
+		// Smile starts with ":)\n"
+		if(data.length >= 3 && data[0] == ':' && data[1] == ')' && data[2] == '\n') {
+			return SMILE;
+		}
+
+		// CBOR's self-describing tag, 55799
+		if(data.length >= 3 && (data[0] & 0xFF) == 0xD9 && (data[1] & 0xFF) == 0xD9 && (data[2] & 0xFF) == 0xF7) {
+			return CBOR;
+		}
+
+		return JSON;
+	}
+
+	/**
+	 * Checks a format name, so a bad one is caught when it's set rather
+	 * than at the next write.
+	 *
+	 * @param format
+	 * @return
+	 */
+	static String checkFormat(String format) {
+		switch(format) {
+		case JSON:
+		case SMILE:
+		case CBOR:
+			return format;
+		default:
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+	}
+
+}
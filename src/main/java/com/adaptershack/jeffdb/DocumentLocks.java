@@ -0,0 +1,120 @@
+package com.adaptershack.jeffdb;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps changes to the same object from overlapping, and changes to whole
+ * collections (or the whole database) from overlapping changes to anything
+ * in them.
+ *
+ * Changing an object takes the database and its collection for reading,
+ * then one of a fixed number of stripes picked by hashing the collection
+ * and id. So different objects can nearly always be changed in parallel,
+ * while the same object can only be changed by one thread at a time.
+ *
+ * Nothing here is taken for reading objects; writes are atomic, so
+ * readers don't need them.
+ *
+ * @author Jeff
+ *
+ */
+class DocumentLocks {
+
+	private static final int STRIPES = 256;
+
+	private final ReentrantReadWriteLock database = new ReentrantReadWriteLock();
+
+	private final Map<String,ReentrantReadWriteLock> collections = new ConcurrentHashMap<>();
+
+	private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+	DocumentLocks() {
+		for(int i = 0; i < STRIPES; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	void lock(String collection, String id) {
+		lockCollectionShared(collection);
+		stripes[stripe(collection, id)].lock();
+	}
+
+	void unlock(String collection, String id) {
+		stripes[stripe(collection, id)].unlock();
+		unlockCollectionShared(collection);
+	}
+
+	/*
+	 * Stripes are always taken in the same order, so two threads
+	 * locking overlapping sets can't deadlock.
+	 */
+
+	void lockAll(String collection, Collection<String> ids) {
+		lockCollectionShared(collection);
+		for(int s : stripes(collection, ids)) {
+			stripes[s].lock();
+		}
+	}
+
+	void unlockAll(String collection, Collection<String> ids) {
+		for(int s : stripes(collection, ids)) {
+			stripes[s].unlock();
+		}
+		unlockCollectionShared(collection);
+	}
+
+	/**
+	 * Waits for changes in progress in the collection to finish, and keeps
+	 * new ones out until unlocked.
+	 *
+	 * @param collection
+	 */
+	void lockCollection(String collection) {
+		database.readLock().lock();
+		collection(collection).writeLock().lock();
+	}
+
+	void unlockCollection(String collection) {
+		collection(collection).writeLock().unlock();
+		database.readLock().unlock();
+	}
+
+	/**
+	 * Waits for all changes in progress to finish, and keeps new ones out
+	 * until unlocked.
+	 */
+	void lockDatabase() {
+		database.writeLock().lock();
+	}
+
+	void unlockDatabase() {
+		database.writeLock().unlock();
+	}
+
+	private void lockCollectionShared(String collection) {
+		database.readLock().lock();
+		collection(collection).readLock().lock();
+	}
+
+	private void unlockCollectionShared(String collection) {
+		collection(collection).readLock().unlock();
+		database.readLock().unlock();
+	}
+
+	private ReentrantReadWriteLock collection(String collection) {
+		return collections.computeIfAbsent(collection, c -> new ReentrantReadWriteLock());
+	}
+
+	private static int stripe(String collection, String id) {
+		return Math.floorMod(31 * collection.hashCode() + id.hashCode(), STRIPES);
+	}
+
+	private static int[] stripes(String collection, Collection<String> ids) {
+		return ids.stream().mapToInt(id -> stripe(collection, id)).distinct().sorted().toArray();
+	}
+
+}
@@ -0,0 +1,774 @@
+package com.adaptershack.jeffdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The original storage engine, and still the default: each object
+ * is a file named after its id, plus ".json".
+ *
+ * Optionally, the ids in each directory are kept in memory (see
+ * IdManifest), so that listing them doesn't mean reading the directory.
+ *
+ * A directory can also be sharded, with its files spread over one or
+ * more levels of subdirectories named after a hash of the id, like 
+ * "3f/a9/<id>.json", so that no one directory gets too big. How many 
+ * levels is kept in a ".shards" file in the directory; without one, the
+ * files are all in the directory itself. While a directory is being
+ * resharded, the file says which layout objects are moving from too, and
+ * objects are looked for in both.
+ *
+ * @author Jeff
+ *
+ */
+public class FileStorageEngine implements StorageEngine {
+
+	static final String NAME = "files";
+
+	static final String DOT_JSON = ".json";
+
+	static final String DOT_TMP = ".tmp";
+
+	static final String DOT_SHARDS = ".shards";
+
+	/*
+	 * Each level of shards takes a byte of the hash.
+	 */
+	static final int MAX_SHARDS = 4;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final Layout FLAT = new Layout(0, -1);
+
+	/* nanoseconds every modified time this writes ends in */
+	private static final int STAMPED = 1;
+
+	private final AtomicLong temps = new AtomicLong(System.nanoTime());
+
+	/* in microseconds */
+	private final AtomicLong lastModified = new AtomicLong();
+
+	private volatile IdManifest manifest;
+
+	private long manifestCheckInterval = 60_000;
+
+	private boolean manifestWatch;
+
+	/*
+	 * The layout of each directory that's been used, read from its
+	 * ".shards" file the first time.
+	 */
+	private final Map<File,Layout> layouts = new ConcurrentHashMap<>();
+
+	/*
+	 * How many levels of shards a directory has and, while it's being
+	 * resharded, how many it had before, otherwise -1.
+	 */
+	private static class Layout {
+
+		final int shards;
+
+		final int previous;
+
+		Layout(int shards, int previous) {
+			this.shards = shards;
+			this.previous = previous;
+		}
+
+		boolean isResharding() {
+			return previous >= 0;
+		}
+	}
+
+	public boolean isManifest() {
+		return manifest != null;
+	}
+
+	/**
+	 * Sets whether to keep the ids in each directory in memory. If anything
+	 * other than this engine adds or removes objects, they may not be seen,
+	 * or be seen when they're gone, until the next check; see below.
+	 *
+	 * @param enabled
+	 */
+	public synchronized void setManifest(boolean enabled) {
+
+		if(enabled == isManifest()) {
+			return;
+		}
+
+		if(!enabled) {
+			manifest.close();
+			manifest = null;
+			return;
+		}
+
+		manifest = new IdManifest(this::listIds, FileStorageEngine::idOf, manifestCheckInterval, manifestWatch);
+	}
+
+	public long getManifestCheckInterval() {
+		return manifestCheckInterval;
+	}
+
+	/**
+	 * Sets how often, in milliseconds, every directory in the manifest is
+	 * listed again in case of changes made by anyone else; 0 means never.
+	 * Takes effect when the manifest is next turned on.
+	 *
+	 * @param manifestCheckInterval
+	 */
+	public void setManifestCheckInterval(long manifestCheckInterval) {
+		this.manifestCheckInterval = manifestCheckInterval;
+	}
+
+	public boolean isManifestWatch() {
+		return manifestWatch;
+	}
+
+	/**
+	 * Sets whether to watch directories in the manifest for changes made
+	 * by anyone else, so they're seen without waiting for the next check.
+	 * Only the top of a sharded directory is watched, not its shards.
+	 * Takes effect when the manifest is next turned on.
+	 *
+	 * @param manifestWatch
+	 */
+	public void setManifestWatch(boolean manifestWatch) {
+		this.manifestWatch = manifestWatch;
+	}
+
+	@Override
+	public byte[] read(File directory, String id) throws IOException {
+		return find(directory, id, file -> {
+			try {
+				return Files.readAllBytes(file.toPath());
+			} catch (NoSuchFileException e) {
+				return null;
+			}
+		});
+	}
+
+	/*
+	 * Every write stamps its file with a modified time of its own, since 
+	 * the times the filesystem keeps are only so fine. Where they're too
+	 * coarse to keep the stamp, or the file wasn't written here, it falls
+	 * back to a hash of the contents.
+	 */
+	@Override
+	public String version(File directory, String id) throws IOException {
+
+		BasicFileAttributes attributes = find(directory, id, file -> {
+			try {
+				return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			} catch (NoSuchFileException e) {
+				return null;
+			}
+		});
+
+		if(attributes == null) {
+			return null;
+		}
+
+		long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+		if(modified % 1000 != STAMPED) {
+			return StorageEngine.super.version(directory, id);
+		}
+
+		return Long.toHexString(modified) + "-" + Long.toHexString(attributes.size());
+	}
+
+	/*
+	 * Written to a temporary file, then renamed over the real one, so 
+	 * nobody ever reads half an object.
+	 */
+	@Override
+	public void write(File directory, String id, byte[] data) throws IOException {
+
+		Layout layout = layout(directory);
+
+		File file = rowFile(directory, id, layout.shards);
+
+		Path temp = new File(file.getParentFile(), tempName()).toPath();
+
+		try {
+			try {
+				Files.write(temp, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			} catch (NoSuchFileException e) {
+				// the shard isn't there yet, or the directory went away, behind the back of whoever checked it was there
+				file.getParentFile().mkdirs();
+				Files.write(temp, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			}
+			Files.setLastModifiedTime(temp, FileTime.from(modified(), TimeUnit.NANOSECONDS));
+			Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		if(layout.isResharding()) {
+			Files.deleteIfExists(rowFile(directory, id, layout.previous).toPath());
+		}
+
+		IdManifest m = manifest;
+
+		if(m != null) {
+			m.added(directory, id);
+		}
+	}
+
+	@Override
+	public boolean delete(File directory, String id) throws IOException {
+
+		Layout layout = layout(directory);
+
+		boolean deleted = false;
+
+		// the old place first, so that resharding can't put it back in the new one afterwards
+		if(layout.isResharding()) {
+			deleted = Files.deleteIfExists(rowFile(directory, id, layout.previous).toPath());
+		}
+
+		deleted |= Files.deleteIfExists(rowFile(directory, id, layout.shards).toPath());
+
+		IdManifest m = manifest;
+
+		if(m != null) {
+			m.removed(directory, id);
+		}
+
+		return deleted;
+	}
+
+	@Override
+	public String[] ids(File directory) {
+
+		IdManifest m = manifest;
+
+		return m != null ? m.ids(directory) : listIds(directory);
+	}
+
+	private String[] listIds(File directory) {
+
+		Layout layout = layout(directory);
+
+		if(!layout.isResharding()) {
+			return listIds(directory, layout.shards);
+		}
+
+		Set<String> ids = new HashSet<>(Arrays.asList(listIds(directory, layout.previous)));
+		ids.addAll(Arrays.asList(listIds(directory, layout.shards)));
+
+		return ids.toArray(new String[0]);
+	}
+
+	/*
+	 * The shards are listed in parallel, each being a directory of its own.
+	 */
+	private String[] listIds(File directory, int shards) {
+
+		if(shards > 0) {
+			File[] subdirectories = directory.listFiles( (dir,name) -> isShard(name) );
+
+			if(subdirectories == null) {
+				return new String[0];
+			}
+
+			return Arrays.stream(subdirectories)
+				.parallel()
+				.flatMap(shard -> Arrays.stream(listIds(shard, shards - 1)))
+				.toArray(String[]::new);
+		}
+
+		String[] names = directory.list( (dir,name) -> name.endsWith(DOT_JSON));
+
+		if(names == null) {
+			return new String[0];
+		}
+
+		for(int i = 0; i < names.length; i++) {
+			names[i] = names[i].substring(0, names[i].length() - DOT_JSON.length());
+		}
+
+		return names;
+	}
+
+	@Override
+	public void move(File from, File to, String id) throws IOException {
+
+		Layout layout = layout(from);
+
+		File target = rowFile(to, id);
+
+		target.getParentFile().mkdirs();
+
+		try {
+			Files.move(rowFile(from, id, layout.shards).toPath(), target.toPath());
+		} catch (NoSuchFileException e) {
+			if(layout.isResharding()) {
+				try {
+					Files.move(rowFile(from, id, layout.previous).toPath(), target.toPath());
+				} catch (NoSuchFileException e2) {
+					// deleted in the meantime
+				}
+			}
+		}
+
+		IdManifest m = manifest;
+
+		if(m != null) {
+			m.removed(from, id);
+
+			if(target.exists()) {
+				m.added(to, id);
+			}
+		}
+	}
+
+	@Override
+	public void release(File directory) {
+
+		File released = directory.getAbsoluteFile();
+
+		layouts.keySet().removeIf(d -> d.toPath().startsWith(released.toPath()));
+
+		IdManifest m = manifest;
+
+		if(m != null) {
+			m.release(directory);
+		}
+	}
+
+	/*
+	 * Each file that's still there, then the directories they're in, for
+	 * the ones that were created or deleted.
+	 */
+	@Override
+	public void sync(File directory, Set<String> ids) throws IOException {
+
+		Layout layout = layout(directory);
+
+		Set<File> directories = new HashSet<>();
+
+		directories.add(directory);
+
+		for(String id : ids) {
+			File file = rowFile(directory, id, layout.shards);
+
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.force(true);
+			} catch (NoSuchFileException e) {
+				// deleted
+			}
+
+			directories.add(file.getParentFile());
+
+			if(layout.isResharding()) {
+				directories.add(rowFile(directory, id, layout.previous).getParentFile());
+			}
+		}
+
+		for(File d : directories) {
+			try (FileChannel channel = FileChannel.open(d.toPath(), StandardOpenOption.READ)) {
+				channel.force(true);
+			} catch (IOException e) {
+				// not every platform can open a directory
+			}
+		}
+	}
+
+	/**
+	 * Gets how many levels of shards the directory has, or while it's being
+	 * resharded, is going to have.
+	 *
+	 * @param directory
+	 * @return
+	 */
+	public int getShards(File directory) {
+		return layout(directory).shards;
+	}
+
+	/**
+	 * Whether the directory was left part way through being resharded.
+	 *
+	 * @param directory
+	 * @return
+	 */
+	public boolean isResharding(File directory) {
+		return layout(directory).isResharding();
+	}
+
+	/**
+	 * Makes a directory with the given number of levels of shards, if it
+	 * isn't there already. It's made under another name, then renamed, so
+	 * that nobody sees it before its ".shards" file is in it.
+	 *
+	 * @param directory
+	 * @param shards
+	 * @throws IOException
+	 */
+	public void makeDirectory(File directory, int shards) throws IOException {
+
+		checkShards(shards);
+
+		if(shards == 0 || directory.exists()) {
+			directory.mkdirs();
+			return;
+		}
+
+		File parent = directory.getAbsoluteFile().getParentFile();
+
+		parent.mkdirs();
+
+		File temp = new File(parent, tempName());
+
+		try {
+			Files.createDirectory(temp.toPath());
+
+			writeLayout(temp, new Layout(shards, -1));
+
+			Files.move(temp.toPath(), directory.toPath());
+
+		} catch (FileAlreadyExistsException e) {
+			// somebody else made it first
+		} finally {
+			Files.deleteIfExists(new File(temp, DOT_SHARDS).toPath());
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	/**
+	 * Starts resharding a directory. From now on objects are written with
+	 * the new number of levels of shards, and looked for in both places,
+	 * until finishResharding() is called. If the directory was left part
+	 * way through being resharded, it has to carry on with the same number.
+	 *
+	 * @param directory
+	 * @param shards
+	 * @throws IOException
+	 */
+	public void startResharding(File directory, int shards) throws IOException {
+
+		checkShards(shards);
+
+		synchronized(layouts) {
+
+			Layout layout = layout(directory);
+
+			if(layout.isResharding()) {
+				if(layout.shards != shards) {
+					throw new IllegalStateException(directory + " is already being resharded to " + layout.shards);
+				}
+				return;
+			}
+
+			if(layout.shards == shards) {
+				return;
+			}
+
+			setLayout(directory, new Layout(shards, layout.shards));
+		}
+	}
+
+	/**
+	 * Moves one object from where it was before resharding started to where
+	 * it goes now, unless it has already been written there, in which case
+	 * the old copy is just deleted.
+	 *
+	 * @param directory
+	 * @param id
+	 * @return whether it was moved
+	 * @throws IOException
+	 */
+	public boolean reshard(File directory, String id) throws IOException {
+
+		Layout layout = layout(directory);
+
+		if(!layout.isResharding()) {
+			return false;
+		}
+
+		Path from = rowFile(directory, id, layout.previous).toPath();
+		Path to = rowFile(directory, id, layout.shards).toPath();
+
+		/*
+		 * Linked, then unlinked, rather than moved, since a link is never
+		 * made over a file that's there, whereas a move has to check first,
+		 * and a newer copy could be written in between.
+		 */
+		try {
+			try {
+				Files.createLink(to, from);
+			} catch (NoSuchFileException e) {
+				// either the shard isn't there yet, or the object has gone
+				to.getParent().toFile().mkdirs();
+				Files.createLink(to, from);
+			}
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (FileAlreadyExistsException e) {
+			Files.deleteIfExists(from);
+			return false;
+		} catch (UnsupportedOperationException e) {
+			try {
+				to.getParent().toFile().mkdirs();
+				Files.move(from, to);
+			} catch (NoSuchFileException | FileAlreadyExistsException e2) {
+				Files.deleteIfExists(from);
+				return false;
+			}
+			return true;
+		}
+
+		Files.deleteIfExists(from);
+
+		return true;
+	}
+
+	/**
+	 * Finishes resharding once every object has been moved, clearing away
+	 * the shards they were moved out of, if they're empty.
+	 *
+	 * @param directory
+	 * @throws IOException
+	 */
+	public void finishResharding(File directory) throws IOException {
+
+		synchronized(layouts) {
+
+			Layout layout = layout(directory);
+
+			if(!layout.isResharding()) {
+				return;
+			}
+
+			setLayout(directory, new Layout(layout.shards, -1));
+
+			if(layout.previous > 0) {
+				removeEmptyShards(directory, layout.previous);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+
+		IdManifest m = manifest;
+
+		if(m != null) {
+			m.close();
+		}
+	}
+
+	/*
+	 * The time now, in nanoseconds, but never the same microsecond twice,
+	 * and always ending in STAMPED, which only survives a filesystem that
+	 * keeps times to the nanosecond.
+	 */
+	private long modified() {
+		Instant now = Instant.now();
+		long micros = now.getEpochSecond() * 1_000_000L + now.getNano() / 1000;
+		return lastModified.accumulateAndGet(micros, (last, next) -> Math.max(last + 1, next)) * 1000 + STAMPED;
+	}
+
+	private static String idOf(String name) {
+		return name.endsWith(DOT_JSON) && !name.startsWith(".") ? name.substring(0, name.length() - DOT_JSON.length()) : null;
+	}
+
+	private File rowFile(File directory, String id) {
+		return rowFile(directory, id, layout(directory).shards);
+	}
+
+	private File rowFile(File directory, String id, int shards) {
+
+		if(shards == 0) {
+			return new File(directory, id + DOT_JSON);
+		}
+
+		int hash = hash(id);
+
+		StringBuilder path = new StringBuilder(shards * 3 + id.length() + DOT_JSON.length());
+
+		for(int i = 0; i < shards; i++) {
+			int b = (hash >>> (24 - 8 * i)) & 0xff;
+			path.append(HEX[b >>> 4]).append(HEX[b & 0xf]).append(File.separatorChar);
+		}
+
+		return new File(directory, path.append(id).append(DOT_JSON).toString());
+	}
+
+	/*
+	 * 32 bit FNV-1a, rather than hashCode(), whose top bits hardly change
+	 * between ids like "a1" and "a2". It mustn't ever change, or nothing
+	 * already stored would be found.
+	 */
+	static int hash(String id) {
+
+		int hash = 0x811c9dc5;
+
+		for(int i = 0; i < id.length(); i++) {
+			hash ^= id.charAt(i);
+			hash *= 0x01000193;
+		}
+
+		return hash;
+	}
+
+	static void checkShards(int shards) {
+		if(shards < 0 || shards > MAX_SHARDS) {
+			throw new IllegalArgumentException("Shards must be from 0 to " + MAX_SHARDS);
+		}
+	}
+
+	private static boolean isShard(String name) {
+		return name.length() == 2 && isHex(name.charAt(0)) && isHex(name.charAt(1));
+	}
+
+	private static boolean isHex(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+	}
+
+	/*
+	 * Looks in the new place, then the old one, while resharding; then the
+	 * new one again, in case it was moved in between.
+	 */
+	private <T> T find(File directory, String id, IOFunction<File,T> reader) throws IOException {
+
+		Layout layout = layout(directory);
+
+		T found = reader.apply(rowFile(directory, id, layout.shards));
+
+		if(found != null || !layout.isResharding()) {
+			return found;
+		}
+
+		found = reader.apply(rowFile(directory, id, layout.previous));
+
+		return found != null ? found : reader.apply(rowFile(directory, id, layout.shards));
+	}
+
+	private interface IOFunction<T,R> {
+		R apply(T t) throws IOException;
+	}
+
+	/*
+	 * Only remembered once the directory is there, since until then it
+	 * could still be made with shards.
+	 */
+	private Layout layout(File directory) {
+
+		directory = directory.getAbsoluteFile();
+
+		Layout layout = layouts.get(directory);
+
+		if(layout != null) {
+			return layout;
+		}
+
+		layout = readLayout(directory);
+
+		if(layout != null) {
+			layouts.putIfAbsent(directory, layout);
+			return layouts.get(directory);
+		}
+
+		if(directory.isDirectory()) {
+			layouts.putIfAbsent(directory, FLAT);
+			return layouts.get(directory);
+		}
+
+		return FLAT;
+	}
+
+	private static Layout readLayout(File directory) {
+
+		String[] numbers;
+
+		try {
+			numbers = new String(Files.readAllBytes(new File(directory, DOT_SHARDS).toPath()), StandardCharsets.UTF_8).trim().split("\\s+");
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		return new Layout(Integer.parseInt(numbers[0]), numbers.length > 1 ? Integer.parseInt(numbers[1]) : -1);
+	}
+
+	private void setLayout(File directory, Layout layout) throws IOException {
+
+		writeLayout(directory, layout);
+
+		layouts.put(directory.getAbsoluteFile(), layout);
+	}
+
+	/*
+	 * Always the same length, however long the name it stands in for, so
+	 * an id that only just fits still has room for its temporary file.
+	 * The leading dot keeps it out of listings.
+	 */
+	private String tempName() {
+		return String.format(".%016x%s", temps.incrementAndGet(), DOT_TMP);
+	}
+
+	/*
+	 * Written like an object, so it's always all there. A flat layout is
+	 * written too, rather than deleting the file, so it's clear it's meant.
+	 */
+	private void writeLayout(File directory, Layout layout) throws IOException {
+
+		Path temp = new File(directory, tempName()).toPath();
+
+		String text = layout.isResharding() ? layout.shards + " " + layout.previous : String.valueOf(layout.shards);
+
+		try {
+			Files.write(temp, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+
+			Files.move(temp, new File(directory, DOT_SHARDS).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/*
+	 * Deleting a directory that isn't empty fails, and so is harmless.
+	 */
+	private static void removeEmptyShards(File directory, int shards) {
+
+		File[] subdirectories = directory.listFiles( (dir,name) -> isShard(name) );
+
+		if(subdirectories == null) {
+			return;
+		}
+
+		for(File shard : subdirectories) {
+			if(shards > 1) {
+				removeEmptyShards(shard, shards - 1);
+			}
+			shard.delete();
+		}
+	}
+
+}
@@ -0,0 +1,244 @@
+package com.adaptershack.jeffdb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * A secondary index on one field of a collection. Each distinct value
+ * of the field maps to the set of ids of the objects having that value.
+ *
+ * Values are keyed by their Json text, with the fields of objects sorted
+ * by name, so that equal objects have the same key whatever order their
+ * fields are in. Values that are equal always have the same key, but a
+ * few that aren't do too, like 1 as an int and as a long, so a lookup may
+ * return an id or two too many but never too few. Callers are expected
+ * to check the actual objects.
+ *
+ * @author Jeff
+ *
+ */
+class HashIndex {
+
+	private final String field;
+
+	static final ObjectMapper KEYS = new ObjectMapper();
+
+	private final Map<String,Set<String>> entries = new HashMap<>();
+
+	HashIndex(String field) {
+		this.field = field;
+	}
+
+	String getField() {
+		return field;
+	}
+
+	/**
+	 * Adds the object's id under the value of its indexed field, if it has one.
+	 *
+	 * @param id
+	 * @param row
+	 */
+	synchronized void add(String id, JsonNode row) {
+		JsonNode value = row == null ? null : row.get(field);
+
+		if(value != null) {
+			entries.computeIfAbsent(key(value), k -> new TreeSet<>()).add(id);
+		}
+	}
+
+	/**
+	 * Removes the object's id from under the value of its indexed field.
+	 *
+	 * @param id
+	 * @param row
+	 */
+	synchronized void remove(String id, JsonNode row) {
+		JsonNode value = row == null ? null : row.get(field);
+
+		if(value != null) {
+			String key = key(value);
+			Set<String> ids = entries.get(key);
+
+			if(ids != null) {
+				ids.remove(id);
+				if(ids.isEmpty()) {
+					entries.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets a copy of the ids of all objects whose indexed field has this value.
+	 *
+	 * @param value
+	 * @return
+	 */
+	synchronized NavigableSet<String> lookup(JsonNode value) {
+		Set<String> ids = entries.get(key(value));
+		return ids == null ? new TreeSet<>() : new TreeSet<>(ids);
+	}
+
+	/**
+	 * Gets the ids of all objects that might pass a condition on the field,
+	 * which is either a value or a set of operators (see QueryMatcher).
+	 * This index can help with values, $eq and $in.
+	 *
+	 * @param condition
+	 * @return null if the index can't narrow it down
+	 */
+	synchronized NavigableSet<String> candidates(JsonNode condition) {
+
+		if(!QueryMatcher.isOperators(condition)) {
+			return lookup(condition);
+		}
+
+		NavigableSet<String> result = null;
+
+		JsonNode eq = condition.get(QueryMatcher.EQ);
+
+		if(eq != null) {
+			result = lookup(eq);
+		}
+
+		JsonNode in = condition.get(QueryMatcher.IN);
+
+		if(in != null && in.isArray()) {
+			NavigableSet<String> ids = new TreeSet<>();
+			in.forEach(value -> ids.addAll(lookup(value)));
+			result = intersect(result, ids);
+		}
+
+		return result;
+	}
+
+	synchronized void clear() {
+		entries.clear();
+	}
+
+	/*
+	 * Copying in and out, for saving to and loading from disk.
+	 */
+
+	synchronized Map<String,Set<String>> getEntries() {
+		Map<String,Set<String>> copy = new HashMap<>();
+		entries.forEach( (k,v) -> copy.put(k, new TreeSet<>(v)) );
+		return copy;
+	}
+
+	synchronized void setEntries(Map<String,? extends Set<String>> loaded) {
+		entries.clear();
+		loaded.forEach( (k,v) -> entries.computeIfAbsent(rekey(k), r -> new TreeSet<>()).addAll(v) );
+	}
+
+	/*
+	 * Objects and arrays may have been saved with their fields in any order.
+	 */
+	private static String rekey(String key) {
+
+		if(!key.startsWith("{") && !key.startsWith("[")) {
+			return key;
+		}
+
+		try {
+			return key(KEYS.readTree(key));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Intersects two sets of ids, either of which may be null, meaning
+	 * anything. Both may be changed.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	static NavigableSet<String> intersect(NavigableSet<String> a, NavigableSet<String> b) {
+
+		if(a == null || b == null) {
+			return a == null ? b : a;
+		}
+
+		if(a.size() > b.size()) {
+			NavigableSet<String> t = a;
+			a = b;
+			b = t;
+		}
+
+		a.retainAll(b);
+
+		return a;
+	}
+
+	static String key(JsonNode value) {
+
+		if(!value.isContainerNode()) {
+			return value.toString();
+		}
+
+		StringBuilder key = new StringBuilder();
+
+		appendKey(key, value);
+
+		return key.toString();
+	}
+
+	private static void appendKey(StringBuilder key, JsonNode value) {
+
+		if(value.isObject()) {
+
+			TreeMap<String,JsonNode> fields = new TreeMap<>();
+
+			for(Iterator<Map.Entry<String,JsonNode>> i = value.fields(); i.hasNext(); ) {
+				Map.Entry<String,JsonNode> field = i.next();
+				fields.put(field.getKey(), field.getValue());
+			}
+
+			int start = key.length();
+
+			key.append('{');
+
+			fields.forEach( (name, child) -> {
+				if(key.length() > start + 1) {
+					key.append(',');
+				}
+				key.append(TextNode.valueOf(name)).append(':');
+				appendKey(key, child);
+			});
+
+			key.append('}');
+
+		} else if(value.isArray()) {
+
+			int start = key.length();
+
+			key.append('[');
+
+			for(JsonNode child : value) {
+				if(key.length() > start + 1) {
+					key.append(',');
+				}
+				appendKey(key, child);
+			}
+
+			key.append(']');
+
+		} else {
+			key.append(value);
+		}
+	}
+
+}
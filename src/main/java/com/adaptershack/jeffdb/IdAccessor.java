@@ -0,0 +1,161 @@
+package com.adaptershack.jeffdb;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Gets and sets the id property of plain Java objects.
+ *
+ * The getter and setter of each class are looked up once, the first time
+ * the class is seen, and turned into lambdas that call them, so after that
+ * getting or setting an id costs about as much as calling the method
+ * directly. Where a lambda can't be made, say because the class isn't
+ * public, plain reflection is used instead. Maps are treated as having an
+ * "id" key.
+ *
+ * @author Jeff
+ *
+ */
+class IdAccessor {
+
+	private static final ClassValue<IdAccessor> ACCESSORS = new ClassValue<>() {
+		@Override
+		protected IdAccessor computeValue(Class<?> type) {
+			return new IdAccessor(type);
+		}
+	};
+
+	private final Class<?> type;
+
+	private final boolean map;
+
+	private final Function<Object,Object> getter;
+
+	private final BiConsumer<Object,Object> setter;
+
+	private IdAccessor(Class<?> type) {
+
+		this.type = type;
+		this.map = Map.class.isAssignableFrom(type);
+
+		Function<Object,Object> get = null;
+		BiConsumer<Object,Object> set = null;
+
+		if(!map) {
+			try {
+				for(PropertyDescriptor property : Introspector.getBeanInfo(type).getPropertyDescriptors()) {
+					if(DatabaseService.ID.equals(property.getName())) {
+						get = getter(property.getReadMethod());
+						set = setter(property.getWriteMethod());
+					}
+				}
+			} catch (IntrospectionException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		this.getter = get;
+		this.setter = set;
+	}
+
+	static IdAccessor of(Object row) {
+		return ACCESSORS.get(row.getClass());
+	}
+
+	@SuppressWarnings("unchecked")
+	String get(Object row) {
+		try {
+			if(map) {
+				return (String) ((Map<String,Object>) row).get(DatabaseService.ID);
+			}
+
+			if(getter == null) {
+				throw new NoSuchMethodException("Unknown property '" + DatabaseService.ID + "' on " + type);
+			}
+
+			return (String) getter.apply(row);
+
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	void set(Object row, String id) {
+		try {
+			if(map) {
+				((Map<String,Object>) row).put(DatabaseService.ID, id);
+				return;
+			}
+
+			if(setter == null) {
+				throw new NoSuchMethodException("Property '" + DatabaseService.ID + "' has no setter on " + type);
+			}
+
+			setter.accept(row, id);
+
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Function<Object,Object> getter(Method method) {
+
+		if(method == null) {
+			return null;
+		}
+
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle target = lookup.unreflect(method);
+
+			return (Function<Object,Object>) LambdaMetafactory.metafactory(lookup, "apply",
+					MethodType.methodType(Function.class), MethodType.methodType(Object.class, Object.class),
+					target, target.type()).getTarget().invokeExact();
+
+		} catch (Throwable e) {
+			method.trySetAccessible();
+			return row -> invoke(method, row);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static BiConsumer<Object,Object> setter(Method method) {
+
+		if(method == null) {
+			return null;
+		}
+
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle target = lookup.unreflect(method);
+
+			return (BiConsumer<Object,Object>) LambdaMetafactory.metafactory(lookup, "accept",
+					MethodType.methodType(BiConsumer.class), MethodType.methodType(void.class, Object.class, Object.class),
+					target, target.type()).getTarget().invokeExact();
+
+		} catch (Throwable e) {
+			method.trySetAccessible();
+			return (row, id) -> invoke(method, row, id);
+		}
+	}
+
+	private static Object invoke(Method method, Object row, Object... args) {
+		try {
+			return method.invoke(row, args);
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,296 @@
+package com.adaptershack.jeffdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The ids stored in each directory, kept in memory so that they don't have
+ * to be read from the directory itself every time a collection is scanned
+ * or counted, which for a big one can take longer than the rest of a query.
+ *
+ * A directory is listed the first time its ids are asked for, and after
+ * that kept up to date by whoever writes and deletes, which has to tell
+ * the manifest. In case anything else changes the directories, each one
+ * can be listed again every so often, and optionally watched for files
+ * coming and going in between, by background threads which start with
+ * the first listing and stop when the manifest is closed.
+ *
+ * @author Jeff
+ *
+ */
+class IdManifest {
+
+	private final Map<File,Ids> directories = new ConcurrentHashMap<>();
+
+	private final Map<WatchKey,File> watched = new ConcurrentHashMap<>();
+
+	private final Function<File,String[]> lister;
+
+	private final Function<String,String> idOf;
+
+	private final long checkInterval;
+
+	private final boolean watch;
+
+	private volatile boolean started;
+
+	private ScheduledExecutorService checker;
+
+	private volatile WatchService watcher;
+
+	private static class Ids {
+
+		final NavigableSet<String> ids;
+
+		// bumped by every change, so that a check can tell if it missed one
+		volatile long changes;
+
+		Ids(String[] ids) {
+			this.ids = new ConcurrentSkipListSet<>(Arrays.asList(ids));
+		}
+	}
+
+	/**
+	 * @param lister lists the ids actually in a directory
+	 * @param idOf works out an id from a file name, or returns null if it's not an object
+	 * @param checkInterval milliseconds between listing every directory again, or 0 for never
+	 * @param watch whether to watch the directories for changes
+	 */
+	IdManifest(Function<File,String[]> lister, Function<String,String> idOf, long checkInterval, boolean watch) {
+		this.lister = lister;
+		this.idOf = idOf;
+		this.checkInterval = checkInterval;
+		this.watch = watch;
+	}
+
+	/**
+	 * Gets the ids in the directory, in order.
+	 *
+	 * @param directory
+	 * @return
+	 */
+	String[] ids(File directory) {
+
+		if(!started) {
+			start();
+		}
+
+		return directories.computeIfAbsent(directory.getAbsoluteFile(), this::load).ids.toArray(new String[0]);
+	}
+
+	void added(File directory, String id) {
+		directories.computeIfPresent(directory.getAbsoluteFile(), (d, ids) -> {
+			ids.ids.add(id);
+			ids.changes++;
+			return ids;
+		});
+	}
+
+	void removed(File directory, String id) {
+		directories.computeIfPresent(directory.getAbsoluteFile(), (d, ids) -> {
+			ids.ids.remove(id);
+			ids.changes++;
+			return ids;
+		});
+	}
+
+	/**
+	 * Forgets the directory and everything under it.
+	 *
+	 * @param directory
+	 */
+	void release(File directory) {
+
+		File released = directory.getAbsoluteFile();
+
+		directories.keySet().removeIf(d -> d.toPath().startsWith(released.toPath()));
+
+		watched.entrySet().removeIf(e -> {
+			if(e.getValue().toPath().startsWith(released.toPath())) {
+				e.getKey().cancel();
+				return true;
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Lists every directory again, replacing what's in memory, except
+	 * where something changed while it was being listed; those are left
+	 * for next time.
+	 */
+	void check() {
+		directories.keySet().forEach(this::relist);
+	}
+
+	/*
+	 * Starts the checker and watcher, if wanted and not already going.
+	 */
+	private synchronized void start() {
+
+		started = true;
+
+		if(checker == null && checkInterval > 0) {
+
+			checker = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "jeffdb-manifest");
+				t.setDaemon(true);
+				return t;
+			});
+
+			checker.scheduleWithFixedDelay(() -> {
+				try {
+					check();
+				} catch (RuntimeException e) {
+					// try again next time
+				}
+			}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+		}
+
+		if(watcher == null && watch) {
+
+			try {
+				watcher = FileSystems.getDefault().newWatchService();
+			} catch (IOException e) {
+				// the periodic check, if any, will have to do
+				return;
+			}
+
+			directories.keySet().forEach(this::register);
+
+			Thread t = new Thread(this::watching, "jeffdb-manifest-watcher");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Stops the background threads and forgets everything.
+	 */
+	void close() {
+
+		synchronized(this) {
+			started = false;
+
+			if(checker != null) {
+				checker.shutdown();
+				checker = null;
+			}
+
+			if(watcher != null) {
+				try {
+					watcher.close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+				watcher = null;
+			}
+		}
+
+		directories.clear();
+		watched.clear();
+	}
+
+	private void relist(File directory) {
+
+		Ids before = directories.get(directory);
+
+		if(before == null) {
+			return;
+		}
+
+		long changes = before.changes;
+
+		String[] listed = lister.apply(directory);
+
+		directories.computeIfPresent(directory, (d, ids) -> ids == before && ids.changes == changes ? new Ids(listed) : ids);
+	}
+
+	private Ids load(File directory) {
+
+		Ids ids = new Ids(lister.apply(directory));
+
+		register(directory);
+
+		return ids;
+	}
+
+	private void register(File directory) {
+
+		WatchService w = watcher;
+
+		if(w == null || !directory.isDirectory()) {
+			return;
+		}
+
+		try {
+			watched.put(directory.toPath().register(w,
+					StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE), directory);
+		} catch (IOException | ClosedWatchServiceException e) {
+			// the periodic check, if any, will have to do
+		}
+	}
+
+	/*
+	 * Whatever the event, the file is looked at to see whether it's there
+	 * now, since by the time the event is seen it may have changed again.
+	 */
+	private void watching() {
+
+		WatchService w;
+
+		while((w = watcher) != null) {
+
+			WatchKey key;
+
+			try {
+				key = w.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			File directory = watched.get(key);
+
+			if(directory != null) {
+				for(WatchEvent<?> event : key.pollEvents()) {
+
+					if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						relist(directory);
+						continue;
+					}
+
+					String name = event.context().toString();
+					String id = idOf.apply(name);
+
+					if(id != null) {
+						if(new File(directory, name).exists()) {
+							added(directory, id);
+						} else {
+							removed(directory, id);
+						}
+					}
+				}
+			}
+
+			if(!key.reset()) {
+				watched.remove(key);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+package com.adaptershack.jeffdb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One page of results from a collection, plus a cursor for getting the
+ * next page, if there might be one.
+ * 
+ * Pages are in order by id, and the cursor only records where the last page
+ * ended, so objects inserted or deleted in the meantime don't cause any of
+ * the others to be skipped or repeated.
+ * 
+ * @author Jeff
+ *
+ * @param <T>
+ */
+public class Page<T> {
+
+	private final List<T> items;
+	
+	private final String next;
+	
+	public Page(List<T> items, String next) {
+		this.items = items;
+		this.next = next;
+	}
+
+	public List<T> getItems() {
+		return items;
+	}
+
+	/**
+	 * Gets the cursor to pass back in for the next page, or null if
+	 * there are no more.
+	 * 
+	 * @return
+	 */
+	public String getNext() {
+		return next;
+	}
+	
+	/*
+	 * Cursors are opaque to callers, but are just the last id seen.
+	 */
+	
+	static String cursor(String lastId) {
+		return lastId == null ? null 
+				: Base64.getUrlEncoder().withoutPadding().encodeToString(lastId.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	static String after(String cursor) {
+		if(cursor == null || cursor.isEmpty()) {
+			return null;
+		}
+		
+		try {
+			return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid cursor " + cursor);
+		}
+	}
+	
+}
@@ -0,0 +1,106 @@
+package com.adaptershack.jeffdb;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Picks out just some of the top level fields of objects, always
+ * including the id.
+ *
+ * Objects can be projected from trees, or straight from their bytes with a
+ * streaming parser, which skips over the fields not wanted without
+ * building anything for them.
+ *
+ * @author Jeff
+ *
+ */
+class Projection {
+
+	private final Set<String> fields = new HashSet<>();
+
+	Projection(Collection<String> fields) {
+		this.fields.addAll(fields);
+		this.fields.add(DatabaseService.ID);
+	}
+
+	/**
+	 * Makes a projection of the fields, or returns null, meaning whole
+	 * objects, if there aren't any.
+	 *
+	 * @param fields
+	 * @return
+	 */
+	static Projection of(Collection<String> fields) {
+		return fields == null || fields.isEmpty() ? null : new Projection(fields);
+	}
+
+	ObjectNode project(JsonNode row) {
+
+		ObjectNode projected = JsonNodeFactory.instance.objectNode();
+
+		Iterator<Entry<String, JsonNode>> i = row.fields();
+
+		while(i.hasNext()) {
+			Entry<String, JsonNode> e = i.next();
+
+			if(fields.contains(e.getKey())) {
+				projected.set(e.getKey(), e.getValue().deepCopy());
+			}
+		}
+
+		return projected;
+	}
+
+	/**
+	 * Same as project(), but for a serialized object, which is read with
+	 * the mapper it was written with.
+	 *
+	 * @param mapper
+	 * @param data
+	 * @return
+	 * @throws IOException
+	 */
+	ObjectNode read(ObjectMapper mapper, byte[] data) throws IOException {
+
+		ObjectNode projected = mapper.createObjectNode();
+
+		try(JsonParser parser = mapper.createParser(data)) {
+
+			if(parser.nextToken() != JsonToken.START_OBJECT) {
+				return null;
+			}
+
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+
+				String name = parser.getCurrentName();
+
+				parser.nextToken();
+
+				if(fields.contains(name)) {
+					projected.set(name, mapper.readTree(parser));
+
+					// nothing else wanted, so no need to read the rest
+					if(projected.size() == fields.size()) {
+						break;
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+
+		return projected;
+	}
+
+}
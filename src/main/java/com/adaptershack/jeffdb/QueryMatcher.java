@@ -0,0 +1,351 @@
+package com.adaptershack.jeffdb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Matches objects against a query object.
+ *
+ * Each field of the query has to match the same field of the object.
+ * A plain value matches if the field has exactly that value. An object all
+ * of whose keys are operators matches if every operator does:
+ *
+ *   {"age": {"$gte": 18, "$lt": 65}, "name": {"$prefix": "J"}}
+ *
+ * The operators are $eq, $gt, $gte, $lt, $lte (comparing numbers with
+ * numbers and strings with strings), $in (any of an array of values),
+ * $prefix (for strings), $exists (true or false) and $text, which
+ * matches strings having all of its words, in any order and any case (see
+ * TextIndex for what counts as a word). Besides fields, a
+ * query can have $and and $or, each an array of queries.
+ *
+ * Objects can be matched either as trees, or straight from their bytes
+ * with a streaming parser, which only reads the values of the fields in
+ * the query and skips everything else. That way an object that doesn't
+ * match is never parsed into a tree, and a mismatch on a field outside
+ * $and or $or stops the parse.
+ *
+ * @author Jeff
+ *
+ */
+class QueryMatcher implements Predicate<JsonNode> {
+
+	static final String AND = "$and";
+	static final String OR = "$or";
+
+	static final String EQ = "$eq";
+	static final String GT = "$gt";
+	static final String GTE = "$gte";
+	static final String LT = "$lt";
+	static final String LTE = "$lte";
+	static final String IN = "$in";
+	static final String PREFIX = "$prefix";
+	static final String EXISTS = "$exists";
+	static final String TEXT = "$text";
+
+	/*
+	 * Conditions on fields, by field.
+	 */
+	private final Map<String,Predicate<JsonNode>> fields = new HashMap<>();
+
+	/*
+	 * Position of each field in the above, for keeping track of which
+	 * have been found.
+	 */
+	private final Map<String,Integer> positions = new HashMap<>();
+
+	/*
+	 * The $ands and $ors, and every field any of them look at.
+	 */
+	private final List<Predicate<JsonNode>> groups = new ArrayList<>();
+
+	private final Set<String> groupFields = new HashSet<>();
+
+	QueryMatcher(JsonNode params) {
+
+		if(!params.isObject()) {
+			throw new IllegalArgumentException("A query must be an object");
+		}
+
+		Iterator<Entry<String, JsonNode>> i = params.fields();
+
+		while(i.hasNext()) {
+			Entry<String, JsonNode> e = i.next();
+
+			switch(e.getKey()) {
+			case AND:
+			case OR:
+				List<QueryMatcher> queries = subqueries(e.getKey(), e.getValue());
+
+				queries.forEach(q -> groupFields.addAll(q.fields()));
+
+				groups.add(e.getKey().equals(AND)
+						? row -> queries.stream().allMatch(q -> q.test(row))
+						: row -> queries.stream().anyMatch(q -> q.test(row)));
+				break;
+			default:
+				positions.put(e.getKey(), fields.size());
+				fields.put(e.getKey(), condition(e.getValue()));
+			}
+		}
+	}
+
+	@Override
+	public boolean test(JsonNode row) {
+
+		for(Entry<String, Predicate<JsonNode>> e : fields.entrySet()) {
+			if(!e.getValue().test(row.get(e.getKey()))) {
+				return false;
+			}
+		}
+
+		for(Predicate<JsonNode> group : groups) {
+			if(!group.test(row)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Same as test(), but for a serialized object, which is read with the
+	 * mapper it was written with.
+	 *
+	 * @param mapper
+	 * @param data
+	 * @return
+	 * @throws IOException
+	 */
+	boolean matches(ObjectMapper mapper, byte[] data) throws IOException {
+
+		if(fields.isEmpty() && groups.isEmpty()) {
+			return true;
+		}
+
+		boolean[] seen = new boolean[fields.size()];
+
+		int found = 0;
+
+		// just the fields the groups need
+		ObjectNode partial = groups.isEmpty() ? null : mapper.createObjectNode();
+
+		try(JsonParser parser = mapper.createParser(data)) {
+
+			if(parser.nextToken() != JsonToken.START_OBJECT) {
+				return false;
+			}
+
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+
+				String name = parser.getCurrentName();
+
+				Predicate<JsonNode> condition = fields.get(name);
+
+				boolean grouped = groupFields.contains(name);
+
+				parser.nextToken();
+
+				if(condition == null && !grouped) {
+					parser.skipChildren();
+					continue;
+				}
+
+				JsonNode value = mapper.readTree(parser);
+
+				if(grouped) {
+					partial.set(name, value);
+				}
+
+				if(condition == null) {
+					continue;
+				}
+
+				if(!condition.test(value)) {
+					return false;
+				}
+
+				int position = positions.get(name);
+
+				if(!seen[position]) {
+					seen[position] = true;
+
+					if(++found == fields.size() && partial == null) {
+						return true;
+					}
+				}
+			}
+		}
+
+		// fields the object doesn't have, which might be what was wanted
+		if(found < fields.size()) {
+			for(Entry<String, Predicate<JsonNode>> e : fields.entrySet()) {
+				if(!seen[positions.get(e.getKey())] && !e.getValue().test(null)) {
+					return false;
+				}
+			}
+		}
+
+		for(Predicate<JsonNode> group : groups) {
+			if(!group.test(partial)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * Every field the query looks at, however deep in $ands and $ors.
+	 */
+	private Set<String> fields() {
+		Set<String> all = new HashSet<>(fields.keySet());
+		all.addAll(groupFields);
+		return all;
+	}
+
+	/**
+	 * Whether a query value is a set of operators, rather than a value to
+	 * be matched exactly.
+	 *
+	 * @param value
+	 * @return
+	 */
+	static boolean isOperators(JsonNode value) {
+
+		if(!value.isObject() || value.size() == 0) {
+			return false;
+		}
+
+		Iterator<String> names = value.fieldNames();
+
+		while(names.hasNext()) {
+			if(!names.next().startsWith("$")) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Compares two values the way the range operators do: numbers with
+	 * numbers and strings with strings.
+	 *
+	 * @param a
+	 * @param b
+	 * @return null if they can't be compared
+	 */
+	static Integer compare(JsonNode a, JsonNode b) {
+
+		if(a.isNumber() && b.isNumber()) {
+			return a.decimalValue().compareTo(b.decimalValue());
+		}
+
+		if(a.isTextual() && b.isTextual()) {
+			return a.textValue().compareTo(b.textValue());
+		}
+
+		return null;
+	}
+
+	private static List<QueryMatcher> subqueries(String operator, JsonNode value) {
+
+		if(!value.isArray()) {
+			throw new IllegalArgumentException(operator + " needs an array of queries");
+		}
+
+		List<QueryMatcher> queries = new ArrayList<>();
+
+		value.forEach(q -> queries.add(new QueryMatcher(q)));
+
+		return queries;
+	}
+
+	/*
+	 * What a field's value, or null if it doesn't have one, has to pass.
+	 */
+	private static Predicate<JsonNode> condition(JsonNode expected) {
+
+		if(!isOperators(expected)) {
+			return value -> value != null && value.equals(expected);
+		}
+
+		Predicate<JsonNode> condition = value -> true;
+
+		Iterator<Entry<String, JsonNode>> i = expected.fields();
+
+		while(i.hasNext()) {
+			condition = condition.and(operator(i.next()));
+		}
+
+		return condition;
+	}
+
+	private static Predicate<JsonNode> operator(Entry<String, JsonNode> e) {
+
+		JsonNode operand = e.getValue();
+
+		switch(e.getKey()) {
+		case EQ:
+			return value -> value != null && value.equals(operand);
+		case GT:
+			return value -> compares(value, operand, c -> c > 0);
+		case GTE:
+			return value -> compares(value, operand, c -> c >= 0);
+		case LT:
+			return value -> compares(value, operand, c -> c < 0);
+		case LTE:
+			return value -> compares(value, operand, c -> c <= 0);
+		case IN:
+			if(!operand.isArray()) {
+				throw new IllegalArgumentException(IN + " needs an array of values");
+			}
+			Set<JsonNode> values = new HashSet<>();
+			operand.forEach(values::add);
+			return value -> value != null && values.contains(value);
+		case PREFIX:
+			if(!operand.isTextual()) {
+				throw new IllegalArgumentException(PREFIX + " needs a string");
+			}
+			return value -> value != null && value.isTextual() && value.textValue().startsWith(operand.textValue());
+		case EXISTS:
+			boolean exists = operand.asBoolean();
+			return value -> (value != null) == exists;
+		case TEXT:
+			if(!operand.isTextual()) {
+				throw new IllegalArgumentException(TEXT + " needs a string");
+			}
+			Set<String> words = TextIndex.words(operand.textValue());
+			return value -> value != null && value.isTextual() && TextIndex.words(value.textValue()).containsAll(words);
+		default:
+			throw new IllegalArgumentException("Unknown operator " + e.getKey());
+		}
+	}
+
+	private static boolean compares(JsonNode value, JsonNode operand, Predicate<Integer> test) {
+
+		if(value == null) {
+			return false;
+		}
+
+		Integer c = compare(value, operand);
+
+		return c != null && test.test(c);
+	}
+
+}
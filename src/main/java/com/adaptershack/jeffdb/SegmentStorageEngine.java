@@ -0,0 +1,247 @@
+package com.adaptershack.jeffdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A log-structured storage engine. Instead of a file per object, each
+ * directory holds a few large segment files which objects are appended to,
+ * and an index in memory says where the latest version of each one is.
+ * That saves an inode, a directory entry and most of a disk block for
+ * every small object.
+ * 
+ * Overwritten and deleted objects leave dead space behind in the segments.
+ * A background thread periodically copies what's still live out of 
+ * segments that are mostly dead, then deletes them.
+ * 
+ * Full segments are read through memory maps, up to a limit on the total
+ * size mapped, and the rest through ordinary reads.
+ * 
+ * @author Jeff
+ *
+ */
+public class SegmentStorageEngine implements StorageEngine {
+
+	static final String NAME = "segments";
+	
+	private long segmentSize = 64L << 20;
+	
+	private long compactionInterval = 60_000;
+	
+	private double compactionThreshold = 0.5;
+	
+	private volatile SegmentStore.MappingBudget budget = new SegmentStore.MappingBudget(256L << 20);
+	
+	private final Map<File,SegmentStore> stores = new ConcurrentHashMap<>();
+	
+	private ScheduledExecutorService compactor;
+	
+	/* whether startCompactor() has been called since the interval was set, so it needn't be again */
+	private volatile boolean compactorStarted;
+	
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Sets the size at which a segment is considered full, and 
+	 * a new one started.
+	 * 
+	 * @param segmentSize
+	 */
+	public void setSegmentSize(long segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	public long getCompactionInterval() {
+		return compactionInterval;
+	}
+
+	/**
+	 * Sets how many milliseconds to wait between compactions. Zero means
+	 * never compact in the background, only when compact() is called.
+	 * 
+	 * @param compactionInterval
+	 */
+	public synchronized void setCompactionInterval(long compactionInterval) {
+		this.compactionInterval = compactionInterval;
+		
+		if(compactor != null) {
+			compactor.shutdown();
+			compactor = null;
+		}
+		
+		compactorStarted = false;
+	}
+
+	public double getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * Sets the fraction of a segment which must be live to keep
+	 * it from being compacted.
+	 * 
+	 * @param compactionThreshold
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	public long getMaxMappedBytes() {
+		return budget.max();
+	}
+	
+	/**
+	 * Limits how much of the segments may be memory mapped at once.
+	 * Zero turns mapping off. Only affects stores opened afterwards.
+	 * 
+	 * @param maxMappedBytes
+	 */
+	public void setMaxMappedBytes(long maxMappedBytes) {
+		this.budget = new SegmentStore.MappingBudget(maxMappedBytes);
+	}
+	
+	/**
+	 * Gets how many bytes of segments are currently memory mapped.
+	 * 
+	 * @return
+	 */
+	public long getMappedBytes() {
+		return budget.used();
+	}
+
+	@Override
+	public byte[] read(File directory, String id) throws IOException {
+		return store(directory).read(id);
+	}
+
+	@Override
+	public String version(File directory, String id) {
+		return store(directory).version(id);
+	}
+
+	@Override
+	public void write(File directory, String id, byte[] data) throws IOException {
+		store(directory).write(id, data);
+	}
+
+	@Override
+	public void writeAll(File directory, Map<String,byte[]> rows) throws IOException {
+		store(directory).writeAll(rows);
+	}
+
+	@Override
+	public boolean delete(File directory, String id) throws IOException {
+		return store(directory).delete(id);
+	}
+
+	@Override
+	public void sync(File directory, Set<String> ids) throws IOException {
+		store(directory).sync();
+	}
+
+	@Override
+	public String[] ids(File directory) {
+		return store(directory).ids();
+	}
+
+	@Override
+	public void move(File from, File to, String id) throws IOException {
+		
+		SegmentStore source = store(from);
+		
+		byte[] data = source.read(id);
+		
+		if(data != null) {
+			store(to).write(id, data);
+			source.delete(id);
+		}
+	}
+
+	@Override
+	public void release(File directory) {
+		
+		String path = directory.getAbsolutePath();
+		
+		Iterator<SegmentStore> i = stores.values().iterator();
+		
+		while(i.hasNext()) {
+			SegmentStore store = i.next();
+			
+			String storePath = store.directory.getAbsolutePath();
+			
+			if(storePath.equals(path) || storePath.startsWith(path + File.separator)) {
+				store.close();
+				i.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Compacts every open directory now, rather than waiting for the
+	 * background thread to get around to it.
+	 */
+	public void compact() {
+		for(SegmentStore store : stores.values()) {
+			try {
+				store.compact(compactionThreshold);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		
+		if(compactor != null) {
+			compactor.shutdown();
+			compactor = null;
+		}
+		
+		compactorStarted = false;
+		
+		stores.values().forEach(SegmentStore::close);
+		stores.clear();
+	}
+	
+	private SegmentStore store(File directory) {
+		
+		if(!compactorStarted) {
+			startCompactor();
+		}
+		
+		return stores.computeIfAbsent(directory.getAbsoluteFile(), d -> SegmentStore.open(d, segmentSize, budget));
+	}
+	
+	private synchronized void startCompactor() {
+		
+		if(compactor == null && compactionInterval > 0) {
+			
+			compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "jeffdb-compactor");
+				t.setDaemon(true);
+				return t;
+			});
+			
+			compactor.scheduleWithFixedDelay(() -> {
+				try {
+					compact();
+				} catch (RuntimeException e) {
+					// try again next time
+				}
+			}, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+		}
+		
+		compactorStarted = true;
+	}
+
+}
@@ -0,0 +1,728 @@
+package com.adaptershack.jeffdb;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * The contents of one directory under the segment storage engine: a series
+ * of numbered, append-only segment files, and an in-memory map of where in
+ * them the latest version of each object is.
+ *
+ * Each record in a segment is a header of three ints (a CRC32 of the rest
+ * of the record, the length of the id, and the length of the data, or -1
+ * for a deletion), followed by the id and the data. Opening a store replays
+ * every segment in order to rebuild the map. A torn record at the end of
+ * the last segment, left by a crash, is cut off.
+ *
+ * Once a segment is full it never changes again, so it can be memory mapped,
+ * after which reading from it costs a copy rather than a system call. How
+ * much gets mapped is limited by a budget shared by the whole engine.
+ *
+ * @author Jeff
+ *
+ */
+class SegmentStore {
+
+	static final String DOT_SEG = ".seg";
+
+	private static final int HEADER = 12;
+	private static final int TOMBSTONE = -1;
+	private static final int MAX_ID = 4096;
+
+	/*
+	 * Versions, which start from the time in microseconds, like change
+	 * sequence numbers, so that none from before a restart comes round again.
+	 */
+	private static final AtomicLong VERSIONS = new AtomicLong(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+
+	final File directory;
+
+	private final long segmentSize;
+
+	private final MappingBudget budget;
+
+	private final Map<String,Location> index = new ConcurrentHashMap<>();
+
+	/* guarded by this */
+	private final TreeMap<Integer,Segment> segments = new TreeMap<>();
+
+	/* guarded by this; segments appended to since the last sync */
+	private final Set<Segment> unsynced = new HashSet<>();
+
+	/* guarded by this */
+	private Segment active;
+
+	/* held while compacting, so only one compaction runs at a time */
+	private final Object compacting = new Object();
+
+	/*
+	 * How many bytes may be mapped, across all the stores of an engine.
+	 */
+	static class MappingBudget {
+		private final long max;
+		private final AtomicLong used = new AtomicLong();
+
+		MappingBudget(long max) {
+			this.max = max;
+		}
+
+		boolean reserve(long bytes) {
+			if(used.addAndGet(bytes) <= max) {
+				return true;
+			}
+			used.addAndGet(-bytes);
+			return false;
+		}
+
+		void release(long bytes) {
+			used.addAndGet(-bytes);
+		}
+
+		long max() {
+			return max;
+		}
+
+		long used() {
+			return used.get();
+		}
+	}
+
+	static class Segment {
+		final int number;
+		final File file;
+		final MappingBudget budget;
+		volatile FileChannel channel;
+		volatile boolean retired;
+
+		/* set once the segment is full, after which it never changes */
+		volatile boolean sealed;
+		volatile MappedByteBuffer mapped;
+		private volatile boolean mapFailed;
+
+		/* guarded by the store */
+		long size;
+		long liveBytes;
+
+		Segment(int number, File file, MappingBudget budget) {
+			this.number = number;
+			this.file = file;
+			this.budget = budget;
+		}
+
+		byte[] read(long position, int length) throws IOException {
+
+			MappedByteBuffer m = sealed ? map() : null;
+
+			if(m != null) {
+				byte[] data = new byte[length];
+				m.get((int) position, data, 0, length);
+				return data;
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer, position + buffer.position()) < 0) {
+					throw new EOFException(file.toString());
+				}
+			}
+
+			return buffer.array();
+		}
+
+		synchronized void open() throws IOException {
+			if(!retired && (channel == null || !channel.isOpen())) {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+		}
+
+		synchronized void close() {
+			try {
+				if(channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				// nothing to be done
+			}
+
+			// there's no unmapping a buffer by hand; the GC does it
+			// once it's unreachable
+			if(mapped != null) {
+				mapped = null;
+				budget.release(size);
+			}
+		}
+
+		/*
+		 * Writes the whole buffer at the position. An interrupt closes the
+		 * channel for every thread using it, so whoever finds it closed opens
+		 * it again, and writes the lot again, unless it was their interrupt.
+		 */
+		void write(ByteBuffer buffer, long position) throws IOException {
+			while(true) {
+				try {
+					while(buffer.hasRemaining()) {
+						channel.write(buffer, position + buffer.position());
+					}
+					return;
+				} catch (ClosedChannelException e) {
+					open();
+					buffer.rewind();
+
+					if(retired || e instanceof ClosedByInterruptException) {
+						throw e;
+					}
+				}
+			}
+		}
+
+		void force() throws IOException {
+			while(true) {
+				try {
+					channel.force(false);
+					return;
+				} catch (ClosedChannelException e) {
+					if(retired) {
+						// compacted away, having been forced first
+						return;
+					}
+
+					// closed by someone's interrupt, so the force has to be done again
+					open();
+
+					if(e instanceof ClosedByInterruptException) {
+						throw e;
+					}
+				}
+			}
+		}
+
+		/*
+		 * Maps the whole segment, if it fits in the budget.
+		 */
+		private MappedByteBuffer map() throws IOException {
+
+			MappedByteBuffer m = mapped;
+
+			if(m != null || mapFailed) {
+				return m;
+			}
+
+			synchronized(this) {
+				if(mapped == null && !mapFailed && !retired) {
+					if(budget == null || size > Integer.MAX_VALUE || !budget.reserve(size)) {
+						mapFailed = true;
+					} else {
+						try {
+							mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+						} finally {
+							if(mapped == null) {
+								budget.release(size);
+							}
+						}
+					}
+				}
+				return mapped;
+			}
+		}
+	}
+
+	/*
+	 * Where the data for an object is, and how much space its whole record takes.
+	 */
+	static class Location {
+		final Segment segment;
+		final long offset;
+		final int length;
+		final int recordLength;
+		final long version;
+
+		Location(Segment segment, long offset, int length, int recordLength, long version) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.recordLength = recordLength;
+			this.version = version;
+		}
+	}
+
+	/*
+	 * One record, as read back sequentially from a segment file.
+	 */
+	private static class Record {
+		String id;
+		byte[] data;
+		long offset;
+		int recordLength;
+	}
+
+	private SegmentStore(File directory, long segmentSize, MappingBudget budget) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.budget = budget;
+	}
+
+	static SegmentStore open(File directory, long segmentSize, MappingBudget budget) {
+
+		SegmentStore store = new SegmentStore(directory, segmentSize, budget);
+
+		File[] files = directory.listFiles( (dir,name) -> name.endsWith(DOT_SEG) );
+
+		if(files != null) {
+
+			for(File f : files) {
+				try {
+					int number = Integer.parseInt(f.getName().substring(0, f.getName().length() - DOT_SEG.length()));
+					store.segments.put(number, new Segment(number, f, budget));
+				} catch (NumberFormatException e) {
+					// not ours
+				}
+			}
+
+			try {
+				for(Segment s : store.segments.values()) {
+					store.replay(s, s == store.segments.lastEntry().getValue());
+				}
+			} catch (IOException e) {
+				store.close();
+				throw new RuntimeException(e);
+			}
+		}
+
+		return store;
+	}
+
+	byte[] read(String id) throws IOException {
+
+		while(true) {
+
+			Location location = index.get(id);
+
+			if(location == null) {
+				return null;
+			}
+
+			try {
+				return location.segment.read(location.offset, location.length);
+			} catch (ClosedChannelException e) {
+				// either the segment was just compacted away, in which case the
+				// map has moved on, or someone's interrupt closed the channel
+				location.segment.open();
+
+				if(e instanceof ClosedByInterruptException) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Numbered when written, or loaded, and kept when compacted.
+	 */
+	String version(String id) {
+
+		Location location = index.get(id);
+
+		return location == null ? null : Long.toHexString(location.version);
+	}
+
+	boolean contains(String id) {
+		return index.containsKey(id);
+	}
+
+	String[] ids() {
+		return index.keySet().toArray(new String[0]);
+	}
+
+	synchronized void write(String id, byte[] data) throws IOException {
+		append(id, data, VERSIONS.incrementAndGet());
+	}
+
+	/*
+	 * Appends the records together, with one write per segment they land in.
+	 */
+	synchronized void writeAll(Map<String,byte[]> rows) throws IOException {
+
+		List<String> ids = new ArrayList<>();
+		List<ByteBuffer> records = new ArrayList<>();
+		int length = 0;
+
+		for(Map.Entry<String,byte[]> row : rows.entrySet()) {
+
+			if(active == null || active.size + length >= segmentSize) {
+				appendAll(ids, records, length);
+				ids.clear();
+				records.clear();
+				length = 0;
+				roll();
+			}
+
+			ByteBuffer record = record(row.getKey(), row.getValue());
+
+			ids.add(row.getKey());
+			records.add(record);
+			length += record.remaining();
+		}
+
+		appendAll(ids, records, length);
+	}
+
+	synchronized boolean delete(String id) throws IOException {
+
+		if(!index.containsKey(id)) {
+			return false;
+		}
+
+		append(id, null, 0);
+
+		return true;
+	}
+
+	/**
+	 * Copies the live records out of every segment but the active one
+	 * where less than the threshold fraction of the space is live, then
+	 * deletes those segments.
+	 *
+	 * @param threshold
+	 * @throws IOException
+	 */
+	void compact(double threshold) throws IOException {
+
+		synchronized(compacting) {
+
+			List<Segment> candidates = new ArrayList<>();
+
+			synchronized(this) {
+				for(Segment s : segments.values()) {
+					if(s != active && s.liveBytes < s.size * threshold) {
+						candidates.add(s);
+					}
+				}
+			}
+
+			for(Segment s : candidates) {
+				compact(s);
+			}
+		}
+	}
+
+	/**
+	 * Forces whatever has been appended since last time out to disk.
+	 *
+	 * @throws IOException
+	 */
+	void sync() throws IOException {
+
+		List<Segment> toSync;
+
+		synchronized(this) {
+			toSync = new ArrayList<>(unsynced);
+			unsynced.clear();
+		}
+
+		for(Segment s : toSync) {
+			s.force();
+		}
+
+		forceDirectory();
+	}
+
+	synchronized void close() {
+		segments.values().forEach(Segment::close);
+	}
+
+	private void forceDirectory() {
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not every platform can open a directory
+		}
+	}
+
+	/*
+	 * Appends a record to the active segment, starting a new one if it's full,
+	 * and points the map at it. Null data means a deletion.
+	 */
+	private Location append(String id, byte[] data, long version) throws IOException {
+
+		if(active == null || active.size >= segmentSize) {
+			roll();
+		}
+
+		ByteBuffer buffer = record(id, data);
+
+		int recordLength = buffer.remaining();
+
+		int dataLength = buffer.getInt(8);
+
+		long position = active.size;
+
+		active.write(buffer, position);
+
+		active.size += recordLength;
+
+		unsynced.add(active);
+
+		return appended(id, dataLength, position, recordLength, version);
+	}
+
+	/*
+	 * Same, for records already made, all of which fit in the active segment.
+	 */
+	private void appendAll(List<String> ids, List<ByteBuffer> records, int length) throws IOException {
+
+		if(records.isEmpty()) {
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+
+		records.forEach( r -> buffer.put(r.duplicate()) );
+
+		buffer.flip();
+
+		long position = active.size;
+
+		active.write(buffer, position);
+
+		active.size += length;
+
+		unsynced.add(active);
+
+		for(int i = 0; i < ids.size(); i++) {
+			ByteBuffer record = records.get(i);
+			appended(ids.get(i), record.getInt(8), position, record.remaining(), VERSIONS.incrementAndGet());
+			position += record.remaining();
+		}
+	}
+
+	/*
+	 * Makes the record for an object, ready to write.
+	 */
+	private static ByteBuffer record(String id, byte[] data) {
+
+		byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+
+		int dataLength = data == null ? TOMBSTONE : data.length;
+
+		int recordLength = HEADER + idBytes.length + Math.max(0, dataLength);
+
+		ByteBuffer buffer = ByteBuffer.allocate(recordLength);
+		buffer.putInt(0);
+		buffer.putInt(idBytes.length);
+		buffer.putInt(dataLength);
+		buffer.put(idBytes);
+
+		if(data != null) {
+			buffer.put(data);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 4, recordLength - 4);
+		buffer.putInt(0, (int) crc.getValue());
+
+		buffer.flip();
+
+		return buffer;
+	}
+
+	/*
+	 * Points the map at a record just written to the active segment.
+	 */
+	private Location appended(String id, int dataLength, long position, int recordLength, long version) {
+
+		Location location = dataLength == TOMBSTONE ? null
+				: new Location(active, position + recordLength - dataLength, dataLength, recordLength, version);
+
+		Location previous = location == null ? index.remove(id) : index.put(id, location);
+
+		if(previous != null) {
+			previous.segment.liveBytes -= previous.recordLength;
+		}
+
+		if(location != null) {
+			active.liveBytes += recordLength;
+		}
+
+		return location;
+	}
+
+	private void roll() throws IOException {
+
+		directory.mkdirs();
+
+		int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+
+		Segment s = new Segment(number, new File(directory, String.format("%08d", number) + DOT_SEG), budget);
+
+		s.open();
+
+		if(active != null) {
+			active.sealed = true;
+		}
+
+		segments.put(number, s);
+
+		active = s;
+	}
+
+	/*
+	 * Reads a segment start to finish, updating the map from each record.
+	 */
+	private void replay(Segment s, boolean last) throws IOException {
+
+		s.size = forEachRecord(s, r -> {
+
+			Location previous = r.data == null ? index.remove(r.id)
+					: index.put(r.id, new Location(s, r.offset + HEADER + r.id.getBytes(StandardCharsets.UTF_8).length, r.data.length, r.recordLength, VERSIONS.incrementAndGet()));
+
+			if(previous != null) {
+				previous.segment.liveBytes -= previous.recordLength;
+			}
+
+			if(r.data != null) {
+				s.liveBytes += r.recordLength;
+			}
+		});
+
+		s.open();
+
+		if(last) {
+			// cut off anything torn, and carry on appending here
+			s.channel.truncate(s.size);
+			active = s;
+		} else {
+			s.sealed = true;
+		}
+	}
+
+	/*
+	 * Moves whatever in the segment is still live to the active segment.
+	 */
+	private void compact(Segment s) throws IOException {
+
+		forEachRecord(s, r -> {
+			synchronized(this) {
+				Location location = index.get(r.id);
+
+				if(r.data != null) {
+					if(location != null && location.segment == s && location.offset == r.offset + r.recordLength - r.data.length) {
+						append(r.id, r.data, location.version);
+					}
+				} else if(location == null && s.number != segments.firstKey()) {
+					// an older segment may still have an earlier version, which
+					// would come back to life on replay without the deletion
+					append(r.id, null, 0);
+				}
+			}
+		});
+
+		synchronized(this) {
+			// what was copied has to be safely on disk before the original goes
+			if(active != null) {
+				active.force();
+			}
+
+			segments.remove(s.number);
+			unsynced.remove(s);
+			s.retired = true;
+		}
+
+		s.file.delete();
+		s.close();
+	}
+
+	private interface RecordConsumer {
+		void accept(Record r) throws IOException;
+	}
+
+	/*
+	 * Calls the consumer with each intact record in the segment, and
+	 * returns the length of the intact part.
+	 */
+	private long forEachRecord(Segment s, RecordConsumer consumer) throws IOException {
+
+		long position = 0;
+
+		long fileLength = s.file.length();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(s.file), 1 << 16))) {
+
+			byte[] header = new byte[HEADER];
+
+			while(true) {
+
+				try {
+					in.readFully(header);
+				} catch (EOFException e) {
+					break;
+				}
+
+				ByteBuffer h = ByteBuffer.wrap(header);
+				int checksum = h.getInt();
+				int idLength = h.getInt();
+				int dataLength = h.getInt();
+
+				// lengths that run past the end can only be garbage
+				if(idLength <= 0 || idLength > MAX_ID || dataLength < TOMBSTONE
+						|| (long) idLength + Math.max(0, dataLength) > fileLength - position - HEADER) {
+					break;
+				}
+
+				byte[] body = new byte[idLength + Math.max(0, dataLength)];
+
+				try {
+					in.readFully(body);
+				} catch (EOFException e) {
+					break;
+				}
+
+				CRC32 crc = new CRC32();
+				crc.update(header, 4, HEADER - 4);
+				crc.update(body);
+
+				if((int) crc.getValue() != checksum) {
+					break;
+				}
+
+				Record r = new Record();
+				r.id = new String(body, 0, idLength, StandardCharsets.UTF_8);
+				r.offset = position;
+				r.recordLength = HEADER + body.length;
+
+				if(dataLength != TOMBSTONE) {
+					r.data = new byte[dataLength];
+					System.arraycopy(body, idLength, r.data, 0, dataLength);
+				}
+
+				consumer.accept(r);
+
+				position += r.recordLength;
+			}
+		}
+
+		return position;
+	}
+
+}
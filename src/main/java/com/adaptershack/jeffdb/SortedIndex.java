@@ -0,0 +1,189 @@
+package com.adaptershack.jeffdb;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * An index that, besides looking up values, keeps numbers and strings
+ * in order, so it can find the objects in a range ($gt, $gte, $lt, $lte)
+ * or with a $prefix without looking at any others.
+ *
+ * Saved the same way as a HashIndex; the ordered parts are rebuilt from
+ * that when loaded.
+ *
+ * @author Jeff
+ *
+ */
+class SortedIndex extends HashIndex {
+
+	private final TreeMap<BigDecimal,Set<String>> numbers = new TreeMap<>();
+
+	private final TreeMap<String,Set<String>> strings = new TreeMap<>();
+
+	SortedIndex(String field) {
+		super(field);
+	}
+
+	@Override
+	synchronized void add(String id, JsonNode row) {
+		super.add(id, row);
+
+		JsonNode value = row == null ? null : row.get(getField());
+
+		if(value != null) {
+			addSorted(id, value);
+		}
+	}
+
+	@Override
+	synchronized void remove(String id, JsonNode row) {
+		super.remove(id, row);
+
+		JsonNode value = row == null ? null : row.get(getField());
+
+		if(value != null && value.isNumber()) {
+			removeSorted(numbers, value.decimalValue(), id);
+		} else if(value != null && value.isTextual()) {
+			removeSorted(strings, value.textValue(), id);
+		}
+	}
+
+	@Override
+	synchronized void clear() {
+		super.clear();
+		numbers.clear();
+		strings.clear();
+	}
+
+	@Override
+	synchronized void setEntries(Map<String,? extends Set<String>> loaded) {
+		super.setEntries(loaded);
+
+		numbers.clear();
+		strings.clear();
+
+		loaded.forEach( (key, ids) -> {
+			try {
+				JsonNode value = KEYS.readTree(key);
+				ids.forEach(id -> addSorted(id, value));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	@Override
+	synchronized NavigableSet<String> candidates(JsonNode condition) {
+
+		NavigableSet<String> result = super.candidates(condition);
+
+		if(!QueryMatcher.isOperators(condition)) {
+			return result;
+		}
+
+		JsonNode lower = null, upper = null;
+		boolean lowerInclusive = false, upperInclusive = false;
+
+		if(condition.has(QueryMatcher.GT)) {
+			lower = condition.get(QueryMatcher.GT);
+		} else if(condition.has(QueryMatcher.GTE)) {
+			lower = condition.get(QueryMatcher.GTE);
+			lowerInclusive = true;
+		}
+
+		if(condition.has(QueryMatcher.LT)) {
+			upper = condition.get(QueryMatcher.LT);
+		} else if(condition.has(QueryMatcher.LTE)) {
+			upper = condition.get(QueryMatcher.LTE);
+			upperInclusive = true;
+		}
+
+		if(lower != null || upper != null) {
+			result = intersect(result, range(lower, lowerInclusive, upper, upperInclusive));
+		}
+
+		JsonNode prefix = condition.get(QueryMatcher.PREFIX);
+
+		if(prefix != null && prefix.isTextual()) {
+			NavigableSet<String> ids = new TreeSet<>();
+
+			for(Map.Entry<String,Set<String>> e : strings.tailMap(prefix.textValue(), true).entrySet()) {
+				if(!e.getKey().startsWith(prefix.textValue())) {
+					break;
+				}
+				ids.addAll(e.getValue());
+			}
+
+			result = intersect(result, ids);
+		}
+
+		return result;
+	}
+
+	/*
+	 * Ids of objects whose values are between the bounds, either of which
+	 * may be missing. Values only compare with values of the same type, so
+	 * bounds of different types, or of neither type, match nothing.
+	 */
+	private NavigableSet<String> range(JsonNode lower, boolean lowerInclusive, JsonNode upper, boolean upperInclusive) {
+
+		JsonNode bound = lower != null ? lower : upper;
+
+		if(bound.isNumber() && (lower == null || lower.isNumber()) && (upper == null || upper.isNumber())) {
+			return ids(range(numbers, lower == null ? null : lower.decimalValue(), lowerInclusive, 
+					upper == null ? null : upper.decimalValue(), upperInclusive));
+		}
+
+		if(bound.isTextual() && (lower == null || lower.isTextual()) && (upper == null || upper.isTextual())) {
+			return ids(range(strings, lower == null ? null : lower.textValue(), lowerInclusive, 
+					upper == null ? null : upper.textValue(), upperInclusive));
+		}
+
+		return new TreeSet<>();
+	}
+
+	private static <K extends Comparable<K>> NavigableMap<K,Set<String>> range(NavigableMap<K,Set<String>> map, 
+			K lower, boolean lowerInclusive, K upper, boolean upperInclusive) {
+
+		if(lower != null && upper != null) {
+			return lower.compareTo(upper) > 0 ? new TreeMap<>() : map.subMap(lower, lowerInclusive, upper, upperInclusive);
+		}
+
+		return lower != null ? map.tailMap(lower, lowerInclusive) : map.headMap(upper, upperInclusive);
+	}
+
+	private static NavigableSet<String> ids(Map<?,Set<String>> range) {
+		NavigableSet<String> ids = new TreeSet<>();
+		range.values().forEach(ids::addAll);
+		return ids;
+	}
+
+	private void addSorted(String id, JsonNode value) {
+		if(value.isNumber()) {
+			numbers.computeIfAbsent(value.decimalValue(), k -> new TreeSet<>()).add(id);
+		} else if(value.isTextual()) {
+			strings.computeIfAbsent(value.textValue(), k -> new TreeSet<>()).add(id);
+		}
+	}
+
+	private static <K> void removeSorted(Map<K,Set<String>> map, K key, String id) {
+
+		Set<String> ids = map.get(key);
+
+		if(ids != null) {
+			ids.remove(id);
+			if(ids.isEmpty()) {
+				map.remove(key);
+			}
+		}
+	}
+
+}
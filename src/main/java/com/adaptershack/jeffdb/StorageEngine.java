@@ -0,0 +1,151 @@
+package com.adaptershack.jeffdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How objects are actually kept on disk.
+ *
+ * Every collection (and every collection's archive) is a directory, which
+ * DatabaseService creates and deletes; what the engine puts in it is up
+ * to the engine. Objects are handed over already serialized, as bytes.
+ *
+ * @author Jeff
+ *
+ */
+public interface StorageEngine {
+
+	/**
+	 * Gets the stored bytes for the id, or null if there are none.
+	 *
+	 * @param directory
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 */
+	byte[] read(File directory, String id) throws IOException;
+
+	/**
+	 * Gets something that changes whenever what's stored under the id
+	 * does, or null if there's nothing there. Ideally without reading 
+	 * the whole thing; by default it's a hash of the bytes.
+	 *
+	 * @param directory
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 */
+	default String version(File directory, String id) throws IOException {
+
+		byte[] data = read(directory, id);
+
+		if(data == null) {
+			return null;
+		}
+
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Stores the bytes under the id, replacing whatever was there.
+	 *
+	 * @param directory
+	 * @param id
+	 * @param data
+	 * @throws IOException
+	 */
+	void write(File directory, String id, byte[] data) throws IOException;
+
+	/**
+	 * Stores a batch of objects at once, each as if by write(). Engines that
+	 * can do this more cheaply than one at a time should.
+	 *
+	 * @param directory
+	 * @param rows bytes by id
+	 * @throws IOException
+	 */
+	default void writeAll(File directory, Map<String,byte[]> rows) throws IOException {
+		for(Map.Entry<String,byte[]> row : rows.entrySet()) {
+			write(directory, row.getKey(), row.getValue());
+		}
+	}
+
+	/**
+	 * Removes whatever is stored under the id.
+	 *
+	 * @param directory
+	 * @param id
+	 * @return false if there was nothing there
+	 * @throws IOException
+	 */
+	boolean delete(File directory, String id) throws IOException;
+
+	/**
+	 * Gets the ids of everything in the directory, in no particular order.
+	 *
+	 * @param directory
+	 * @return
+	 * @throws IOException
+	 */
+	String[] ids(File directory) throws IOException;
+
+	/**
+	 * Moves whatever is stored under the id from one directory to another.
+	 *
+	 * @param from
+	 * @param to
+	 * @param id
+	 * @throws IOException
+	 */
+	void move(File from, File to, String id) throws IOException;
+
+	/**
+	 * Forgets anything held in memory about the directory and everything
+	 * under it, which is about to be deleted.
+	 *
+	 * @param directory
+	 */
+	void release(File directory);
+
+	/**
+	 * Makes sure whatever was last written or deleted under the ids has
+	 * actually reached the disk, rather than just the operating system. 
+	 * The write-ahead log relies on this before throwing away its records, 
+	 * so an engine that does nothing here can lose changes in a crash.
+	 *
+	 * @param directory
+	 * @param ids
+	 * @throws IOException
+	 */
+	default void sync(File directory, Set<String> ids) throws IOException {
+	}
+
+	void close();
+
+	/**
+	 * Creates one of the built in engines by name, "files" or "segments".
+	 *
+	 * @param name
+	 * @return
+	 */
+	static StorageEngine named(String name) {
+		switch(name) {
+		case FileStorageEngine.NAME:
+			return new FileStorageEngine();
+		case SegmentStorageEngine.NAME:
+			return new SegmentStorageEngine();
+		default:
+			throw new IllegalArgumentException("Unknown storage engine " + name);
+		}
+	}
+
+}
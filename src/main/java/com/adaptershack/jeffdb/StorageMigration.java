@@ -0,0 +1,108 @@
+package com.adaptershack.jeffdb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One-shot conversion of a whole database from one storage engine 
+ * to another, for example from files to segments:
+ * 
+ * java -cp jeffdb.jar -Dloader.main=com.adaptershack.jeffdb.StorageMigration \
+ *     org.springframework.boot.loader.PropertiesLauncher .jeffdb.data files segments
+ * 
+ * Nothing else should be using the database while this runs. Each object
+ * is deleted from the old engine after being written to the new one, so
+ * if it's interrupted, running it again picks up where it left off.
+ * 
+ * @author Jeff
+ *
+ */
+public class StorageMigration {
+
+	/**
+	 * Moves every object in every collection, and every collection's archive,
+	 * from one engine to the other.
+	 * 
+	 * @param root
+	 * @param archiveName
+	 * @param from
+	 * @param to
+	 * @return how many objects were moved
+	 * @throws IOException
+	 */
+	public static long migrate(File root, String archiveName, StorageEngine from, StorageEngine to) throws IOException {
+		
+		long moved = 0;
+		
+		File[] collections = root.listFiles(File::isDirectory);
+		
+		if(collections == null) {
+			return 0;
+		}
+		
+		for(File collection : collections) {
+			
+			moved += migrateDirectory(collection, from, to);
+			
+			File archive = new File(collection, archiveName);
+			
+			if(archive.isDirectory()) {
+				moved += migrateDirectory(archive, from, to);
+			}
+		}
+		
+		return moved;
+	}
+
+	static long migrateDirectory(File directory, StorageEngine from, StorageEngine to) throws IOException {
+		
+		long moved = 0;
+		
+		for(String id : from.ids(directory)) {
+			
+			byte[] data = from.read(directory, id);
+			
+			if(data != null) {
+				to.write(directory, id, data);
+				from.delete(directory, id);
+				moved++;
+			}
+		}
+		
+		from.release(directory);
+		
+		if(from instanceof SegmentStorageEngine) {
+			// nothing left in them now but deletions
+			File[] segments = directory.listFiles( (dir,name) -> name.endsWith(SegmentStore.DOT_SEG) );
+			
+			if(segments != null) {
+				for(File f : segments) {
+					f.delete();
+				}
+			}
+		}
+		
+		return moved;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		
+		if(args.length < 3) {
+			System.err.println("Usage: StorageMigration <root directory> <from engine> <to engine> [archive name]");
+			System.exit(1);
+		}
+		
+		StorageEngine from = StorageEngine.named(args[1]);
+		StorageEngine to = StorageEngine.named(args[2]);
+		
+		try {
+			long moved = migrate(new File(args[0]), args.length > 3 ? args[3] : "archive", from, to);
+			
+			System.out.println("Moved " + moved + " objects from " + args[1] + " to " + args[2]);
+		} finally {
+			from.close();
+			to.close();
+		}
+	}
+	
+}
@@ -0,0 +1,533 @@
+package com.adaptershack.jeffdb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A full-text index on a string field: for each word in the field, the
+ * objects it appears in, so that a $text query only has to look at the
+ * objects having all of its words.
+ *
+ * Words are runs of letters and digits, lowercased. Each object is given
+ * a number while it has any words indexed, the lowest one free, and each
+ * word's objects are kept
+ * as a sorted array of those numbers, packed as the differences between
+ * them, a byte or two each for most words. Changes to a word are kept to
+ * one side until there are enough of them to be worth repacking it for.
+ * The objects having all of a query's words are found by intersecting
+ * the arrays, shortest first.
+ *
+ * A new index is filled from the collection in the background, and until
+ * then it can't narrow anything down, so queries scan as if it weren't
+ * there; objects written meanwhile are added to it as usual, and the fill
+ * leaves them alone, since what it read of them may be out of date.
+ *
+ * Saved in a binary form of its own, rather than as Json like the others.
+ *
+ * @author Jeff
+ *
+ */
+class TextIndex extends HashIndex {
+
+	private static final byte[] NONE = new byte[0];
+
+	// ids by number, null where free, and numbers by id
+	private final List<String> ids = new ArrayList<>();
+	private final Map<String,Integer> numbers = new HashMap<>();
+	private final TreeSet<Integer> free = new TreeSet<>();
+
+	// objects changed since filling started, until it's done
+	private Set<String> changed;
+
+	private final Map<String,Postings> words = new HashMap<>();
+
+	private volatile boolean filled;
+
+	private volatile Future<Integer> filling;
+
+	/*
+	 * The objects one word appears in: those packed, without those removed
+	 * since, plus those added since.
+	 */
+	private static class Postings {
+
+		byte[] packed = NONE;
+
+		int size;
+
+		TreeSet<Integer> added;
+		TreeSet<Integer> removed;
+
+		void add(int number) {
+			if(removed != null) {
+				removed.remove(number);
+			}
+			if(added == null) {
+				added = new TreeSet<>();
+			}
+			added.add(number);
+			repackIfNeeded();
+		}
+
+		void remove(int number) {
+			if(added != null) {
+				added.remove(number);
+			}
+			if(removed == null) {
+				removed = new TreeSet<>();
+			}
+			removed.add(number);
+			repackIfNeeded();
+		}
+
+		/*
+		 * Roughly how many objects, without unpacking.
+		 */
+		int estimate() {
+			return size + (added == null ? 0 : added.size());
+		}
+
+		boolean isEmpty() {
+			return size == 0 && (added == null || added.isEmpty());
+		}
+
+		int[] toArray() {
+
+			int[] packedNumbers = unpack(packed, size);
+
+			if(added == null && removed == null) {
+				return packedNumbers;
+			}
+
+			int[] merged = new int[size + (added == null ? 0 : added.size())];
+
+			int n = 0;
+
+			int i = 0;
+
+			for(int number : added == null ? Set.<Integer>of() : added) {
+				while(i < size && packedNumbers[i] < number) {
+					n = keep(merged, n, packedNumbers[i++]);
+				}
+				if(i < size && packedNumbers[i] == number) {
+					i++;
+				}
+				merged[n++] = number;
+			}
+
+			while(i < size) {
+				n = keep(merged, n, packedNumbers[i++]);
+			}
+
+			return n == merged.length ? merged : Arrays.copyOf(merged, n);
+		}
+
+		private int keep(int[] merged, int n, int number) {
+			if(removed == null || !removed.contains(number)) {
+				merged[n++] = number;
+			}
+			return n;
+		}
+
+		void repackIfNeeded() {
+			int pending = (added == null ? 0 : added.size()) + (removed == null ? 0 : removed.size());
+
+			if(pending > Math.max(16, size / 8)) {
+				repack();
+			}
+		}
+
+		void repack() {
+			if(added != null || removed != null) {
+				int[] numbers = toArray();
+				packed = pack(numbers);
+				size = numbers.length;
+				added = null;
+				removed = null;
+			}
+		}
+	}
+
+	TextIndex(String field) {
+		super(field);
+	}
+
+	boolean isFilled() {
+		return filled;
+	}
+
+	synchronized void setFilled(boolean filled) {
+		this.filled = filled;
+
+		if(filled) {
+			changed = null;
+		}
+	}
+
+	/**
+	 * Remembers which objects are changed from now until it's filled, so
+	 * that fill() can leave them alone.
+	 */
+	synchronized void trackChanges() {
+		changed = new HashSet<>();
+	}
+
+	/**
+	 * Adds an object read while filling the index, unless it's been changed
+	 * since filling started, in which case the index already has it as it
+	 * is now, or knows it's gone.
+	 *
+	 * @param id
+	 * @param row
+	 */
+	synchronized void fill(String id, JsonNode row) {
+		if(changed == null || !changed.contains(id)) {
+			addWords(id, row);
+		}
+	}
+
+	/**
+	 * The background task filling the index, if it's new.
+	 *
+	 * @return
+	 */
+	Future<Integer> getFilling() {
+		return filling;
+	}
+
+	void setFilling(Future<Integer> filling) {
+		this.filling = filling;
+	}
+
+	@Override
+	synchronized void add(String id, JsonNode row) {
+
+		if(changed != null) {
+			changed.add(id);
+		}
+
+		addWords(id, row);
+	}
+
+	private void addWords(String id, JsonNode row) {
+
+		Set<String> rowWords = words(row);
+
+		if(rowWords.isEmpty()) {
+			return;
+		}
+
+		int number = numbers.computeIfAbsent(id, i -> {
+			if(free.isEmpty()) {
+				ids.add(i);
+				return ids.size() - 1;
+			}
+			int n = free.pollFirst();
+			ids.set(n, i);
+			return n;
+		});
+
+		for(String word : rowWords) {
+			words.computeIfAbsent(word, w -> new Postings()).add(number);
+		}
+	}
+
+	/*
+	 * Every object's words are removed before it's added again, if it's
+	 * updated, so once they're gone its number is free.
+	 */
+	@Override
+	synchronized void remove(String id, JsonNode row) {
+
+		if(changed != null) {
+			changed.add(id);
+		}
+
+		Integer number = numbers.remove(id);
+
+		if(number == null) {
+			return;
+		}
+
+		for(String word : words(row)) {
+
+			Postings postings = words.get(word);
+
+			if(postings != null) {
+				postings.remove(number);
+
+				if(postings.isEmpty()) {
+					words.remove(word);
+				}
+			}
+		}
+
+		ids.set(number, null);
+		free.add(number);
+	}
+
+	/**
+	 * Gets the ids of every object whose field has all the words of a
+	 * $text condition. Can't help with anything else.
+	 */
+	@Override
+	synchronized NavigableSet<String> candidates(JsonNode condition) {
+
+		JsonNode text = QueryMatcher.isOperators(condition) ? condition.get(QueryMatcher.TEXT) : null;
+
+		if(!filled || text == null || !text.isTextual()) {
+			return null;
+		}
+
+		Set<String> queryWords = words(text.textValue());
+
+		if(queryWords.isEmpty()) {
+			return null;
+		}
+
+		List<Postings> lists = new ArrayList<>();
+
+		for(String word : queryWords) {
+
+			Postings postings = words.get(word);
+
+			if(postings == null) {
+				return new TreeSet<>();
+			}
+
+			lists.add(postings);
+		}
+
+		lists.sort(Comparator.comparingInt(Postings::estimate));
+
+		int[] result = lists.get(0).toArray();
+
+		for(int i = 1; i < lists.size() && result.length > 0; i++) {
+			result = intersect(result, lists.get(i).toArray());
+		}
+
+		NavigableSet<String> found = new TreeSet<>();
+
+		for(int number : result) {
+			String id = ids.get(number);
+			if(id != null) {
+				found.add(id);
+			}
+		}
+
+		return found;
+	}
+
+	@Override
+	synchronized void clear() {
+		ids.clear();
+		numbers.clear();
+		free.clear();
+		words.clear();
+	}
+
+	/**
+	 * Writes the index, packing every word first.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	synchronized void write(DataOutput out) throws IOException {
+
+		out.writeInt(ids.size());
+
+		for(String id : ids) {
+			out.writeUTF(id == null ? "" : id);
+		}
+
+		out.writeInt(words.size());
+
+		for(Map.Entry<String,Postings> e : words.entrySet()) {
+
+			Postings postings = e.getValue();
+
+			postings.repack();
+
+			out.writeUTF(e.getKey());
+			out.writeInt(postings.size);
+			out.writeInt(postings.packed.length);
+			out.write(postings.packed);
+		}
+	}
+
+	synchronized void read(DataInput in) throws IOException {
+
+		clear();
+
+		int idCount = in.readInt();
+
+		for(int i = 0; i < idCount; i++) {
+			String id = in.readUTF();
+			if(id.isEmpty()) {
+				ids.add(null);
+				free.add(i);
+			} else {
+				ids.add(id);
+				numbers.put(id, i);
+			}
+		}
+
+		int wordCount = in.readInt();
+
+		for(int i = 0; i < wordCount; i++) {
+
+			String word = in.readUTF();
+
+			Postings postings = new Postings();
+
+			postings.size = in.readInt();
+			postings.packed = new byte[in.readInt()];
+			in.readFully(postings.packed);
+
+			words.put(word, postings);
+		}
+	}
+
+	/**
+	 * Splits text into words: runs of letters and digits, lowercased,
+	 * each only once, in the order they first appear.
+	 *
+	 * @param text
+	 * @return
+	 */
+	static Set<String> words(String text) {
+
+		Set<String> found = new LinkedHashSet<>();
+
+		int start = -1;
+
+		for(int i = 0; i < text.length(); ) {
+
+			int c = text.codePointAt(i);
+
+			if(Character.isLetterOrDigit(c)) {
+				if(start < 0) {
+					start = i;
+				}
+			} else if(start >= 0) {
+				found.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+
+			i += Character.charCount(c);
+		}
+
+		if(start >= 0) {
+			found.add(text.substring(start).toLowerCase(Locale.ROOT));
+		}
+
+		return found;
+	}
+
+	private Set<String> words(JsonNode row) {
+
+		JsonNode value = row == null ? null : row.get(getField());
+
+		return value != null && value.isTextual() ? words(value.textValue()) : Set.of();
+	}
+
+	/*
+	 * Each number as its difference from the one before, seven bits to a
+	 * byte, with the top bit set on all but the last byte of each.
+	 */
+	static byte[] pack(int[] numbers) {
+
+		byte[] packed = new byte[numbers.length * 5];
+
+		int n = 0;
+
+		int previous = 0;
+
+		for(int number : numbers) {
+
+			int gap = number - previous;
+
+			previous = number;
+
+			while((gap & ~0x7F) != 0) {
+				packed[n++] = (byte) ((gap & 0x7F) | 0x80);
+				gap >>>= 7;
+			}
+
+			packed[n++] = (byte) gap;
+		}
+
+		return Arrays.copyOf(packed, n);
+	}
+
+	static int[] unpack(byte[] packed, int size) {
+
+		int[] numbers = new int[size];
+
+		int p = 0;
+
+		int previous = 0;
+
+		for(int i = 0; i < size; i++) {
+
+			int gap = 0;
+
+			int shift = 0;
+
+			byte b;
+
+			do {
+				b = packed[p++];
+				gap |= (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+
+			previous += gap;
+
+			numbers[i] = previous;
+		}
+
+		return numbers;
+	}
+
+	/*
+	 * The numbers in both of two sorted arrays.
+	 */
+	private static int[] intersect(int[] a, int[] b) {
+
+		int[] both = new int[Math.min(a.length, b.length)];
+
+		int n = 0;
+
+		for(int i = 0, j = 0; i < a.length && j < b.length; ) {
+			if(a[i] < b[j]) {
+				i++;
+			} else if(a[i] > b[j]) {
+				j++;
+			} else {
+				both[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+
+		return Arrays.copyOf(both, n);
+	}
+
+}
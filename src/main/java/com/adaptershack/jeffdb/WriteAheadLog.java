@@ -0,0 +1,789 @@
+package com.adaptershack.jeffdb;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Wraps another storage engine, recording every change in a log under
+ * the root directory before passing it on, so that the engine itself never
+ * has to sync anything to disk.
+ *
+ * With "always" durability, a change doesn't return until the log has been
+ * synced past it. Whoever is waiting when a sync starts gets it; whoever
+ * comes along while it's running waits for the next one. With "batch",
+ * each sync also waits a short window, or until enough records are
+ * waiting, to gather more writers into it.
+ *
+ * When the log gets big, a new one is started, the engine is asked to sync
+ * everything the old one touched, and the old one is deleted. On startup
+ * whatever logs are left over are replayed into the engine the same way.
+ *
+ * Each record is a header of five ints (a CRC32 of the rest of the record,
+ * the type, and the lengths of the directory, the id and the data), then
+ * the directory, relative to the root, the id and the data.
+ *
+ * @author Jeff
+ *
+ */
+class WriteAheadLog implements StorageEngine {
+
+	private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+	static final String NONE = "none";
+	static final String BATCH = "batch";
+	static final String ALWAYS = "always";
+
+	static final String DIRECTORY = ".wal";
+	static final String DOT_LOG = ".log";
+
+	private static final int HEADER = 20;
+	private static final int MAX_NAME = 4096;
+
+	private static final int PUT = 1;
+	private static final int DELETE = 2;
+	private static final int DROP = 3;
+
+	private final File root;
+	private final File logDirectory;
+	private final StorageEngine engine;
+	private final boolean batch;
+
+	private long window = 2;
+	private int groupRecords = 1000;
+	private long maxLogSize = 64L << 20;
+
+	/*
+	 * Changes hold this for reading from logging to applying, so that
+	 * starting a new log can wait until the old one has all been applied.
+	 */
+	private final ReadWriteLock rotation = new ReentrantReadWriteLock();
+
+	private final AtomicBoolean checkpointing = new AtomicBoolean();
+
+	/* 
+	 * guarded by logLock, a lock rather than a monitor for the same reason
+	 * as syncLock below, since appending holds it while writing to the log
+	 */
+	private final ReentrantLock logLock = new ReentrantLock();
+	private FileChannel channel;
+	private int number;
+	private volatile long size;
+	private Map<File,Set<String>> touched = new ConcurrentHashMap<>();
+
+	/* everything ever appended, across all logs; written under logLock */
+	private volatile long appended;
+	private volatile long appendedRecords;
+
+	/* 
+	 * guarded by syncLock, a lock rather than a monitor so that writers 
+	 * waiting on it don't hold on to a carrier when they're virtual threads
+	 */
+	private final ReentrantLock syncLock = new ReentrantLock();
+	private final Condition syncDone = syncLock.newCondition();
+	private boolean syncing;
+	private long synced;
+	private long syncedRecords;
+
+	WriteAheadLog(File root, StorageEngine engine, String durability) {
+
+		if(!BATCH.equals(durability) && !ALWAYS.equals(durability)) {
+			throw new IllegalArgumentException("Unknown durability " + durability);
+		}
+
+		this.root = root.getAbsoluteFile();
+		this.logDirectory = new File(this.root, DIRECTORY);
+		this.engine = engine;
+		this.batch = BATCH.equals(durability);
+	}
+
+	long getWindow() {
+		return window;
+	}
+
+	void setWindow(long window) {
+		this.window = window;
+	}
+
+	int getGroupRecords() {
+		return groupRecords;
+	}
+
+	void setGroupRecords(int groupRecords) {
+		this.groupRecords = groupRecords;
+	}
+
+	long getMaxLogSize() {
+		return maxLogSize;
+	}
+
+	void setMaxLogSize(long maxLogSize) {
+		this.maxLogSize = maxLogSize;
+	}
+
+	StorageEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Applies whatever logs were left behind to the engine, makes sure
+	 * it's all on disk, and deletes them.
+	 *
+	 * @return how many changes were replayed
+	 * @throws IOException
+	 */
+	long recover() throws IOException {
+
+		logLock.lock();
+		try {
+			File[] logs = logDirectory.listFiles( (dir,name) -> name.endsWith(DOT_LOG) );
+
+			if(logs == null) {
+				return 0;
+			}
+
+			Arrays.sort(logs);
+
+			long count = 0;
+
+			Map<File,Set<String>> replayed = new ConcurrentHashMap<>();
+
+			for(File log : logs) {
+
+				count += forEachRecord(log, (type, directory, id, data) -> {
+					// one change that can't be made mustn't stop the database starting
+					try {
+						switch(type) {
+						case PUT:
+							directory.mkdirs();
+							engine.write(directory, id, data);
+							touch(replayed, directory, id);
+							break;
+						case DELETE:
+							engine.delete(directory, id);
+							touch(replayed, directory, id);
+							break;
+						case DROP:
+							engine.release(directory);
+							FileSystemUtils.deleteRecursively(directory);
+							forget(replayed, directory);
+							break;
+						}
+					} catch (IOException | RuntimeException e) {
+						logger.warn("Skipped replaying a change to {} in {}", id, directory, e);
+					}
+				});
+
+				number = Math.max(number, logNumber(log));
+			}
+
+			sync(replayed);
+
+			for(File log : logs) {
+				log.delete();
+			}
+
+			return count;
+		} finally {
+			logLock.unlock();
+		}
+	}
+
+	@Override
+	public byte[] read(File directory, String id) throws IOException {
+		return engine.read(directory, id);
+	}
+
+	@Override
+	public String version(File directory, String id) throws IOException {
+		return engine.version(directory, id);
+	}
+
+	@Override
+	public void write(File directory, String id, byte[] data) throws IOException {
+
+		long position;
+
+		rotation.readLock().lock();
+
+		try {
+			position = append(List.of(record(PUT, directory, id, data)));
+			touch(touched, directory, id);
+			
+			try {
+				engine.write(directory, id, data);
+			} catch (IOException | RuntimeException e) {
+				compensate(directory, List.of(id));
+				throw e;
+			}
+		} finally {
+			rotation.readLock().unlock();
+		}
+
+		commit(position);
+	}
+
+	@Override
+	public void writeAll(File directory, Map<String,byte[]> rows) throws IOException {
+
+		if(rows.isEmpty()) {
+			return;
+		}
+
+		long position;
+
+		rotation.readLock().lock();
+
+		try {
+			List<ByteBuffer> records = new ArrayList<>();
+			rows.forEach( (id,data) -> records.add(record(PUT, directory, id, data)) );
+
+			position = append(records);
+			rows.keySet().forEach( id -> touch(touched, directory, id) );
+			
+			try {
+				engine.writeAll(directory, rows);
+			} catch (IOException | RuntimeException e) {
+				compensate(directory, rows.keySet());
+				throw e;
+			}
+		} finally {
+			rotation.readLock().unlock();
+		}
+
+		commit(position);
+	}
+
+	@Override
+	public boolean delete(File directory, String id) throws IOException {
+
+		long position;
+		boolean deleted;
+
+		rotation.readLock().lock();
+
+		try {
+			position = append(List.of(record(DELETE, directory, id, null)));
+			touch(touched, directory, id);
+			
+			try {
+				deleted = engine.delete(directory, id);
+			} catch (IOException | RuntimeException e) {
+				compensate(directory, List.of(id));
+				throw e;
+			}
+		} finally {
+			rotation.readLock().unlock();
+		}
+
+		commit(position);
+
+		return deleted;
+	}
+
+	@Override
+	public String[] ids(File directory) throws IOException {
+		return engine.ids(directory);
+	}
+
+	/*
+	 * Logged as the write and the delete it amounts to.
+	 */
+	@Override
+	public void move(File from, File to, String id) throws IOException {
+
+		long position;
+
+		rotation.readLock().lock();
+
+		try {
+			byte[] data = engine.read(from, id);
+
+			if(data == null) {
+				return;
+			}
+
+			position = append(List.of(record(PUT, to, id, data), record(DELETE, from, id, null)));
+			touch(touched, to, id);
+			touch(touched, from, id);
+			
+			try {
+				engine.move(from, to, id);
+			} catch (IOException | RuntimeException e) {
+				compensate(to, List.of(id));
+				compensate(from, List.of(id));
+				throw e;
+			}
+		} finally {
+			rotation.readLock().unlock();
+		}
+
+		commit(position);
+	}
+
+	/*
+	 * Logged, since what's being released is about to be deleted, and
+	 * nothing from before should be replayed into it. Unless it's the
+	 * whole database, log included, in which case there's nothing left
+	 * to replay.
+	 */
+	@Override
+	public void release(File directory) {
+
+		File released = directory.getAbsoluteFile();
+
+		if(logDirectory.toPath().startsWith(released.toPath())) {
+			logLock.lock();
+			try {
+				closeLog();
+				touched.clear();
+			} finally {
+				logLock.unlock();
+			}
+			engine.release(directory);
+			return;
+		}
+
+		long position;
+
+		rotation.readLock().lock();
+
+		try {
+			position = append(List.of(record(DROP, directory, "", null)));
+			forget(touched, released);
+			engine.release(directory);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			rotation.readLock().unlock();
+		}
+
+		try {
+			commit(position);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void sync(File directory, Set<String> ids) throws IOException {
+		engine.sync(directory, ids);
+	}
+
+	/**
+	 * Checkpoints and closes the log, and the engine with it.
+	 */
+	@Override
+	public void close() {
+		detach();
+		engine.close();
+	}
+
+	/**
+	 * Checkpoints and closes the log, leaving the engine open.
+	 */
+	void detach() {
+		try {
+			checkpoint();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			logLock.lock();
+			try {
+				closeLog();
+			} finally {
+				logLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Starts a new log, syncs everything the old one changed, then deletes it.
+	 *
+	 * @throws IOException
+	 */
+	void checkpoint() throws IOException {
+
+		if(!checkpointing.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			FileChannel old;
+			int oldNumber;
+			Map<File,Set<String>> changed;
+
+			rotation.writeLock().lock();
+
+			try {
+				logLock.lock();
+				try {
+					if(channel == null) {
+						return;
+					}
+
+					old = channel;
+					oldNumber = number;
+					changed = touched;
+
+					old.force(false);
+
+					syncLock.lock();
+					try {
+						synced = appended;
+						syncedRecords = appendedRecords;
+						syncDone.signalAll();
+					} finally {
+						syncLock.unlock();
+					}
+
+					touched = new ConcurrentHashMap<>();
+					channel = null;
+					size = 0;
+				} finally {
+					logLock.unlock();
+				}
+			} finally {
+				rotation.writeLock().unlock();
+			}
+
+			// everything in the old log has been applied by now
+			sync(changed);
+
+			old.close();
+
+			logFile(oldNumber).delete();
+
+		} finally {
+			checkpointing.set(false);
+		}
+	}
+
+	/*
+	 * Writes the records to the log, one after another, returning the
+	 * position just past them.
+	 */
+	private long append(List<ByteBuffer> records) throws IOException {
+
+		logLock.lock();
+		try {
+			if(channel == null) {
+				logDirectory.mkdirs();
+				number++;
+				channel = FileChannel.open(logFile(number).toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			}
+
+			int length = 0;
+
+			for(ByteBuffer record : records) {
+				length += record.remaining();
+			}
+
+			ByteBuffer buffer = records.size() == 1 ? records.get(0) : ByteBuffer.allocate(length);
+
+			if(records.size() > 1) {
+				records.forEach( r -> buffer.put(r) );
+				buffer.flip();
+			}
+
+			while(buffer.hasRemaining()) {
+				channel.write(buffer, size + buffer.position());
+			}
+
+			size += length;
+			appended += length;
+			appendedRecords += records.size();
+
+			return appended;
+		} finally {
+			logLock.unlock();
+		}
+	}
+
+	/*
+	 * Waits for the log to be synced at least to the position, doing
+	 * the syncing if nobody else is, then checkpoints if the log is full.
+	 */
+	private void commit(long position) throws IOException {
+
+		try {
+			if(batch) {
+				long deadline = System.nanoTime() + window * 1_000_000;
+
+				syncLock.lock();
+				try {
+					while(synced < position && appendedRecords - syncedRecords < groupRecords) {
+						long wait = deadline - System.nanoTime();
+						if(wait <= 0) {
+							break;
+						}
+						syncDone.awaitNanos(wait);
+					}
+				} finally {
+					syncLock.unlock();
+				}
+			}
+
+			syncLog(position);
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		if(size > maxLogSize) {
+			checkpoint();
+		}
+	}
+
+	private void syncLog(long position) throws IOException, InterruptedException {
+
+		syncLock.lock();
+		try {
+			while(synced < position && syncing) {
+				syncDone.await();
+			}
+
+			if(synced >= position) {
+				return;
+			}
+
+			syncing = true;
+		} finally {
+			syncLock.unlock();
+		}
+
+		long target = 0;
+		long targetRecords = 0;
+
+		try {
+			FileChannel c;
+
+			logLock.lock();
+			try {
+				c = channel;
+				target = appended;
+				targetRecords = appendedRecords;
+			} finally {
+				logLock.unlock();
+			}
+
+			if(c != null) {
+				try {
+					c.force(false);
+				} catch (ClosedChannelException e) {
+					// a checkpoint beat us to it
+				}
+			}
+		} finally {
+			syncLock.lock();
+			try {
+				syncing = false;
+				synced = Math.max(synced, target);
+				syncedRecords = Math.max(syncedRecords, targetRecords);
+				syncDone.signalAll();
+			} finally {
+				syncLock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * After the engine has failed to make changes already logged, logs
+	 * whatever it actually has under the ids now, and syncs that, so that
+	 * a replay doesn't make changes the caller was told had failed. If
+	 * even that fails, replay will most likely fail on the same changes, 
+	 * and skip them.
+	 */
+	private void compensate(File directory, Collection<String> ids) {
+		try {
+			List<ByteBuffer> records = new ArrayList<>();
+			
+			for(String id : ids) {
+				byte[] current = engine.read(directory, id);
+				records.add(current == null ? record(DELETE, directory, id, null) : record(PUT, directory, id, current));
+			}
+			
+			syncLog(append(records));
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Couldn't log the undoing of failed changes to {}", directory, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void sync(Map<File,Set<String>> changed) throws IOException {
+		for(Map.Entry<File,Set<String>> entry : changed.entrySet()) {
+			if(entry.getKey().exists()) {
+				engine.sync(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/* guarded by logLock */
+	private void closeLog() {
+		try {
+			if(channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// nothing to be done
+		}
+		channel = null;
+		size = 0;
+	}
+
+	private ByteBuffer record(int type, File directory, String id, byte[] data) {
+
+		byte[] path = relative(directory).getBytes(StandardCharsets.UTF_8);
+		byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+
+		int dataLength = data == null ? 0 : data.length;
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER + path.length + idBytes.length + dataLength);
+		buffer.putInt(0);
+		buffer.putInt(type);
+		buffer.putInt(path.length);
+		buffer.putInt(idBytes.length);
+		buffer.putInt(dataLength);
+		buffer.put(path);
+		buffer.put(idBytes);
+
+		if(data != null) {
+			buffer.put(data);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 4, buffer.capacity() - 4);
+		buffer.putInt(0, (int) crc.getValue());
+
+		buffer.flip();
+
+		return buffer;
+	}
+
+	private String relative(File directory) {
+		return root.toPath().relativize(directory.getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+	}
+
+	private File logFile(int n) {
+		return new File(logDirectory, String.format("%08d", n) + DOT_LOG);
+	}
+
+	private static int logNumber(File log) {
+		try {
+			return Integer.parseInt(log.getName().substring(0, log.getName().length() - DOT_LOG.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static void touch(Map<File,Set<String>> touched, File directory, String id) {
+		touched.computeIfAbsent(directory.getAbsoluteFile(), d -> ConcurrentHashMap.newKeySet()).add(id);
+	}
+
+	private static void forget(Map<File,Set<String>> touched, File directory) {
+		touched.keySet().removeIf( d -> d.toPath().startsWith(directory.getAbsoluteFile().toPath()) );
+	}
+
+	@FunctionalInterface
+	private interface RecordConsumer {
+		void accept(int type, File directory, String id, byte[] data) throws IOException;
+	}
+
+	/*
+	 * Reads a log start to finish, stopping at anything torn.
+	 */
+	private long forEachRecord(File log, RecordConsumer consumer) throws IOException {
+
+		long count = 0;
+
+		long remaining = log.length();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log), 1 << 16))) {
+
+			byte[] header = new byte[HEADER];
+
+			while(true) {
+
+				try {
+					in.readFully(header);
+				} catch (EOFException e) {
+					break;
+				}
+
+				ByteBuffer h = ByteBuffer.wrap(header);
+				int checksum = h.getInt();
+				int type = h.getInt();
+				int pathLength = h.getInt();
+				int idLength = h.getInt();
+				int dataLength = h.getInt();
+
+				remaining -= HEADER;
+
+				// lengths that run past the end can only be garbage
+				if(type < PUT || type > DROP || pathLength < 0 || pathLength > MAX_NAME
+						|| idLength < 0 || idLength > MAX_NAME || dataLength < 0
+						|| (long) pathLength + idLength + dataLength > remaining) {
+					break;
+				}
+
+				remaining -= pathLength + idLength + dataLength;
+
+				byte[] body = new byte[pathLength + idLength + dataLength];
+
+				try {
+					in.readFully(body);
+				} catch (EOFException e) {
+					break;
+				}
+
+				CRC32 crc = new CRC32();
+				crc.update(header, 4, HEADER - 4);
+				crc.update(body);
+
+				if((int) crc.getValue() != checksum) {
+					break;
+				}
+
+				File directory = new File(root, new String(body, 0, pathLength, StandardCharsets.UTF_8));
+				String id = new String(body, pathLength, idLength, StandardCharsets.UTF_8);
+				byte[] data = Arrays.copyOfRange(body, pathLength + idLength, body.length);
+
+				consumer.accept(type, directory, id, type == PUT ? data : null);
+
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.adaptershack.jeffdb;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.springframework.util.FileSystemUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Writes the same objects in each format, with and without compression,
+ * then reports how much disk they
+ * take and how quickly a whole collection can be read back. 
+ * 
+ * Run with ./gradlew formatBenchmark, optionally with the number of 
+ * objects and scans as arguments.
+ * 
+ * @author Jeff
+ *
+ */
+public class FormatBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		
+		int objects = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+		int scans = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		
+		ObjectMapper objectMapper = new ObjectMapper();
+		
+		List<ObjectNode> rows = new ArrayList<>();
+		
+		for(int i = 0; i < objects; i++) {
+			ObjectNode row = objectMapper.createObjectNode();
+			row.put("name", "customer " + i);
+			row.put("email", "customer" + i + "@example.com");
+			row.put("balance", i * 1.25);
+			row.put("active", i % 3 != 0);
+			row.putArray("tags").add("retail").add("region-" + (i % 10));
+			row.putObject("address").put("street", i + " Main St").put("city", "Springfield").put("zip", 10000 + i % 900);
+			rows.add(row);
+		}
+		
+		Path root = Files.createTempDirectory("jeffdb-bench");
+		
+		System.out.printf("%-14s %12s %12s %14s%n", "format", "bytes", "bytes/obj", "objects/sec");
+		
+		try {
+			for(String compression : List.of(DocumentCompression.NONE, DocumentCompression.DEFLATE)) {
+				for(String format : List.of(DocumentFormats.JSON, DocumentFormats.SMILE, DocumentFormats.CBOR)) {
+					
+					String collection = compression.equals(DocumentCompression.NONE) ? format : format + "-" + compression;
+					
+					DatabaseService db = new DatabaseService();
+					db.setRootDirectory(root.toString());
+					db.setObjectMapper(objectMapper);
+					db.setFormat(format);
+					db.setCompression(compression);
+					
+					db.insertAll(collection, rows);
+					
+					long bytes = size(root.resolve(collection));
+					
+					// once to warm up
+					db.readAll(collection, row -> {});
+					
+					long start = System.nanoTime();
+					
+					for(int i = 0; i < scans; i++) {
+						db.readAll(collection, row -> {});
+					}
+					
+					double seconds = (System.nanoTime() - start) / 1e9;
+					
+					System.out.printf("%-14s %12d %12d %14.0f%n", collection, bytes, bytes / objects, objects * scans / seconds);
+					
+					db.close();
+				}
+			}
+		} finally {
+			FileSystemUtils.deleteRecursively(root);
+		}
+	}
+	
+	private static long size(Path directory) throws IOException {
+		try(Stream<Path> files = Files.walk(directory)) {
+			return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+		}
+	}
+
+}
@@ -5,22 +5,41 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.CALLS_REAL_METHODS;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.ResponseEntity;
 import org.springframework.util.FileSystemUtils;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
 @SpringBootTest
 class JeffdbApplicationTests {
 
@@ -255,11 +274,1210 @@ class JeffdbApplicationTests {
 	}
 	
 	
-	private String randomName() {
-		String collection = UUID.randomUUID().toString().replaceAll("-","");
-		return collection;
+	@Test
+	void testIndexes() {
+		
+		String collection = randomName();
+		
+		for(int i = 0; i < 10; i++) {
+			controller.insert(collection, row(i % 3, "row" + i));
+		}
+		
+		controller.createIndex(collection, "a");
+		
+		assertTrue( controller.getIndexes(collection).contains("a") );
+		
+		ObjectNode finder = objectMapper.createObjectNode();
+		finder.put("a", 1);
+		
+		// rows 1, 4 and 7
+		assertEquals(3, controller.postSearch(collection, finder).size());
+		
+		// the index has to follow updates and deletes
+		JsonNode moved = controller.postSearch(collection, finder).get(0);
+		controller.put(collection, moved.get("id").asText(), row(2, "moved"));
+		
+		assertEquals(2, controller.postSearch(collection, finder).size());
+		
+		finder.put("b", "row4");
+		controller.deleteSearch(collection, finder);
+		
+		finder.remove("b");
+		assertEquals(1, controller.postSearch(collection, finder).size());
+		
+		// a fresh instance should pick up the saved index
+		controller.db.flushIndexes();
+		
+		DatabaseService db = new DatabaseService();
+		db.setRootDirectory(controller.db.getRootDirectory());
+		db.setObjectMapper(objectMapper);
+		
+		assertTrue( db.getIndexes(collection).contains("a") );
+		assertEquals(1, db.listMatching(collection, finder).size());
+		
+		controller.deleteCollection(collection);
 	}
-
+	
+	@Test
+	void testTextIndex() throws Exception {
+		
+		String collection = randomName();
+		
+		controller.insert(collection, row(1, "The quick brown fox"));
+		controller.insert(collection, row(2, "the lazy dog"));
+		controller.insert(collection, row(3, "Quick, said the dog"));
+		
+		ObjectNode finder = objectMapper.createObjectNode();
+		finder.putObject("b").put("$text", "DOG quick");
+		
+		// no index yet, so a scan
+		assertEquals(1, controller.postSearch(collection, finder).size());
+		
+		controller.db.createTextIndex(collection, "b").get();
+		
+		assertTrue( controller.getIndexes(collection).contains("b") );
+		assertEquals(3, controller.postSearch(collection, finder).get(0).get("a").asInt());
+		
+		// the index has to follow updates and deletes
+		JsonNode fox = controller.db.listMatching(collection, objectMapper.createObjectNode().put("a", 1)).get(0);
+		controller.put(collection, fox.get("id").asText(), row(1, "a quick dog"));
+		
+		assertEquals(2, controller.postSearch(collection, finder).size());
+		
+		controller.deleteSearch(collection, finder);
+		
+		finder.putObject("b").put("$text", "dog");
+		assertEquals(1, controller.postSearch(collection, finder).size());
+		
+		// a fresh instance should pick up the saved index
+		controller.db.flushIndexes();
+		
+		DatabaseService db = new DatabaseService();
+		db.setRootDirectory(controller.db.getRootDirectory());
+		db.setObjectMapper(objectMapper);
+		
+		assertTrue( db.getIndexes(collection).contains("b") );
+		assertEquals(1, db.listMatching(collection, finder).size());
+		
+		finder.putObject("b").put("$text", 3);
+		assertThrows(IllegalArgumentException.class, () -> db.listMatching(collection, finder));
+		
+		controller.deleteCollection(collection);
+	}
+	
+	@Test
+	void testCache() {
+		
+		String root = randomName();
+		
+		try {
+			DatabaseService db = new DatabaseService();
+			db.setRootDirectory(root);
+			db.setObjectMapper(objectMapper);
+			db.setCacheEntries(10);
+			
+			String id = db.insert("foo", row(1, "two")).get("id").asText();
+			
+			// changing what we got back must not change what's cached
+			db.get("foo", id).put("a", 100);
+			
+			assertEquals(1, db.get("foo", id).get("a").asInt());
+			assertEquals(1, db.getCacheStatistics().get("foo").getHits());
+			
+			// but changing it through the database must
+			db.update("foo", id, row(2, "three"));
+			
+			assertEquals(2, db.get("foo", id).get("a").asInt());
+			
+			db.delete("foo", id);
+			
+			assertEquals(null, db.get("foo", id));
+			
+		} finally {
+			FileSystemUtils.deleteRecursively(new File(root));
+		}
+	}
+	
+	@Test
+	void testStreaming() throws Exception {
+		
+		String collection = randomName();
+		
+		for(int i = 0; i < 5; i++) {
+			controller.insert(collection, row(i % 2, "row" + i));
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		controller.streamAll(collection, Controller.NDJSON, 0, null).getBody().writeTo(out);
+		
+		assertEquals(5, out.toString().split("\n").length);
+		
+		ObjectNode finder = objectMapper.createObjectNode();
+		finder.put("a", 1);
+		
+		out.reset();
+		controller.streamSearch(collection, finder, "", 0, null).getBody().writeTo(out);
+		
+		assertEquals(2, objectMapper.readTree(out.toByteArray()).size());
+		
+		controller.deleteCollection(collection);
+	}
+	
+	@Test
+	void testPaging() {
+		
+		String collection = randomName();
+		
+		for(int i = 0; i < 25; i++) {
+			controller.insert(collection, row(i % 2, "row" + i));
+		}
+		
+		// page through everything, ten at a time
+		Set<String> seen = new HashSet<>();
+		String cursor = null;
+		int pages = 0;
+		
+		do {
+			ResponseEntity<List<JsonNode>> page = controller.listPage(collection, 10, cursor);
+			
+			page.getBody().forEach( row -> assertTrue(seen.add(row.get("id").asText())) );
+			
+			cursor = page.getHeaders().getFirst(Controller.NEXT_CURSOR);
+			pages++;
+			
+		} while(cursor != null);
+		
+		assertEquals(25, seen.size());
+		assertEquals(3, pages);
+		
+		// searches too
+		ObjectNode finder = objectMapper.createObjectNode();
+		finder.put("a", 0);
+		
+		ResponseEntity<List<JsonNode>> page = controller.searchPage(collection, finder, 5, null);
+		
+		assertEquals(5, page.getBody().size());
+		
+		page = controller.searchPage(collection, finder, 10, page.getHeaders().getFirst(Controller.NEXT_CURSOR));
+		
+		// 13 even rows in all
+		assertEquals(8, page.getBody().size());
+		assertEquals(null, page.getHeaders().getFirst(Controller.NEXT_CURSOR));
+		
+		controller.deleteCollection(collection);
+	}
+	
+	@Test
+	void testSegmentStorage() {
+		
+		String root = randomName();
+		
+		try {
+			DatabaseService db = new DatabaseService();
+			db.setRootDirectory(root);
+			db.setObjectMapper(objectMapper);
+			db.setStorage("segments");
+			
+			String id = db.insert("foo", row(1, "two")).get("id").asText();
+			db.insert("foo", row(3, "four"));
+			db.update("foo", id, row(5, "six"));
+			
+			assertEquals(2, db.listAll("foo").size());
+			assertEquals(5, db.get("foo", id).get("a").asInt());
+			
+			// no file per object
+			assertFalse( new File( new File(root, "foo"), id + ".json").exists() );
+			
+			db.delete("foo", id);
+			db.close();
+			
+			// everything should come back from the segments
+			db = new DatabaseService();
+			db.setRootDirectory(root);
+			db.setObjectMapper(objectMapper);
+			db.setStorage("segments");
+			
+			assertEquals(null, db.get("foo", id));
+			assertEquals(1, db.listAll("foo").size());
+			assertEquals("four", db.listAll("foo").get(0).get("b").asText());
+			
+			db.archive("foo");
+			
+			assertEquals(0, db.listAll("foo").size());
+			
+			db.close();
+			
+		} finally {
+			FileSystemUtils.deleteRecursively(new File(root));
+		}
+	}
+	
+	@Test
+	void testCompaction() throws Exception {
+		
+		File directory = new File(randomName());
+		
+		try {
+			SegmentStorageEngine engine = new SegmentStorageEngine();
+			engine.setSegmentSize(1000);
+			engine.setCompactionInterval(0);
+			
+			for(int i = 0; i < 20; i++) {
+				engine.write(directory, "id" + i, ("old" + i + " ".repeat(100)).getBytes());
+			}
+			
+			Map<String,String> versions = new HashMap<>();
+			
+			// only one in four is still live in the old segments
+			for(int i = 0; i < 20; i++) {
+				if(i % 4 != 0) {
+					engine.write(directory, "id" + i, ("new" + i).getBytes());
+				}
+				versions.put("id" + i, engine.version(directory, "id" + i));
+			}
+			
+			int before = directory.list().length;
+			
+			engine.compact();
+			
+			assertTrue(directory.list().length < before);
+			
+			for(int i = 0; i < 20; i++) {
+				String expected = (i % 4 != 0 ? "new" : "old") + i;
+				assertTrue(new String(engine.read(directory, "id" + i)).startsWith(expected));
+				
+				// moving an object doesn't make it a different version
+				assertEquals(versions.get("id" + i), engine.version(directory, "id" + i));
+			}
+			
+			engine.close();
+			
+			engine = new SegmentStorageEngine();
+			engine.setCompactionInterval(0);
+			
+			assertEquals(20, engine.ids(directory).length);
+			assertTrue(new String(engine.read(directory, "id0")).startsWith("old0"));
+			assertEquals("new19", new String(engine.read(directory, "id19")));
+			
+			engine.close();
+			
+		} finally {
+			FileSystemUtils.deleteRecursively(directory);
+		}
+	}
+	
+	@Test
+	void testSegmentMapping() throws Exception {
+		
+		File directory = new File(randomName());
+		
+		try {
+			SegmentStorageEngine engine = new SegmentStorageEngine();
+			engine.setSegmentSize(1000);
+			engine.setCompactionInterval(0);
+			
+			for(int i = 0; i < 30; i++) {
+				engine.write(directory, "id" + i, ("row" + i + " ".repeat(100)).getBytes());
+			}
+			
+			long total = 0;
+			
+			for(File f : directory.listFiles()) {
+				total += f.length();
+			}
+			
+			// the full segments get mapped, the one being written to doesn't
+			assertAllThere(engine, directory);
+			assertTrue(engine.getMappedBytes() > 0);
+			assertTrue(engine.getMappedBytes() < total);
+			
+			engine.close();
+			assertEquals(0, engine.getMappedBytes());
+			
+			// room for only one segment; the rest are read the ordinary way
+			engine = new SegmentStorageEngine();
+			engine.setCompactionInterval(0);
+			engine.setMaxMappedBytes(1500);
+			
+			assertAllThere(engine, directory);
+			assertTrue(engine.getMappedBytes() > 0);
+			assertTrue(engine.getMappedBytes() <= 1500);
+			
+			engine.close();
+			
+			// or none at all
+			engine = new SegmentStorageEngine();
+			engine.setCompactionInterval(0);
+			engine.setMaxMappedBytes(0);
+			
+			assertAllThere(engine, directory);
+			assertEquals(0, engine.getMappedBytes());
+			
+			engine.close();
+			
+			// compacted segments give their share of the budget back
+			engine = new SegmentStorageEngine();
+			engine.setSegmentSize(1000);
+			engine.setCompactionInterval(0);
+			
+			assertAllThere(engine, directory);
+			
+			long mapped = engine.getMappedBytes();
+			
+			for(int i = 0; i < 30; i++) {
+				engine.delete(directory, "id" + i);
+			}
+			
+			engine.compact();
+			
+			assertTrue(engine.getMappedBytes() < mapped);
+			
+			engine.close();
+			
+		} finally {
+			FileSystemUtils.deleteRecursively(directory);
+		}
+	}
+	
+	private void assertAllThere(StorageEngine engine, File directory) throws Exception {
+		for(int i = 0; i < 30; i++) {
+			assertTrue(new String(engine.read(directory, "id" + i)).startsWith("row" + i + " "));
+		}
+	}
+	
+	@Test
+	void testTornSegment() throws Exception {
+		
+		File directory = new File(randomName());
+		
+		try {
+			SegmentStorageEngine engine = new SegmentStorageEngine();
+			engine.setCompactionInterval(0);
+			
+			engine.write(directory, "a", "one".getBytes());
+			engine.write(directory, "b", "two".getBytes());
+			engine.close();
+			
+			File segment = directory.listFiles( (dir,name) -> name.endsWith(SegmentStore.DOT_SEG) )[0];
+			
+			// the last write only got half way to disk
+			try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+				file.setLength(file.length() - 2);
+			}
+			
+			engine = new SegmentStorageEngine();
+			engine.setCompactionInterval(0);
+			
+			assertEquals("one", new String(engine.read(directory, "a")));
+			assertNull(engine.read(directory, "b"));
+			
+			engine.write(directory, "c", "three".getBytes());
+			engine.close();
+			
+			// and then rubbish, claiming to be an enormous record
+			try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+				file.seek(file.length());
+				file.writeInt(0);
+				file.writeInt(1);
+				file.writeInt(Integer.MAX_VALUE);
+				file.write(new byte[20]);
+			}
+			
+			engine = new SegmentStorageEngine();
+			engine.setCompactionInterval(0);
+			
+			assertEquals(2, engine.ids(directory).length);
+			assertEquals("three", new String(engine.read(directory, "c")));
+			
+			// what comes after the cut is readable next time
+			engine.write(directory, "d", "four".getBytes());
+			engine.close();
+			
+			engine = new SegmentStorageEngine();
+			engine.setCompactionInterval(0);
+			
+			assertEquals("one", new String(engine.read(directory, "a")));
+			assertEquals("four", new String(engine.read(directory, "d")));
+			
+			engine.close();
+			
+		} finally {
+			FileSystemUtils.deleteRecursively(directory);
+		}
+	}
+	
+	@Test
+	void testStorageMigration() throws Exception {
+		
+		File root = new File(randomName());
+		
+		try {
+			File collection = new File(root, "foo");
+			File archive = new File(collection, "archive");
+			
+			FileStorageEngine files = new FileStorageEngine();
+			files.write(collection, "a", "one".getBytes());
+			files.write(collection, "b", "two".getBytes());
+			files.write(archive, "c", "three".getBytes());
+			
+			SegmentStorageEngine segments = new SegmentStorageEngine();
+			segments.setCompactionInterval(0);
+			
+			assertEquals(3, StorageMigration.migrate(root, "archive", files, segments));
+			
+			assertEquals(0, files.ids(collection).length);
+			assertFalse(new File(collection, "a.json").exists());
+			assertEquals("two", new String(segments.read(collection, "b")));
+			assertEquals("three", new String(segments.read(archive, "c")));
+			
+			// nothing to do the second time
+			assertEquals(0, StorageMigration.migrate(root, "archive", files, segments));
+			
+			// and back again, leaving no segments behind
+			assertEquals(3, StorageMigration.migrate(root, "archive", segments, files));
+			
+			assertEquals(0, collection.list( (dir,name) -> name.endsWith(SegmentStore.DOT_SEG) ).length);
+			assertEquals("one", new String(files.read(collection, "a")));
+			assertEquals("three", new String(files.read(archive, "c")));
+			
+			segments.close();
+			files.close();
+			
+		} finally {
+			FileSystemUtils.deleteRecursively(root);
+		}
+	}
+	
+	@Test
+	void testBulk() throws Exception {
+		
+		String collection = randomName();
+		
+		String body = "{\"id\":\"one\",\"a\":1}\n{\"a\":2}\n[3]\n{\"id\":\"no good\"}\n{\"id\":\"one\",\"a\":5}\n";
+		
+		JsonNode results = bulk(collection, body);
+		
+		assertEquals(5, results.size());
+		assertTrue(results.get(0).get("ok").asBoolean());
+		assertTrue(results.get(1).get("ok").asBoolean());
+		assertFalse(results.get(2).get("ok").asBoolean());
+		assertFalse(results.get(3).get("ok").asBoolean());
+		assertEquals("one", results.get(4).get("id").asText());
+		
+		assertEquals(2, controller.listAll(collection).size());
+		assertEquals(5, controller.get(collection, "one").getBody().get("a").asInt());
+		
+		// a Json array works too
+		results = bulk(collection, "[{\"a\":6},{\"a\":7}]");
+		
+		assertEquals(2, results.size());
+		assertEquals(4, controller.listAll(collection).size());
+		
+		// input that stops making sense keeps what came before, and says so last
+		results = bulk(collection, "{\"id\":\"q\"}\n{oops");
+		
+		assertEquals(2, results.size());
+		assertEquals(1, results.get(1).get("index").asInt());
+		assertFalse(results.get(1).get("ok").asBoolean());
+		assertEquals(5, controller.listAll(collection).size());
+		
+		controller.deleteCollection(collection);
+	}
+	
+	private JsonNode bulk(String collection, String body) throws Exception {
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		controller.bulk(collection, new ByteArrayInputStream(body.getBytes())).getBody().writeTo(out);
+		
+		return objectMapper.readTree(out.toByteArray());
+	}
+	
+	@Test
+	void testDurability() {
+		
+		String root = randomName();
+		
+		try {
+			DatabaseService db = new DatabaseService();
+			db.setRootDirectory(root);
+			db.setObjectMapper(objectMapper);
+			db.setDurability("always");
+			
+			String id = db.insert("foo", row(1, "two")).get("id").asText();
+			String id2 = db.insert("foo", row(3, "four")).get("id").asText();
+			db.update("foo", id, row(5, "six"));
+			db.delete("foo", id2);
+			
+			// pretend the operating system lost the last write to the file
+			new File(new File(root, "foo"), id + ".json").delete();
+			
+			// and then crash, without closing; the log should put it back
+			db = new DatabaseService();
+			db.setRootDirectory(root);
+			db.setObjectMapper(objectMapper);
+			db.setDurability("batch");
+			
+			assertEquals(5, db.get("foo", id).get("a").asInt());
+			assertEquals(null, db.get("foo", id2));
+			assertEquals(1, db.listAll("foo").size());
+			
+			db.close();
+			
+			// a clean shutdown leaves no log behind
+			assertEquals(0, new File(root, WriteAheadLog.DIRECTORY).list().length);
+			
+		} finally {
+			FileSystemUtils.deleteRecursively(new File(root));
+		}
+	}
+	
+	@Test
+	void testConcurrentWrites() throws Exception {
+		
+		String collection = randomName();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		
+		AtomicBoolean done = new AtomicBoolean();
+		
+		List<Future<?>> futures = new ArrayList<>();
+		
+		controller.put(collection, "same", bigRow(0));
+		
+		// writers all overwriting the same object, with different contents
+		for(int w = 0; w < 4; w++) {
+			int writer = w;
+			futures.add(executor.submit(() -> {
+				for(int i = 0; i < 200; i++) {
+					controller.put(collection, "same", bigRow(writer));
+				}
+				return null;
+			}));
+		}
+		
+		// readers checking that each object read was written by just one of them
+		for(int r = 0; r < 3; r++) {
+			futures.add(executor.submit(() -> {
+				while(!done.get()) {
+					JsonNode row = controller.get(collection, "same").getBody();
+					String payload = row.get("payload").asText();
+					
+					assertEquals(10_000, payload.length());
+					assertEquals(payload.charAt(0) * 10_000, payload.chars().sum());
+					assertEquals(row.get("writer").asInt(), payload.charAt(0) - 'a');
+				}
+				return null;
+			}));
+		}
+		
+		for(int i = 0; i < 4; i++) {
+			futures.get(i).get();
+		}
+		
+		done.set(true);
+		
+		for(Future<?> f : futures) {
+			f.get();
+		}
+		
+		// inserts racing against the whole collection being deleted
+		futures.clear();
+		
+		for(int w = 0; w < 4; w++) {
+			futures.add(executor.submit(() -> {
+				for(int i = 0; i < 200; i++) {
+					controller.insert(collection, row(i, "racing"));
+				}
+				return null;
+			}));
+		}
+		
+		futures.add(executor.submit(() -> {
+			for(int i = 0; i < 20; i++) {
+				controller.deleteCollection(collection);
+			}
+			return null;
+		}));
+		
+		for(Future<?> f : futures) {
+			f.get();
+		}
+		
+		executor.shutdown();
+		
+		controller.deleteCollection(collection);
+	}
+	
+	@Test
+	void testETags() {
+		
+		String collection = randomName();
+		
+		String id = controller.insert(collection, row(1, "two")).get("id").asText();
+		
+		ResponseEntity<JsonNode> response = controller.get(collection, id);
+		String etag = response.getHeaders().getETag();
+		
+		assertNotNull(etag);
+		
+		// nothing sent back if the client has it already
+		assertEquals(304, controller.get(collection, id, etag).getStatusCode().value());
+		assertEquals(200, controller.get(collection, id, "\"nope\"").getStatusCode().value());
+		
+		// only the first of two updates from the same version goes through
+		assertEquals(200, controller.put(collection, id, row(3, "four"), etag).getStatusCode().value());
+		assertEquals(412, controller.put(collection, id, row(5, "six"), etag).getStatusCode().value());
+		assertEquals(3, controller.get(collection, id).getBody().get("a").asInt());
+		
+		String etag2 = controller.get(collection, id).getHeaders().getETag();
+		
+		assertNotEquals(etag, etag2);
+		
+		assertEquals(412, controller.delete(collection, id, etag).getStatusCode().value());
+		assertEquals(200, controller.delete(collection, id, etag2).getStatusCode().value());
+		assertEquals(404, controller.get(collection, id).getStatusCode().value());
+		
+		controller.deleteCollection(collection);
+	}
+	
+	@Test
+	void testFormats() throws Exception {
+		
+		String collection = randomName();
+		
+		DatabaseService db = controller.db;
+		
+		File collectionDir = new File(db.getRootDirectory(), collection);
+		
+		try {
+			String json = db.insert(collection, row(1, "two")).get("id").asText();
+			
+			db.setFormat(collection, "smile");
+			
+			String smile = db.insert(collection, row(3, "four")).get("id").asText();
+			
+			assertEquals("json", DocumentFormats.formatOf(db.getStorageEngine().read(collectionDir, json)));
+			assertEquals("smile", DocumentFormats.formatOf(db.getStorageEngine().read(collectionDir, smile)));
+			
+			// both read back the same, whatever they were written as
+			assertEquals("two", controller.get(collection, json).getBody().get("b").asText());
+			assertEquals("four", controller.get(collection, smile).getBody().get("b").asText());
+			assertEquals(2, controller.listAll(collection).size());
+			
+			db.setFormat(collection, "cbor");
+			
+			assertEquals(2, db.convertFormat(collection));
+			assertEquals(0, db.convertFormat(collection));
+			
+			assertEquals("cbor", DocumentFormats.formatOf(db.getStorageEngine().read(collectionDir, json)));
+			assertEquals(3, db.get(collection, smile).get("a").asInt());
+		} finally {
+			db.setFormat(collection, null);
+			controller.deleteCollection(collection);
+		}
+	}
+	
+	@Test
+	void testCompression() throws Exception {
+		
+		String collection = randomName();
+		
+		DatabaseService db = controller.db;
+		
+		File collectionDir = new File(db.getRootDirectory(), collection);
+		
+		try {
+			String before = db.insert(collection, row(1, "x".repeat(1000))).get("id").asText();
+			
+			db.setCompression(collection, "deflate");
+			
+			String after = db.insert(collection, row(2, "y".repeat(1000))).get("id").asText();
+			
+			assertFalse(DocumentCompression.isCompressed(db.getStorageEngine().read(collectionDir, before)));
+			assertTrue(DocumentCompression.isCompressed(db.getStorageEngine().read(collectionDir, after)));
+			
+			// objects from before compression was turned on still read
+			assertEquals(1000, controller.get(collection, before).getBody().get("b").asText().length());
+			assertEquals(1000, controller.get(collection, after).getBody().get("b").asText().length());
+			
+			CompressionStatistics statistics = db.getCompressionStatistics().get(collection);
+			
+			assertEquals(1, statistics.getCompressed());
+			assertTrue(statistics.getRatio() < 0.5);
+			assertTrue(statistics.getDecompressed() > 0);
+			
+			assertEquals(1, db.convertFormat(collection));
+			assertTrue(DocumentCompression.isCompressed(db.getStorageEngine().read(collectionDir, before)));
+		} finally {
+			db.setCompression(collection, null);
+			controller.deleteCollection(collection);
+		}
+	}
+	
+	@Test
+	void testSearchAllFields() throws Exception {
+		
+		String collection = randomName();
+		
+		controller.insert(collection, row(1, "two"));
+		controller.insert(collection, row(1, "three"));
+		
+		ObjectNode nested = row(1, "two");
+		nested.putObject("c").put("d", 4);
+		controller.insert(collection, nested);
+		
+		// every field of the query has to match, not just the first
+		assertEquals(2, controller.postSearch(collection, (ObjectNode) objectMapper.readTree("{\"a\":1,\"b\":\"two\"}")).size());
+		assertEquals(0, controller.postSearch(collection, (ObjectNode) objectMapper.readTree("{\"a\":1,\"b\":\"four\"}")).size());
+		assertEquals(1, controller.postSearch(collection, (ObjectNode) objectMapper.readTree("{\"c\":{\"d\":4}}")).size());
+		assertEquals(0, controller.postSearch(collection, (ObjectNode) objectMapper.readTree("{\"a\":1,\"e\":null}")).size());
+		
+		// the same as testing whole objects
+		QueryMatcher matcher = new QueryMatcher(objectMapper.readTree("{\"b\":\"two\",\"a\":1}"));
+		assertEquals(controller.db.list(collection, matcher).size(), 
+				controller.postSearch(collection, (ObjectNode) objectMapper.readTree("{\"b\":\"two\",\"a\":1}")).size());
+		
+		controller.deleteCollection(collection);
+	}
+	
+	@Test
+	void testProjection() {
+		
+		String collection = randomName();
+		
+		ObjectNode row = bigRow(1);
+		row.put("name", "jeff");
+		row.put("status", "up");
+		
+		String id = controller.insert(collection, row).get("id").asText();
+		
+		controller.insert(collection, row(1, "two"));
+		
+		List<String> fields = List.of("name", "status");
+		
+		JsonNode projected = controller.get(collection, id, null, fields).getBody();
+		
+		assertEquals(3, projected.size());
+		assertEquals(id, projected.get("id").asText());
+		assertEquals("jeff", projected.get("name").asText());
+		assertFalse(projected.has("payload"));
+		
+		// objects without the fields still come back, with just their ids
+		JsonNode all = controller.listAll(collection, fields);
+		assertEquals(2, all.size());
+		assertEquals(4, all.get(0).size() + all.get(1).size());
+		
+		ObjectNode finder = objectMapper.createObjectNode();
+		finder.put("writer", 1);
+		
+		JsonNode found = controller.postSearch(collection, finder, List.of("status"));
+		assertEquals(1, found.size());
+		assertEquals(2, found.get(0).size());
+		assertEquals("up", found.get(0).get("status").asText());
+		
+		controller.deleteCollection(collection);
+	}
+	
+	@Test
+	void testQueryOperators() {
+		
+		String collection = randomName();
+		
+		for(int i = 0; i < 10; i++) {
+			controller.insert(collection, row(i, "name" + i));
+		}
+		
+		ObjectNode finder = objectMapper.createObjectNode();
+		finder.putObject("a").put("$gte", 3).put("$lt", 7);
+		
+		assertEquals(4, controller.postSearch(collection, finder).size());
+		
+		ObjectNode or = objectMapper.createObjectNode();
+		or.putArray("$or")
+			.add(objectMapper.createObjectNode().set("a", objectMapper.createObjectNode().put("$lt", 2)))
+			.add(objectMapper.createObjectNode().set("b", objectMapper.createObjectNode().put("$prefix", "name9")));
+		
+		assertEquals(3, controller.postSearch(collection, or).size());
+		
+		// the same answers with indexes
+		controller.createIndex(collection, "a", "sorted");
+		controller.createIndex(collection, "b", "sorted");
+		
+		assertEquals(4, controller.postSearch(collection, finder).size());
+		assertEquals(3, controller.postSearch(collection, or).size());
+		
+		ObjectNode bad = objectMapper.createObjectNode();
+		bad.putObject("a").put("$nope", 1);
+		
+		assertThrows(IllegalArgumentException.class, () -> controller.postSearch(collection, bad));
+		
+		controller.deleteCollection(collection);
+	}
+	
+	@Test
+	void testAggregate() {
+		
+		String collection = randomName();
+		
+		for(int i = 0; i < 10; i++) {
+			controller.insert(collection, row(i, i % 2 == 0 ? "even" : "odd"));
+		}
+		
+		ObjectNode spec = objectMapper.createObjectNode();
+		spec.put("sum", "a");
+		spec.put("min", "a");
+		spec.put("max", "a");
+		spec.put("distinct", "b");
+		
+		JsonNode result = controller.aggregate(collection, spec);
+		
+		assertEquals(10, result.get("count").asLong());
+		assertEquals(45, result.get("sum").get("a").asLong());
+		assertEquals(0, result.get("min").get("a").asInt());
+		assertEquals(9, result.get("max").get("a").asInt());
+		assertEquals(2, result.get("distinct").get("b").asInt());
+		
+		spec = objectMapper.createObjectNode();
+		spec.put("groupBy", "b");
+		spec.put("avg", "a");
+		spec.putObject("query").putObject("a").put("$gt", 1);
+		
+		result = controller.aggregate(collection, spec);
+		
+		assertEquals(8, result.get("count").asLong());
+		
+		for(JsonNode group : result.get("groups")) {
+			assertEquals(4, group.get("count").asLong());
+			assertEquals(group.get("b").asText().equals("even") ? 5.0 : 6.0, group.get("avg").get("a").asDouble());
+		}
+		
+		controller.deleteCollection(collection);
+	}
+	
+	@Test
+	void testIds() {
+		
+		String collection = randomName();
+		
+		IdHavingObject object = controller.db.insert(collection, new IdHavingObject("jeff"));
+		
+		assertTrue(object.getId().matches("[0-9a-f]{32}"));
+		
+		controller.db.update(collection, "other", object);
+		assertEquals("other", object.getId());
+		assertEquals("jeff", controller.db.get(collection, "other", IdHavingObject.class).getName());
+		
+		Map<String,Object> map = new HashMap<>();
+		map.put("name", "map");
+		
+		controller.db.insert(collection, map);
+		assertEquals("map", controller.db.get(collection, (String) map.get("id")).get("name").asText());
+		
+		for(String bad : List.of("", "a/b", "..\\x", "a b", "\u00e9", "..", ".wal")) {
+			assertThrows(IllegalArgumentException.class, () -> controller.db.get(collection, bad));
+		}
+		
+		// the longest id allowed still leaves room for its temporary file
+		String longest = "l".repeat(DatabaseService.MAX_NAME_LENGTH);
+		controller.db.update(collection, longest, new IdHavingObject("long"));
+		assertEquals("long", controller.db.get(collection, longest, IdHavingObject.class).getName());
+		
+		controller.deleteCollection(collection);
+	}
+	
+	@Test
+	void testVirtualThreads() throws Exception {
+		
+		String collection = randomName();
+		
+		try(ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for(int i = 0; i < 1000; i++) {
+				int n = i;
+				executor.submit(() -> controller.insert(collection, row(n, "virtual")));
+			}
+		}
+		
+		List<JsonNode> sequential = new ArrayList<>();
+		controller.db.readAll(collection, sequential::add);
+		
+		assertEquals(1000, sequential.size());
+		
+		controller.db.setScanVirtual(true);
+		controller.db.setScanThreads(32);
+		
+		try {
+			List<JsonNode> parallel = new ArrayList<>();
+			controller.db.readAll(collection, parallel::add);
+			
+			assertEquals(sequential, parallel);
+		} finally {
+			controller.db.setScanThreads(1);
+			controller.db.setScanVirtual(false);
+		}
+		
+		controller.deleteCollection(collection);
+	}
+	
+	@Test
+	void testScanExecutor() throws Exception {
+		
+		String root = randomName();
+		
+		AtomicInteger threads = new AtomicInteger();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(4, r -> {
+			threads.incrementAndGet();
+			return new Thread(r);
+		});
+		
+		try {
+			DatabaseService db = new DatabaseService();
+			db.setRootDirectory(root);
+			db.setObjectMapper(objectMapper);
+			
+			for(int i = 0; i < 500; i++) {
+				db.insert("foo", row(i, i % 2 == 0 ? "even" : "odd"));
+			}
+			
+			List<JsonNode> sequential = new ArrayList<>();
+			db.readAll("foo", sequential::add);
+			
+			List<JsonNode> sequentialEven = new ArrayList<>();
+			db.readMatching("foo", objectMapper.readTree("{\"b\":\"even\"}"), sequentialEven::add);
+			
+			assertEquals(500, sequential.size());
+			assertEquals(250, sequentialEven.size());
+			
+			// small batches, so there are plenty of them to put back in order
+			db.setScanExecutor(executor, 4);
+			db.setScanBatchSize(16);
+			
+			List<JsonNode> parallel = new ArrayList<>();
+			db.readAll("foo", parallel::add);
+			
+			List<JsonNode> parallelEven = new ArrayList<>();
+			db.readMatching("foo", objectMapper.readTree("{\"b\":\"even\"}"), parallelEven::add);
+			
+			assertEquals(sequential, parallel);
+			assertEquals(sequentialEven, parallelEven);
+			assertTrue(threads.get() > 0);
+			
+			db.close();
+			
+			// it's still ours
+			assertFalse(executor.isShutdown());
+			
+		} finally {
+			executor.shutdown();
+			FileSystemUtils.deleteRecursively(new File(root));
+		}
+	}
+	
+	@Test
+	void testManifest() throws Exception {
+		
+		String root = randomName();
+		
+		try {
+			FileStorageEngine engine = new FileStorageEngine();
+			engine.setManifestCheckInterval(0);
+			engine.setManifest(true);
+			
+			DatabaseService db = new DatabaseService();
+			db.setRootDirectory(root);
+			db.setObjectMapper(objectMapper);
+			db.setStorageEngine(engine);
+			
+			String id = db.insert("foo", row(1, "two")).get("id").asText();
+			db.insert("foo", row(3, "four"));
+			
+			assertEquals(2, db.listAll("foo").size());
+			
+			db.delete("foo", id);
+			
+			assertEquals(1, db.listAll("foo").size());
+			
+			// not seen, since nothing's checking
+			objectMapper.writeValue(new File(new File(root, "foo"), "outside.json"), row(5, "six"));
+			
+			assertEquals(1, db.listAll("foo").size());
+			
+			// until the manifest is started over
+			db.close();
+			
+			assertEquals(2, db.listAll("foo").size());
+			
+			db.close();
+			
+		} finally {
+			FileSystemUtils.deleteRecursively(new File(root));
+		}
+	}
+	
+	@Test
+	void testSharding() throws Exception {
+		
+		String root = randomName();
+		
+		try {
+			DatabaseService db = new DatabaseService();
+			db.setRootDirectory(root);
+			db.setObjectMapper(objectMapper);
+			db.setShards("sharded", 2);
+			
+			String id = db.insert("sharded", row(1, "two")).get("id").asText();
+			
+			File collection = new File(root, "sharded");
+			
+			assertTrue(new File(collection, ".shards").exists());
+			assertEquals(0, collection.list( (dir, name) -> name.endsWith(".json")).length);
+			assertEquals("two", db.get("sharded", id).get("b").asText());
+			
+			List<String> ids = new ArrayList<>();
+			
+			for(int i = 0; i < 100; i++) {
+				ids.add(db.insert("flat", row(i, "flat")).get("id").asText());
+			}
+			
+			db.setShards("flat", 1);
+			
+			assertEquals(100, db.reshard("flat"));
+			assertEquals(0, db.reshard("flat"));
+			assertEquals(0, new File(root, "flat").list( (dir, name) -> name.endsWith(".json")).length);
+			assertEquals(100, db.listAll("flat").size());
+			
+			for(String flat : ids) {
+				assertNotNull(db.get("flat", flat));
+			}
+			
+			assertTrue(db.delete("flat", ids.get(0)));
+			assertEquals(99, db.listAll("flat").size());
+			
+			db.close();
+			
+		} finally {
+			FileSystemUtils.deleteRecursively(new File(root));
+		}
+	}
+	
+	@Test
+	void testMetrics() throws Exception {
+		
+		String root = randomName();
+		
+		try {
+			DatabaseService db = new DatabaseService();
+			db.setRootDirectory(root);
+			db.setObjectMapper(objectMapper);
+			
+			SimpleMeterRegistry registry = new SimpleMeterRegistry();
+			db.setMeterRegistry(registry);
+			
+			String id = db.insert("foo", row(1, "two")).get("id").asText();
+			db.insert("foo", row(3, "four"));
+			
+			db.get("foo", id);
+			db.listAll("foo");
+			
+			assertEquals(2, registry.get("jeffdb.operations").tag("collection", "foo").tag("operation", "insert").timer().count());
+			assertEquals(1, registry.get("jeffdb.operations").tag("collection", "foo").tag("operation", "get").timer().count());
+			assertEquals(1, registry.get("jeffdb.operations").tag("collection", "foo").tag("operation", "scan").timer().count());
+			assertEquals(3, registry.get("jeffdb.objects.read").tag("collection", "foo").counter().count());
+			assertEquals(2, registry.get("jeffdb.objects.matched").tag("collection", "foo").counter().count());
+			
+			// no tags for names that were never valid
+			assertThrows(IllegalArgumentException.class, () -> db.get("no good", id));
+			assertNull(registry.find("jeffdb.operations").tag("collection", "no good").timer());
+			
+			db.setMetrics(false);
+			
+			assertTrue(registry.getMeters().isEmpty());
+			
+			db.get("foo", id);
+			
+			assertTrue(registry.getMeters().isEmpty());
+			
+			db.close();
+			
+		} finally {
+			FileSystemUtils.deleteRecursively(new File(root));
+		}
+	}
+	
+	@Test
+	void testChanges() throws Exception {
+		
+		String root = randomName();
+		
+		try {
+			DatabaseService db = new DatabaseService();
+			db.setRootDirectory(root);
+			db.setObjectMapper(objectMapper);
+			
+			long start = db.getChangeSequence();
+			
+			List<Change> changes = new CopyOnWriteArrayList<>();
+			
+			ChangeSubscription subscription = db.addChangeListener("foo", changes::add);
+			
+			String id = db.insert("foo", row(1, "two")).get("id").asText();
+			db.insert("bar", row(3, "four"));
+			db.update("foo", id, row(5, "six"));
+			db.delete("foo", id);
+			db.deleteCollection("foo");
+			
+			long deadline = System.currentTimeMillis() + 10_000;
+			
+			while(changes.size() < 4 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			
+			assertEquals(List.of(Change.Type.INSERT, Change.Type.UPDATE, Change.Type.DELETE, Change.Type.DROP),
+					changes.stream().map(Change::getType).toList());
+			assertEquals(id, changes.get(0).getId());
+			assertEquals(start + 5, db.getChangeSequence());
+			
+			subscription.close();
+			
+			// picking up from the start again, as a reconnecting client would
+			List<Change> replayed = new CopyOnWriteArrayList<>();
+			
+			subscription = db.addChangeListener(null, start, replayed::add);
+			
+			while(replayed.size() < 5 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			
+			assertEquals(5, replayed.size());
+			assertEquals("bar", replayed.get(1).getCollection());
+			
+			subscription.close();
+			
+			db.setChangeBufferSize(0);
+			
+			assertThrows(IllegalStateException.class, () -> db.addChangeListener("foo", changes::add));
+			
+			db.close();
+			
+		} finally {
+			FileSystemUtils.deleteRecursively(new File(root));
+		}
+	}
+	
+	private String randomName() {
+		String collection = UUID.randomUUID().toString().replaceAll("-","");
+		return collection;
+	}
+
+	private ObjectNode bigRow(int writer) {
+		ObjectNode row = objectMapper.createObjectNode();
+		row.put("writer", writer);
+		row.put("payload", String.valueOf((char) ('a' + writer)).repeat(10_000));
+		
+		return row;
+	}
+	
 	private ObjectNode row(int a, String b) {
 		ObjectNode row = objectMapper.createObjectNode();
 		row.put("a",a);
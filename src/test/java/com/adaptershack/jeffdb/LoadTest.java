@@ -0,0 +1,142 @@
+package com.adaptershack.jeffdb;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+/**
+ * Hammers a running server with concurrent gets by ID, then reports
+ * throughput and latency percentiles. For comparing the server with and
+ * without virtual threads.
+ *
+ * Run with ./gradlew loadTest --args='url connections seconds objects',
+ * all optional, defaulting to http://localhost:8080, 1000 connections,
+ * 30 seconds and 10000 objects. The objects are written to a collection
+ * of their own first, and it's deleted at the end.
+ *
+ * The clients run on virtual threads, so that the client isn't what
+ * limits how many requests are in flight.
+ *
+ * @author Jeff
+ *
+ */
+public class LoadTest {
+
+	// latencies are counted in buckets of 100 microseconds, up to 10 seconds
+	private static final int BUCKETS = 100_000;
+
+	public static void main(String[] args) throws Exception {
+
+		String url = args.length > 0 ? args[0] : "http://localhost:8080";
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		int objects = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+
+		ObjectMapper objectMapper = new ObjectMapper();
+
+		String collection = url + "/loadtest" + System.currentTimeMillis();
+
+		HttpClient client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.executor(Executors.newVirtualThreadPerTaskExecutor())
+				.build();
+
+		ArrayNode rows = objectMapper.createArrayNode();
+
+		for(int i = 0; i < objects; i++) {
+			rows.addObject().put("name", "customer " + i).put("balance", i * 1.25).put("notes", "x".repeat(500));
+		}
+
+		HttpResponse<String> inserted = client.send(HttpRequest.newBuilder(URI.create(collection + "/_bulk"))
+				.header("content-type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(rows)))
+				.build(), HttpResponse.BodyHandlers.ofString());
+
+		List<String> ids = new ArrayList<>();
+
+		for(JsonNode result : objectMapper.readTree(inserted.body())) {
+			ids.add(result.get("id").asText());
+		}
+
+		AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+		LongAdder errors = new LongAdder();
+
+		long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+		try(ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+			for(int c = 0; c < connections; c++) {
+				clients.submit( () -> {
+					while(System.nanoTime() < deadline) {
+						String id = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+
+						long start = System.nanoTime();
+
+						try {
+							HttpResponse<Void> response = client.send(HttpRequest.newBuilder(URI.create(collection + "/" + id))
+									.timeout(Duration.ofSeconds(30)).build(), HttpResponse.BodyHandlers.discarding());
+
+							if(response.statusCode() != 200) {
+								errors.increment();
+								continue;
+							}
+						} catch (Exception e) {
+							errors.increment();
+							continue;
+						}
+
+						long micros = (System.nanoTime() - start) / 1000;
+
+						latencies.incrementAndGet((int) Math.min(BUCKETS - 1, micros / 100));
+					}
+					return null;
+				});
+			}
+		}
+
+		long total = 0;
+
+		for(int i = 0; i < BUCKETS; i++) {
+			total += latencies.get(i);
+		}
+
+		System.out.printf("connections %d, %d requests in %d seconds, %.0f/sec, %d errors%n",
+				connections, total, seconds, total / (double) seconds, errors.sum());
+
+		for(double percentile : new double[] { 50, 90, 99, 99.9 }) {
+			System.out.printf("p%-5s %8.1f ms%n", percentile, percentile(latencies, total, percentile));
+		}
+
+		client.send(HttpRequest.newBuilder(URI.create(collection)).DELETE().build(), HttpResponse.BodyHandlers.discarding());
+	}
+
+	private static double percentile(AtomicLongArray latencies, long total, double percentile) {
+
+		long wanted = (long) Math.ceil(total * percentile / 100);
+
+		long count = 0;
+
+		for(int i = 0; i < BUCKETS; i++) {
+			count += latencies.get(i);
+
+			if(count >= wanted && count > 0) {
+				return (i + 1) / 10.0;
+			}
+		}
+
+		return Double.NaN;
+	}
+
+}